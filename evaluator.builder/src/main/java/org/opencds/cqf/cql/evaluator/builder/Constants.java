@@ -10,10 +10,16 @@ public class Constants {
     public static final String HL7_FHIR_REST = "hl7-fhir-rest";
     public static final String HL7_FHIR_FILES = "hl7-fhir-files";
     public static final String HL7_CQL_FILES = "hl7-cql-files";
+    public static final String HL7_FHIR_STORE = "hl7-fhir-store";
+    public static final String HL7_FHIR_NDJSON = "hl7-fhir-ndjson";
 
     public static final Tag HL7_FHIR_REST_CODE = new Tag(null, HL7_FHIR_REST);
     public static final Tag HL7_FHIR_FILES_CODE = new Tag(null, HL7_FHIR_FILES);
     public static final Tag HL7_CQL_FILES_CODE = new Tag(null, HL7_CQL_FILES);
+    public static final Tag HL7_FHIR_STORE_CODE = new Tag(null, HL7_FHIR_STORE);
+    public static final Tag HL7_FHIR_NDJSON_CODE = new Tag(null, HL7_FHIR_NDJSON);
+
+    public static final String FHIR_STORE_EXTENSION = ".fhirstore";
 
     public static final String FHIR_MODEL_URI = "http://hl7.org/fhir";
     public static final String QDM_MODEL_URI = "urn:healthit-gov:qdm:v5_4";
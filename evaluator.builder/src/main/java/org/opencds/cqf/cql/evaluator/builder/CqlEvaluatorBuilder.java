@@ -3,11 +3,15 @@ package org.opencds.cqf.cql.evaluator.builder;
 import static java.util.Objects.requireNonNull;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,11 +34,21 @@ import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.fhir.EmbeddedFhirLibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.model.CacheAwareModelManager;
 import org.opencds.cqf.cql.evaluator.engine.execution.CacheAwareLibraryLoaderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.execution.ElmCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryTranslationService;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryWarmUpReport;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryWarmer;
+import org.opencds.cqf.cql.evaluator.engine.execution.SharedCachingLibraryLoaderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.execution.TranslatingLibraryLoader;
 import org.opencds.cqf.cql.evaluator.engine.execution.TranslatorOptionAwareLibraryLoader;
+import org.opencds.cqf.cql.evaluator.engine.execution.ValueSetPrefetchingLibraryLoaderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.PriorityRetrieveProvider;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PrivateCachingRetrieveProviderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.terminology.PrivateCachingTerminologyProviderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.terminology.PriorityTerminologyProvider;
+import org.opencds.cqf.cql.evaluator.engine.terminology.SharedCachingTerminologyProviderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.terminology.TerminologyCache;
 import org.opencds.cqf.cql.evaluator.builder.data.RetrieveProviderConfigurer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,12 +67,24 @@ public class CqlEvaluatorBuilder {
 
     private static Logger logger = LoggerFactory.getLogger(CqlEvaluatorBuilder.class);
 
-    private static Map<VersionedIdentifier, Model> globalModelCache = new HashMap<>();
+    private static Map<VersionedIdentifier, Model> globalModelCache = new ConcurrentHashMap<>();
+
+    /**
+     * The content source of the embedded FHIR libraries (e.g. FHIRHelpers) in a
+     * shared LibraryCache
+     */
+    public static final String EMBEDDED_CONTENT_SOURCE = "embedded";
 
     private List<LibraryContentProvider> libraryContentProviders;
 
+    private Map<LibraryContentProvider, String> libraryContentEndpoints;
+
     private List<TerminologyProvider> terminologyProviders;
 
+    private Map<TerminologyProvider, String> terminologyEndpoints;
+
+    private TerminologyCache terminologyCache;
+
     private Map<String, Pair<ModelResolver, List<RetrieveProvider>>> dataProviderParts;
 
     private EnumSet<CqlEngine.Options> engineOptions;
@@ -67,10 +93,22 @@ public class CqlEvaluatorBuilder {
 
     private Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> libraryCache;
 
+    private LibraryCache sharedLibraryCache;
+
+    private ElmCache elmCache;
+
     private Boolean useEmbeddedLibraries = true;
 
     private RetrieveProviderConfig retrieveProviderConfig;
 
+    private Boolean memoizeRetrieves = false;
+
+    private ExecutorService retrieveExecutorService;
+
+    private ExecutorService valueSetPrefetchExecutorService;
+
+    private LibraryTranslationService libraryTranslationService;
+
     private Boolean stale = false;
 
     /**
@@ -79,9 +117,11 @@ public class CqlEvaluatorBuilder {
     @Inject
     public CqlEvaluatorBuilder() {
         this.libraryContentProviders = new ArrayList<>();
+        this.libraryContentEndpoints = new IdentityHashMap<>();
         this.terminologyProviders = new ArrayList<>();
+        this.terminologyEndpoints = new IdentityHashMap<>();
         this.dataProviderParts = new HashMap<>();
-        this.libraryCache = new HashMap<>();
+        this.libraryCache = new ConcurrentHashMap<>();
         this.cqlTranslatorOptions = CqlTranslatorOptions.defaultOptions();
         this.retrieveProviderConfig = RetrieveProviderConfig.defaultConfig();
         this.engineOptions = EnumSet.of(CqlEngine.Options.EnableExpressionCaching);
@@ -103,6 +143,31 @@ public class CqlEvaluatorBuilder {
         return this;
     }
 
+    /**
+     * Adds a LibraryContentProvider for a content endpoint to the list of
+     * LibraryContentProviders that may be used during evaluation. If a shared
+     * LibraryCache is specified and every LibraryContentProvider has an endpoint,
+     * the compiled Libraries are cached under the endpoints and shared with other
+     * evaluators. Evaluators that use the same endpoint share Libraries, so the
+     * endpoint must distinguish the credentials used to access the content (see
+     * EndpointInfo.getCacheKey).
+     * 
+     * @param libraryContentProvider the libraryContentProvider to add to the
+     *                               evaluation context
+     * @param endpoint               the content endpoint of the
+     *                               LibraryContentProvider (e.g. the url of a
+     *                               FHIR server and a hash of its credentials)
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withLibraryContentProvider(LibraryContentProvider libraryContentProvider,
+            String endpoint) {
+        requireNonNull(endpoint, "endpoint can not be null");
+
+        this.withLibraryContentProvider(libraryContentProvider);
+        this.libraryContentEndpoints.put(libraryContentProvider, endpoint);
+        return this;
+    }
+
     /**
      * Adds a TerminologyProvider to the list of TerminologyProviders that may be
      * used during evaluation. This function uses FILO semantics. The first
@@ -119,6 +184,44 @@ public class CqlEvaluatorBuilder {
         return this;
     }
 
+    /**
+     * Adds a TerminologyProvider for a terminology endpoint to the list of
+     * TerminologyProviders that may be used during evaluation. If a
+     * TerminologyCache is specified, the expansions of the TerminologyProvider are
+     * cached under the endpoint and shared with other evaluators. Evaluators that
+     * use the same endpoint share expansions, so the endpoint must distinguish
+     * the credentials used to access the terminology (see
+     * EndpointInfo.getCacheKey).
+     * 
+     * @param terminologyProvider the TerminologyProvider to add to the evaluation
+     *                            context
+     * @param endpoint            the terminology endpoint of the
+     *                            TerminologyProvider (e.g. the url of a
+     *                            terminology server and a hash of its
+     *                            credentials)
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withTerminologyProvider(TerminologyProvider terminologyProvider, String endpoint) {
+        requireNonNull(endpoint, "endpoint can not be null");
+
+        this.withTerminologyProvider(terminologyProvider);
+        this.terminologyEndpoints.put(terminologyProvider, endpoint);
+        return this;
+    }
+
+    /**
+     * Specifies a TerminologyCache to share ValueSet expansions across
+     * evaluators. Only TerminologyProviders added with an endpoint use the cache,
+     * and the cache is not used when ValueSet expansion is disabled.
+     * 
+     * @param terminologyCache the TerminologyCache to use
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withTerminologyCache(TerminologyCache terminologyCache) {
+        this.terminologyCache = terminologyCache;
+        return this;
+    }
+
     /**
      * Adds a ModelResolver for a given model to the evaluation context. There may
      * only be one ModelResolver for a given model.
@@ -246,6 +349,34 @@ public class CqlEvaluatorBuilder {
         return this;
     }
 
+    /**
+     * Specifies a LibraryCache to share compiled Libraries across evaluators. The
+     * cache is only used if every LibraryContentProvider was added with an
+     * endpoint, since Libraries from other sources (e.g. a Bundle) may differ
+     * between evaluations. Otherwise the Library cache set by withLibraryCache is
+     * used.
+     * 
+     * @param sharedLibraryCache the LibraryCache to use
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withSharedLibraryCache(LibraryCache sharedLibraryCache) {
+        this.sharedLibraryCache = sharedLibraryCache;
+        return this;
+    }
+
+    /**
+     * Specifies an ElmCache to persist translated ELM across processes. CQL
+     * content that has been translated with the same translator options is
+     * loaded from the cache rather than translated again.
+     * 
+     * @param elmCache the ElmCache to use
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withElmCache(ElmCache elmCache) {
+        this.elmCache = elmCache;
+        return this;
+    }
+
     /**
      * Specifies the configuration to use for the RetrieveProviders. This will be
      * applied to all registered RetrieveProviders. If you want to configure each
@@ -260,6 +391,91 @@ public class CqlEvaluatorBuilder {
         return this;
     }
 
+    /**
+     * Sets whether the results of retrieves are memoized for the duration of each
+     * context value (e.g. Patient), so that repeated retrieves with the same
+     * signature are not issued to the RetrieveProviders again. Retrieves without a
+     * context value are not memoized. Memoization is off by default.
+     * 
+     * @param memoizeRetrieves whether to memoize retrieves
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withMemoizedRetrieves(Boolean memoizeRetrieves) {
+        this.memoizeRetrieves = memoizeRetrieves;
+        return this;
+    }
+
+    /**
+     * Specifies an ExecutorService used to issue retrieves to all the
+     * RetrieveProviders registered for a model concurrently. The result of the
+     * highest priority RetrieveProvider that returns data is used, the same as when
+     * the RetrieveProviders are queried one at a time. The ExecutorService should
+     * be bounded (e.g. a fixed thread pool) and is not shut down by the
+     * CqlEvaluator. If no ExecutorService is specified, RetrieveProviders are
+     * queried one at a time.
+     * 
+     * The RetrieveProviders share the TerminologyProvider of the evaluator, so the
+     * RetrieveProviders and the TerminologyProviders added to the builder must be
+     * safe to use from multiple threads. The caching decorators the builder adds
+     * are thread-safe.
+     * 
+     * @param retrieveExecutorService the ExecutorService to use for retrieves
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withConcurrentRetrieves(ExecutorService retrieveExecutorService) {
+        this.retrieveExecutorService = retrieveExecutorService;
+        return this;
+    }
+
+    /**
+     * Specifies an ExecutorService used to expand the ValueSets defined by a
+     * Library and its included Libraries concurrently when the Library is loaded,
+     * rather than when they are first used by the evaluation. The expansions are
+     * prefetched into the TerminologyCache, so this only applies to
+     * TerminologyProviders added with an endpoint when a TerminologyCache is
+     * specified. The ExecutorService should be bounded (e.g. a fixed thread pool)
+     * and is not shut down by the CqlEvaluator.
+     * 
+     * @param valueSetPrefetchExecutorService the ExecutorService to use for
+     *                                        ValueSet expansion
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withValueSetPrefetch(ExecutorService valueSetPrefetchExecutorService) {
+        this.valueSetPrefetchExecutorService = valueSetPrefetchExecutorService;
+        return this;
+    }
+
+    /**
+     * Specifies a LibraryTranslationService shared by evaluators to translate CQL
+     * libraries. Concurrent loads of different libraries by different evaluators
+     * are translated in parallel, concurrent loads of the same library share a
+     * translation, and included libraries (e.g. FHIRHelpers) are translated once
+     * per translator rather than once per evaluator. The service is only used if
+     * every LibraryContentProvider was added with an endpoint, since the
+     * translated libraries are shared by content source. Otherwise each evaluator
+     * translates libraries itself.
+     * 
+     * @param libraryTranslationService the LibraryTranslationService to use
+     * @return this CqlEvaluatorBuilder
+     */
+    public CqlEvaluatorBuilder withLibraryTranslationService(LibraryTranslationService libraryTranslationService) {
+        this.libraryTranslationService = libraryTranslationService;
+        return this;
+    }
+
+    /**
+     * Creates a LibraryTranslationService that translates on the calling thread,
+     * with translators that share the global Model cache of the builder.
+     * 
+     * @param translatorPoolSize the maximum number of libraries translated
+     *                           concurrently for each content source
+     * @return a LibraryTranslationService
+     */
+    public static LibraryTranslationService createLibraryTranslationService(int translatorPoolSize) {
+        return new LibraryTranslationService(() -> new CacheAwareModelManager(globalModelCache), translatorPoolSize,
+                null);
+    }
+
     private Map<String, DataProvider> buildDataProviders(TerminologyProvider terminologyProvider) {
         Map<String, DataProvider> dataProviders = new HashMap<>();
 
@@ -281,28 +497,76 @@ public class CqlEvaluatorBuilder {
             }
 
             dataProviders.put(entry.getKey(),
-                    this.decorate(new CompositeDataProvider(modelResolver, new PriorityRetrieveProvider(providers))));
+                    this.decorate(new CompositeDataProvider(modelResolver, new PriorityRetrieveProvider(providers, this.retrieveExecutorService))));
         }
 
         return dataProviders;
     }
 
-    private LibraryLoader buildLibraryLoader() {
+    private void buildLibraryContentProviders() {
         Collections.reverse(this.libraryContentProviders);
         if (this.useEmbeddedLibraries) {
             this.libraryContentProviders.add(new EmbeddedFhirLibraryContentProvider());
         }
+    }
+
+    private LibraryLoader buildLibraryLoader() {
+        this.buildLibraryContentProviders();
 
-        TranslatorOptionAwareLibraryLoader libraryLoader = new TranslatingLibraryLoader(
-                new CacheAwareModelManager(globalModelCache), libraryContentProviders, this.cqlTranslatorOptions);
-        if (this.libraryCache != null) {
+        String contentSource = this.getLibraryContentSource();
+        TranslatorOptionAwareLibraryLoader libraryLoader;
+        if (this.libraryTranslationService != null && contentSource != null) {
+            libraryLoader = new TranslatingLibraryLoader(this.libraryTranslationService, contentSource,
+                    this.libraryContentProviders, this.cqlTranslatorOptions, this.elmCache);
+        } else {
+            libraryLoader = new TranslatingLibraryLoader(new CacheAwareModelManager(globalModelCache),
+                    libraryContentProviders, this.cqlTranslatorOptions, this.elmCache);
+        }
+
+        if (this.sharedLibraryCache != null && contentSource != null) {
+            libraryLoader = new SharedCachingLibraryLoaderDecorator(libraryLoader, this.sharedLibraryCache,
+                    contentSource);
+        } else if (this.libraryCache != null) {
             libraryLoader = new CacheAwareLibraryLoaderDecorator(libraryLoader, this.libraryCache);
         }
 
         return this.decorate(libraryLoader);
     }
 
+    // Identifies the LibraryContentProviders by their endpoints, in the order they are searched
+    private String getLibraryContentSource() {
+        List<String> endpoints = new ArrayList<>();
+        for (LibraryContentProvider libraryContentProvider : this.libraryContentProviders) {
+            if (libraryContentProvider instanceof EmbeddedFhirLibraryContentProvider) {
+                endpoints.add(EMBEDDED_CONTENT_SOURCE);
+                continue;
+            }
+
+            String endpoint = this.libraryContentEndpoints.get(libraryContentProvider);
+            if (endpoint == null) {
+                logger.debug("A LibraryContentProvider does not have an endpoint. Libraries will not be shared.");
+                return null;
+            }
+
+            endpoints.add(endpoint);
+        }
+
+        return String.join(",", endpoints);
+    }
+
     private TerminologyProvider buildTerminologyProvider() {
+        // The shared cache checks membership by expanding the ValueSet, so it is not
+        // used when expansion is disabled
+        if (this.terminologyCache != null && this.retrieveProviderConfig.getExpandValueSets()) {
+            for (int i = 0; i < this.terminologyProviders.size(); i++) {
+                String endpoint = this.terminologyEndpoints.get(this.terminologyProviders.get(i));
+                if (endpoint != null) {
+                    this.terminologyProviders.set(i, new SharedCachingTerminologyProviderDecorator(
+                            this.terminologyProviders.get(i), this.terminologyCache, endpoint));
+                }
+            }
+        }
+
         TerminologyProvider terminologyProvider = null;
         if (terminologyProviders.size() > 1) {
             Collections.reverse(this.terminologyProviders);
@@ -318,11 +582,50 @@ public class CqlEvaluatorBuilder {
         return terminologyProvider;
     }
 
+    private LibraryLoader buildValueSetPrefetch(LibraryLoader libraryLoader) {
+        if (this.valueSetPrefetchExecutorService == null) {
+            return libraryLoader;
+        }
+
+        // Only the shared cache outlives the prefetch, so the other TerminologyProviders are not used
+        List<TerminologyProvider> cachedProviders = new ArrayList<>();
+        for (TerminologyProvider terminologyProvider : this.terminologyProviders) {
+            if (terminologyProvider instanceof SharedCachingTerminologyProviderDecorator) {
+                cachedProviders.add(terminologyProvider);
+            }
+        }
+
+        if (cachedProviders.isEmpty()) {
+            logger.debug("No TerminologyProviders use a TerminologyCache. ValueSets will not be prefetched.");
+            return libraryLoader;
+        }
+
+        TerminologyProvider prefetchProvider = cachedProviders.size() > 1
+                ? new PriorityTerminologyProvider(cachedProviders)
+                : cachedProviders.get(0);
+
+        return new ValueSetPrefetchingLibraryLoaderDecorator(libraryLoader, prefetchProvider,
+                this.valueSetPrefetchExecutorService);
+    }
+
     protected DataProvider decorate(DataProvider dataProvider) {
-        return dataProvider;
+        if (!this.memoizeRetrieves) {
+            return dataProvider;
+        }
+
+        // Memoize retrieves for the duration of each context value (e.g. Patient)
+        return new CompositeDataProvider(dataProvider, new PrivateCachingRetrieveProviderDecorator(dataProvider));
     }
 
     protected TerminologyProvider decorate(TerminologyProvider terminologyProvider) {
+        // The private cache checks membership by expanding the ValueSet, so it is not
+        // used when expansion is disabled. Membership checks then reach the
+        // TerminologyProviders (e.g. batched $validate-code requests to a terminology
+        // server).
+        if (!this.retrieveProviderConfig.getExpandValueSets()) {
+            return terminologyProvider;
+        }
+
         return new PrivateCachingTerminologyProviderDecorator(terminologyProvider);
     }
 
@@ -330,6 +633,63 @@ public class CqlEvaluatorBuilder {
         return libraryLoader;
     }
 
+    /**
+     * Compiles a set of Libraries and the Libraries they include into the shared
+     * LibraryCache, so that evaluators built later with the same
+     * LibraryContentProviders, translator options, and LibraryCache do not
+     * compile them. Libraries are compiled after the Libraries they include, and
+     * Libraries that do not depend on each other are compiled concurrently. Every
+     * LibraryContentProvider must have been added with an endpoint, and a shared
+     * LibraryCache must be specified.
+     * 
+     * Libraries are translated with the LibraryTranslationService if one is
+     * specified, and otherwise with a translator for each processor. The
+     * LibraryTranslationService should translate on the calling thread (i.e. have
+     * no Executor), since the Libraries are already loaded on the ExecutorService.
+     * 
+     * NOTE: Like build(), this may only be called once per instance.
+     * 
+     * @param libraryIdentifiers the identifiers of the Libraries to compile
+     * @param executorService    the ExecutorService used to compile Libraries.
+     *                           The ExecutorService is not shut down.
+     * @return a report of the time taken to compile each Library and of the
+     *         Libraries that could not be compiled
+     */
+    public LibraryWarmUpReport warmUp(
+            Collection<org.cqframework.cql.elm.execution.VersionedIdentifier> libraryIdentifiers,
+            ExecutorService executorService) {
+        requireNonNull(libraryIdentifiers, "libraryIdentifiers can not be null");
+        requireNonNull(executorService, "executorService can not be null");
+
+        if (this.stale) {
+            throw new IllegalStateException(
+                    "This instance of the CqlEvaluatorBuilder has already been used. Please instantiate a new instance to warm up another LibraryCache.");
+        }
+
+        if (this.sharedLibraryCache == null) {
+            throw new IllegalStateException("A shared LibraryCache must be specified to warm up Libraries.");
+        }
+
+        this.stale = true;
+
+        this.buildLibraryContentProviders();
+        String contentSource = this.getLibraryContentSource();
+        if (contentSource == null) {
+            throw new IllegalStateException(
+                    "Every LibraryContentProvider must be added with an endpoint to warm up Libraries.");
+        }
+
+        // Each Library is translated on the thread that loads it, since the loads already run on the ExecutorService
+        LibraryTranslationService translationService = this.libraryTranslationService != null
+                ? this.libraryTranslationService
+                : createLibraryTranslationService(Runtime.getRuntime().availableProcessors());
+        TranslatingLibraryLoader libraryLoader = new TranslatingLibraryLoader(translationService, contentSource,
+                this.libraryContentProviders, this.cqlTranslatorOptions, this.elmCache);
+
+        return new LibraryWarmer(libraryLoader, this.libraryContentProviders, this.sharedLibraryCache, contentSource)
+                .warmUp(libraryIdentifiers, executorService);
+    }
+
     /**
      * Builds a CqlEvaluator that uses all content, data, terminology sources
      * supplied, and has the appropriate configuration applied.
@@ -350,6 +710,7 @@ public class CqlEvaluatorBuilder {
         
         LibraryLoader libraryLoader = this.buildLibraryLoader();
         TerminologyProvider terminologyProvider = this.buildTerminologyProvider();
+        libraryLoader = this.buildValueSetPrefetch(libraryLoader);
         Map<String, DataProvider> dataProviders = this.buildDataProviders(terminologyProvider);
 
         return new CqlEvaluator(libraryLoader, dataProviders, terminologyProvider, this.engineOptions);
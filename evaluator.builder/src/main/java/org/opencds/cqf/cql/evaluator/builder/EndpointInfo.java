@@ -1,8 +1,11 @@
 package org.opencds.cqf.cql.evaluator.builder;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.opencds.cqf.cql.evaluator.engine.util.FileCacheUtil;
 
 public class EndpointInfo {
     private String address;
@@ -35,4 +38,23 @@ public class EndpointInfo {
         this.headers = headers;
         return this;
     }
+
+    /**
+     * Returns the key under which content from this endpoint is shared by the
+     * TerminologyCache and LibraryCache. The key is the address followed by a hash
+     * of the headers, so requests that use different credentials for the same
+     * address do not share content, and the credentials themselves are not held
+     * in the key.
+     * 
+     * @return the cache key, or null if there is no address
+     */
+    public String getCacheKey() {
+        if (this.address == null || this.headers == null || this.headers.isEmpty()) {
+            return this.address;
+        }
+
+        List<String> sorted = new ArrayList<>(this.headers);
+        Collections.sort(sorted);
+        return this.address + "#" + FileCacheUtil.hash(String.join("\n", sorted));
+    }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ public class RetrieveProviderConfig {
     private int maxCodesPerQuery = 64;
     private SearchStyleEnum searchStyle = SearchStyleEnum.GET;
     private boolean expandValueSets = true;
+    private int subjectPrefetchChunkSize = 0;
 
     public int getMaxCodesPerQuery() {
         return this.maxCodesPerQuery;
@@ -40,4 +41,20 @@ public class RetrieveProviderConfig {
         this.expandValueSets = value;
         return this;
     }
-}
\ No newline at end of file
+
+    /**
+     * The number of subjects to fetch data for with each search when evaluating
+     * a population against a FHIR REST data endpoint. A value of 0, the default,
+     * disables prefetching.
+     * 
+     * @return the number of subjects per prefetch search
+     */
+    public int getSubjectPrefetchChunkSize() {
+        return this.subjectPrefetchChunkSize;
+    }
+
+    public RetrieveProviderConfig setSubjectPrefetchChunkSize(int value) {
+        this.subjectPrefetchChunkSize = value;
+        return this;
+    }
+}
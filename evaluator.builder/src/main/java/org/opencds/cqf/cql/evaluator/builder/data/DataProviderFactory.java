@@ -4,6 +4,12 @@ import static org.opencds.cqf.cql.evaluator.builder.util.UriUtil.isFileUri;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Set;
 
@@ -20,6 +26,7 @@ import org.opencds.cqf.cql.evaluator.builder.Constants;
 import org.opencds.cqf.cql.evaluator.builder.EndpointInfo;
 import org.opencds.cqf.cql.evaluator.builder.ModelResolverFactory;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.BundleRetrieveProvider;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.NdjsonResourceIndex;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.NoOpRetrieveProvider;
 
 import ca.uhn.fhir.context.FhirContext;
@@ -61,13 +68,27 @@ public class DataProviderFactory implements org.opencds.cqf.cql.evaluator.builde
             return null;
         }
 
-        if (isFileUri(url)) {
+        if (isFileUri(url) && url.endsWith(Constants.FHIR_STORE_EXTENSION)) {
+            return Constants.HL7_FHIR_STORE_CODE;
+        } else if (isFileUri(url) && (url.endsWith(NdjsonResourceIndex.NDJSON_EXTENSION) || isNdjsonDirectory(url))) {
+            return Constants.HL7_FHIR_NDJSON_CODE;
+        } else if (isFileUri(url)) {
             return Constants.HL7_FHIR_FILES_CODE;
         } else {
             return Constants.HL7_FHIR_REST_CODE;
         }
     }
 
+    // A directory of NDJSON files (e.g. the output of a $export)
+    private static boolean isNdjsonDirectory(String url) {
+        try {
+            Path path = url.startsWith("file:") ? Paths.get(new URI(url)) : Paths.get(url);
+            return Files.isDirectory(path) && NdjsonResourceIndex.hasNdjsonFiles(path);
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            return false;
+        }
+    }
+
     public String detectModel(String url, IBaseCoding connectionType) {
         if (connectionType == null) {
             return null;
@@ -76,6 +97,8 @@ public class DataProviderFactory implements org.opencds.cqf.cql.evaluator.builde
         switch (connectionType.getCode()) {
             case Constants.HL7_FHIR_FILES:
             case Constants.HL7_FHIR_REST:
+            case Constants.HL7_FHIR_STORE:
+            case Constants.HL7_FHIR_NDJSON:
                 return Constants.FHIR_MODEL_URI;
             default:
                 return null;
@@ -0,0 +1,124 @@
+package org.opencds.cqf.cql.evaluator.builder.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.evaluator.builder.Constants;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.NdjsonResourceIndex;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PatientPartitionedRetrieveProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Creates a RetrieveProvider for FHIR Bulk Data NDJSON files. The url is either a single NDJSON file, or a directory
+ * of NDJSON files (e.g. the output of a $export).
+ *
+ * Each file or directory is indexed once and the index is shared by the RetrieveProviders created for the same path,
+ * so changes to the files after they are indexed are not seen. The files are closed when the factory is closed or
+ * the JVM shuts down.
+ */
+@Named
+public class FhirNdjsonRetrieveProviderFactory implements TypedRetrieveProviderFactory, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirNdjsonRetrieveProviderFactory.class);
+
+    FhirContext fhirContext;
+
+    private final ConcurrentMap<Path, NdjsonResourceIndex> indexes = new ConcurrentHashMap<>();
+    private final Object shutdownHookLock = new Object();
+    private Thread shutdownHook;
+
+    @Inject
+    public FhirNdjsonRetrieveProviderFactory(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    @Override
+    public String getType() {
+        return Constants.HL7_FHIR_NDJSON;
+    }
+
+    @Override
+    public RetrieveProvider create(String url, List<String> headers) {
+        try {
+            Path path = (url.startsWith("file:") ? Paths.get(new URI(url)) : Paths.get(url)).toAbsolutePath()
+                    .normalize();
+
+            return new PatientPartitionedRetrieveProvider(this.fhirContext,
+                    this.indexes.computeIfAbsent(path, this::index));
+        } catch (Exception e) {
+            throw new RuntimeException(String.format("error indexing NDJSON files: %s", url), e);
+        }
+    }
+
+    private NdjsonResourceIndex index(Path path) {
+        try {
+            NdjsonResourceIndex index = Files.isDirectory(path)
+                    ? NdjsonResourceIndex.forDirectory(this.fhirContext, path)
+                    : new NdjsonResourceIndex(this.fhirContext, Collections.singletonList(path));
+
+            synchronized (this.shutdownHookLock) {
+                if (this.shutdownHook == null) {
+                    this.shutdownHook = new Thread(this::closeIndexes);
+                    Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+                }
+            }
+
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes the files indexed by the factory. RetrieveProviders created by the factory can not be used after it is
+     * closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this.shutdownHookLock) {
+            if (this.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                } catch (IllegalStateException e) {
+                    // The JVM is shutting down, and the hook closes the files
+                    return;
+                }
+
+                this.shutdownHook = null;
+            }
+        }
+
+        this.closeIndexes();
+    }
+
+    private void closeIndexes() {
+        for (Path path : this.indexes.keySet()) {
+            NdjsonResourceIndex index = this.indexes.remove(path);
+            if (index == null) {
+                continue;
+            }
+
+            try {
+                index.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close NDJSON files {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
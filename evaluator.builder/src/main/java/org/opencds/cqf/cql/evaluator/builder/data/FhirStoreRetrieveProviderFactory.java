@@ -0,0 +1,148 @@
+package org.opencds.cqf.cql.evaluator.builder.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.evaluator.builder.Constants;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PatientPartitionedRetrieveProvider;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PatientResourceStore;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PatientResourceStoreImporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Creates a RetrieveProvider for a PatientResourceStore. The url is either the path of a store, or a directory of
+ * FHIR resources which is imported into a temporary store.
+ *
+ * Each store is opened once and shared by the RetrieveProviders created for the same path, so a directory is only
+ * imported the first time it is used. Changes to a directory after it is imported are not seen. The stores are
+ * closed, and the temporary stores deleted, when the factory is closed or the JVM shuts down.
+ */
+@Named
+public class FhirStoreRetrieveProviderFactory implements TypedRetrieveProviderFactory, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirStoreRetrieveProviderFactory.class);
+
+    FhirContext fhirContext;
+
+    private final ConcurrentMap<Path, PatientResourceStore> stores = new ConcurrentHashMap<>();
+    private final Queue<Path> temporaryStores = new ConcurrentLinkedQueue<>();
+    private final Object shutdownHookLock = new Object();
+    private Thread shutdownHook;
+
+    @Inject
+    public FhirStoreRetrieveProviderFactory(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    @Override
+    public String getType() {
+        return Constants.HL7_FHIR_STORE;
+    }
+
+    @Override
+    public RetrieveProvider create(String url, List<String> headers) {
+        try {
+            Path path = (url.startsWith("file:") ? Paths.get(new URI(url)) : Paths.get(url)).toAbsolutePath()
+                    .normalize();
+
+            return new PatientPartitionedRetrieveProvider(this.fhirContext,
+                    this.stores.computeIfAbsent(path, this::open));
+        } catch (Exception e) {
+            throw new RuntimeException(String.format("error opening FHIR resource store: %s", url), e);
+        }
+    }
+
+    private PatientResourceStore open(Path path) {
+        try {
+            if (!Files.isDirectory(path)) {
+                return new PatientResourceStore(this.fhirContext, path);
+            }
+
+            Path storePath = Files.createTempFile("cql-evaluator", Constants.FHIR_STORE_EXTENSION);
+            try {
+                new PatientResourceStoreImporter(this.fhirContext).importDirectory(path.toString(), storePath);
+                PatientResourceStore store = new PatientResourceStore(this.fhirContext, storePath);
+                this.addTemporaryStore(storePath);
+                return store;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(storePath);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void addTemporaryStore(Path storePath) {
+        this.temporaryStores.add(storePath);
+        synchronized (this.shutdownHookLock) {
+            if (this.shutdownHook == null) {
+                this.shutdownHook = new Thread(this::closeStores);
+                Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+            }
+        }
+    }
+
+    /**
+     * Closes the stores opened by the factory and deletes the temporary stores. RetrieveProviders created by the
+     * factory can not be used after it is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this.shutdownHookLock) {
+            if (this.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                } catch (IllegalStateException e) {
+                    // The JVM is shutting down, and the hook closes the stores
+                    return;
+                }
+
+                this.shutdownHook = null;
+            }
+        }
+
+        this.closeStores();
+    }
+
+    private void closeStores() {
+        for (Path path : this.stores.keySet()) {
+            PatientResourceStore store = this.stores.remove(path);
+            if (store == null) {
+                continue;
+            }
+
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close FHIR resource store: {}", e.getMessage());
+            }
+        }
+
+        for (Path storePath = this.temporaryStores.poll(); storePath != null; storePath = this.temporaryStores
+                .poll()) {
+            try {
+                Files.deleteIfExists(storePath);
+            } catch (IOException e) {
+                logger.warn("Unable to delete temporary FHIR resource store {}: {}", storePath, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.opencds.cqf.cql.evaluator.builder.library;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.evaluator.builder.CqlEvaluatorBuilder;
+import org.opencds.cqf.cql.evaluator.builder.EndpointInfo;
+import org.opencds.cqf.cql.evaluator.builder.LibraryContentProviderFactory;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryWarmUpReport;
+
+/**
+ * This class compiles the Libraries of a content endpoint into the shared
+ * LibraryCache ahead of evaluation (e.g. when a server starts), so that the
+ * first evaluations of the Libraries do not pay for their translation.
+ */
+@Named
+public class LibraryWarmUpService {
+
+    private LibraryContentProviderFactory libraryContentProviderFactory;
+    private LibraryCache libraryCache;
+    private Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier;
+
+    @Inject
+    public LibraryWarmUpService(LibraryContentProviderFactory libraryContentProviderFactory,
+            LibraryCache libraryCache, Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier) {
+        this.libraryContentProviderFactory = requireNonNull(libraryContentProviderFactory,
+                "libraryContentProviderFactory can not be null");
+        this.libraryCache = requireNonNull(libraryCache, "libraryCache can not be null");
+        this.cqlEvaluatorBuilderSupplier = requireNonNull(cqlEvaluatorBuilderSupplier,
+                "cqlEvaluatorBuilderSupplier can not be null");
+    }
+
+    /**
+     * Compiles a set of Libraries of a content endpoint and the Libraries they
+     * include. The Libraries are cached under the address of the endpoint, so they
+     * are used by evaluations of Libraries from the same endpoint with the same
+     * translator options.
+     *
+     * @param libraryEndpoint    the endpoint of the Library content
+     * @param libraryIdentifiers the identifiers of the Libraries to compile
+     * @param translatorOptions  the translator options to compile with, or null
+     *                           for the default options
+     * @param executorService    the ExecutorService used to compile Libraries.
+     *                           The ExecutorService is not shut down.
+     * @return a report of the time taken to compile each Library and of the
+     *         Libraries that could not be compiled
+     */
+    public LibraryWarmUpReport warmUp(EndpointInfo libraryEndpoint, Collection<VersionedIdentifier> libraryIdentifiers,
+            CqlTranslatorOptions translatorOptions, ExecutorService executorService) {
+        requireNonNull(libraryEndpoint, "libraryEndpoint can not be null");
+        requireNonNull(libraryEndpoint.getAddress(), "libraryEndpoint address can not be null");
+
+        CqlEvaluatorBuilder cqlEvaluatorBuilder = this.cqlEvaluatorBuilderSupplier.get()
+                .withLibraryContentProvider(this.libraryContentProviderFactory.create(libraryEndpoint),
+                        libraryEndpoint.getCacheKey())
+                .withSharedLibraryCache(this.libraryCache);
+
+        if (translatorOptions != null) {
+            cqlEvaluatorBuilder.withCqlTranslatorOptions(translatorOptions);
+        }
+
+        return cqlEvaluatorBuilder.warmUp(libraryIdentifiers, executorService);
+    }
+}
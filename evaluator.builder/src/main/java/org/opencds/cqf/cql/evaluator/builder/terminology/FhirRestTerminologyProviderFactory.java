@@ -11,6 +11,7 @@ import org.opencds.cqf.cql.engine.fhir.terminology.Dstu3FhirTerminologyProvider;
 import org.opencds.cqf.cql.engine.fhir.terminology.R4FhirTerminologyProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.evaluator.builder.Constants;
+import org.opencds.cqf.cql.evaluator.engine.terminology.BatchingTerminologyProviderDecorator;
 import org.opencds.cqf.cql.evaluator.fhir.ClientFactory;
 
 import ca.uhn.fhir.context.FhirContext;
@@ -38,13 +39,21 @@ public class FhirRestTerminologyProviderFactory implements TypedTerminologyProvi
     public TerminologyProvider create(String url, List<String> headers) {
         IGenericClient client = this.clientFactory.create(url, headers);
 
+        TerminologyProvider terminologyProvider;
         switch (this.fhirContext.getVersion().getVersion()) {
             case DSTU3:
-                return new Dstu3FhirTerminologyProvider(client);
+                terminologyProvider = new Dstu3FhirTerminologyProvider(client);
+                break;
             case R4:
-                return new R4FhirTerminologyProvider(client);
+                terminologyProvider = new R4FhirTerminologyProvider(client);
+                break;
             default:
                 throw new IllegalArgumentException(String.format("unsupported FHIR version: %s", fhirContext));
         }
+
+        // Membership checks that reach the provider are sent to the server in batches of $validate-code requests.
+        // Expansions are passed through, so when the evaluator expands ValueSets (see
+        // RetrieveProviderConfig.getExpandValueSets) membership is answered from its caches instead.
+        return new BatchingTerminologyProviderDecorator(terminologyProvider, client);
     }  
 }
@@ -1,7 +1,9 @@
 package org.opencds.cqf.cql.evaluator.cql2elm.content;
 
 import java.io.InputStream;
-
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.hl7.elm.r1.VersionedIdentifier;
@@ -21,6 +23,35 @@ public interface LibraryContentProvider extends LibrarySourceProvider {
      */
     InputStream getLibraryContent(VersionedIdentifier libraryIdentifier, LibraryContentType libraryContentType);
 
+    /**
+     * Get content of a library in each of the formats specified that it is available in, so that a library only has to
+     * be found once to choose between its formats. If the versionedIdentifier has a version specified it returns
+     * the nearest compatible version. If a version is not specified it returns the highest version.
+     * 
+     * Formats that are not available or not supported are omitted. The caller should close the content it does not use.
+     * @param libraryIdentifier The identifier of the library to provide content for.
+     * @param libraryContentTypes The formats of the content to return
+     * @return Map the library content of each available format, which is empty if no compatible version is found
+     */
+    default Map<LibraryContentType, InputStream> getLibraryContents(VersionedIdentifier libraryIdentifier,
+            Set<LibraryContentType> libraryContentTypes) {
+        Map<LibraryContentType, InputStream> contents = new EnumMap<>(LibraryContentType.class);
+        for (LibraryContentType libraryContentType : libraryContentTypes) {
+            InputStream content;
+            try {
+                content = getLibraryContent(libraryIdentifier, libraryContentType);
+            } catch (UnsupportedOperationException e) {
+                continue;
+            }
+
+            if (content != null) {
+                contents.put(libraryContentType, content);
+            }
+        }
+
+        return contents;
+    }
+
     /**
      * Gets the content of a  library as CQL text. If the versionedIdentifier has a version specified it returns
      * the nearest compatible version. If a version is not specified it returns the highest version. If no compatible
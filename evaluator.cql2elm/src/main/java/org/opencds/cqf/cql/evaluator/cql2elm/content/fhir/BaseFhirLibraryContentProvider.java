@@ -4,6 +4,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -32,21 +35,55 @@ public abstract class BaseFhirLibraryContentProvider
         requireNonNull(libraryIdentifier, "versionedIdentifier can not be null.");
         requireNonNull(libraryContentType, "libraryContentType can not be null.");
 
+        String contentType = getContentType(libraryContentType);
+        if (contentType == null) {
+            throw new UnsupportedOperationException(String.format("This content provider does not support the %s LibraryContentType", libraryContentType.toString()));
+        }
+
         IBaseResource library = this.getLibrary(libraryIdentifier);
         if (library == null) {
             return null;
         }
 
+        return this.getContentStream(library, contentType);
+    }
+
+    // Fetches the Library once for all the content types
+    @Override
+    public Map<LibraryContentType, InputStream> getLibraryContents(VersionedIdentifier libraryIdentifier,
+            Set<LibraryContentType> libraryContentTypes) {
+        requireNonNull(libraryIdentifier, "versionedIdentifier can not be null.");
+        requireNonNull(libraryContentTypes, "libraryContentTypes can not be null.");
+
+        Map<LibraryContentType, InputStream> contents = new EnumMap<>(LibraryContentType.class);
+        IBaseResource library = this.getLibrary(libraryIdentifier);
+        if (library == null) {
+            return contents;
+        }
+
+        for (LibraryContentType libraryContentType : libraryContentTypes) {
+            String contentType = getContentType(libraryContentType);
+            InputStream content = contentType != null ? this.getContentStream(library, contentType) : null;
+            if (content != null) {
+                contents.put(libraryContentType, content);
+            }
+        }
+
+        return contents;
+    }
+
+    // Returns the attachment content type of a LibraryContentType, or null if it is not supported
+    private static String getContentType(LibraryContentType libraryContentType) {
         switch(libraryContentType) {
-            case CQL: return this.getContentStream(library, "text/cql");
-            case XML: return this.getContentStream(library, "application/elm+xml");
+            case CQL: return "text/cql";
+            case XML: return "application/elm+xml";
             case JXSON: 
             case JSON:
-                return this.getContentStream(library, "application/elm+json");
+                return "application/elm+json";
+            case BINARY: return "application/elm+binary";
             case COFFEE:
             default:
-                throw new UnsupportedOperationException(String.format("This content provider does not support the %s LibraryContentType", libraryContentType.toString()));
-
+                return null;
         }
     }
 
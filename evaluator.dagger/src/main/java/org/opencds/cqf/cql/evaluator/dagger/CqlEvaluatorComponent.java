@@ -6,6 +6,7 @@ import org.opencds.cqf.cql.evaluator.builder.CqlEvaluatorBuilder;
 import org.opencds.cqf.cql.evaluator.builder.DataProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.LibraryContentProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.TerminologyProviderFactory;
+import org.opencds.cqf.cql.evaluator.builder.library.LibraryWarmUpService;
 import org.opencds.cqf.cql.evaluator.dagger.library.LibraryModule;
 import org.opencds.cqf.cql.evaluator.expression.ExpressionEvaluator;
 import org.opencds.cqf.cql.evaluator.library.LibraryProcessor;
@@ -24,6 +25,7 @@ public interface CqlEvaluatorComponent {
     TerminologyProviderFactory createTerminologyProviderFactory();
     LibraryContentProviderFactory createLibraryContentProviderFactory();
     ExpressionEvaluator createExpressionEvaluator();
+    LibraryWarmUpService createLibraryWarmUpService();
 
 
   @Component.Builder
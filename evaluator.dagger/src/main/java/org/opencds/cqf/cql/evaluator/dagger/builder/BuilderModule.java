@@ -12,7 +12,9 @@ import org.opencds.cqf.cql.evaluator.builder.ModelResolverFactory;
 import org.opencds.cqf.cql.evaluator.builder.RetrieveProviderConfig;
 import org.opencds.cqf.cql.evaluator.builder.data.FhirFileRetrieveProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.data.FhirModelResolverFactory;
+import org.opencds.cqf.cql.evaluator.builder.data.FhirNdjsonRetrieveProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.data.FhirRestRetrieveProviderFactory;
+import org.opencds.cqf.cql.evaluator.builder.data.FhirStoreRetrieveProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.data.TypedRetrieveProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.library.CqlFileLibraryContentProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.library.FhirFileLibraryContentProviderFactory;
@@ -22,6 +24,9 @@ import org.opencds.cqf.cql.evaluator.builder.terminology.FhirFileTerminologyProv
 import org.opencds.cqf.cql.evaluator.builder.terminology.FhirRestTerminologyProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.terminology.TypedTerminologyProviderFactory;
 import org.opencds.cqf.cql.evaluator.dagger.fhir.adapter.AdapterModule;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryTranslationService;
+import org.opencds.cqf.cql.evaluator.engine.terminology.TerminologyCache;
 
 import dagger.Module;
 import dagger.Provides;
@@ -43,6 +48,18 @@ public class BuilderModule {
         return RetrieveProviderConfig.defaultConfig();
     }
 
+    @Provides
+    @Singleton
+    TerminologyCache terminologyCache() {
+        return new TerminologyCache();
+    }
+
+    @Provides
+    @Singleton
+    LibraryCache libraryCache() {
+        return new LibraryCache();
+    }
+
     @Provides
     @ElementsIntoSet
     @Singleton
@@ -53,8 +70,8 @@ public class BuilderModule {
     @Provides
     @ElementsIntoSet
     @Singleton
-    Set<TypedRetrieveProviderFactory> typedRetrieveProviderFactories(FhirRestRetrieveProviderFactory fhirRestRetrieveProviderFactory, FhirFileRetrieveProviderFactory fhirFileRetrieveProviderFactory) {
-        return new HashSet<>(Arrays.asList(fhirRestRetrieveProviderFactory, fhirFileRetrieveProviderFactory));
+    Set<TypedRetrieveProviderFactory> typedRetrieveProviderFactories(FhirRestRetrieveProviderFactory fhirRestRetrieveProviderFactory, FhirFileRetrieveProviderFactory fhirFileRetrieveProviderFactory, FhirStoreRetrieveProviderFactory fhirStoreRetrieveProviderFactory, FhirNdjsonRetrieveProviderFactory fhirNdjsonRetrieveProviderFactory) {
+        return new HashSet<>(Arrays.asList(fhirRestRetrieveProviderFactory, fhirFileRetrieveProviderFactory, fhirStoreRetrieveProviderFactory, fhirNdjsonRetrieveProviderFactory));
     }
 
     @Provides
@@ -65,7 +82,13 @@ public class BuilderModule {
     }
 
     @Provides
-    Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier() {
-        return () -> new CqlEvaluatorBuilder();
+    @Singleton
+    LibraryTranslationService libraryTranslationService() {
+        return CqlEvaluatorBuilder.createLibraryTranslationService(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Provides
+    Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier(LibraryTranslationService libraryTranslationService) {
+        return () -> new CqlEvaluatorBuilder().withLibraryTranslationService(libraryTranslationService);
     }
 }
\ No newline at end of file
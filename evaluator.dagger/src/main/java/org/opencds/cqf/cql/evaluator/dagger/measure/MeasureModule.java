@@ -1,10 +1,25 @@
 package org.opencds.cqf.cql.evaluator.dagger.measure;
 
+import java.util.concurrent.ExecutorService;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
 import org.opencds.cqf.cql.evaluator.dagger.builder.BuilderModule;
+import org.opencds.cqf.cql.evaluator.measure.r4.MeasureProcessor;
 
 import dagger.Module;
+import dagger.Provides;
 
 @Module(includes = {BuilderModule.class})
 public class MeasureModule {
 
-}
\ No newline at end of file
+    private static final int VALUESET_PREFETCH_THREADS = 8;
+
+    @Provides
+    @Singleton
+    @Named(MeasureProcessor.VALUESET_PREFETCH_EXECUTOR)
+    ExecutorService valueSetPrefetchExecutorService() {
+        return MeasureProcessor.createValueSetPrefetchExecutorService(VALUESET_PREFETCH_THREADS);
+    }
+}
@@ -0,0 +1,142 @@
+package org.opencds.cqf.cql.evaluator.engine.elm;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cqframework.cql.elm.execution.Element;
+
+/**
+ * The constants and class metadata shared by the {@link BinaryLibraryWriter} and the {@link BinaryLibraryReader}.
+ *
+ * A document is the magic number, the format version, and the Library as a value. Each value starts with a tag byte.
+ * Strings and classes are written in full the first time they occur and as an index after that. The first occurrence
+ * of a class lists the names of its fields, and each object of the class is followed by the values of those fields in
+ * order, so fields are matched by name rather than by position when the document is read.
+ */
+final class BinaryLibraryFormat {
+
+    private BinaryLibraryFormat() {
+    }
+
+    static final int MAGIC = 0x454c4d42; // "ELMB"
+    static final int VERSION = 1;
+
+    static final byte NULL = 0;
+    static final byte OBJECT = 1;
+    static final byte STRING = 2;
+    static final byte TRUE = 3;
+    static final byte FALSE = 4;
+    static final byte ENUM = 5;
+    static final byte QNAME = 6;
+    static final byte DECIMAL = 7;
+    static final byte BIG_INTEGER = 8;
+    static final byte INTEGER = 9;
+    static final byte LIST = 10;
+    static final byte MAP = 11;
+
+    // Only the classes of the ELM execution model and its evaluators are written and instantiated
+    private static final String[] ALLOWED_PACKAGES = { "org.cqframework.cql.elm.execution.",
+            "org.opencds.cqf.cql.engine.elm.execution." };
+
+    private static final Map<Class<?>, ClassInfo> classInfos = new ConcurrentHashMap<>();
+
+    static boolean isAllowed(String className) {
+        for (String allowedPackage : ALLOWED_PACKAGES) {
+            if (className.startsWith(allowedPackage)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static ClassInfo getClassInfo(Class<?> clazz) {
+        return classInfos.computeIfAbsent(clazz, ClassInfo::new);
+    }
+
+    // Annotations are written as the maps that the JsonCqlLibraryReader creates for them. The translator options of
+    // the CqlToElmInfo annotations that other readers create are converted to maps, and other annotations are not
+    // written, since the engine does not use them.
+    static List<Object> toAnnotations(List<Object> annotations) {
+        if (annotations == null) {
+            return null;
+        }
+
+        List<Object> result = new ArrayList<>(annotations.size());
+        for (Object annotation : annotations) {
+            if (annotation instanceof Map) {
+                result.add(annotation);
+            } else if (annotation instanceof org.hl7.cql_annotations.r1.CqlToElmInfo) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("type", "CqlToElmInfo");
+                map.put("translatorOptions",
+                        ((org.hl7.cql_annotations.r1.CqlToElmInfo) annotation).getTranslatorOptions());
+                result.add(map);
+            }
+        }
+
+        return result;
+    }
+
+    static boolean isAnnotation(Field field) {
+        return field.getDeclaringClass() == Element.class && field.getName().equals("annotation");
+    }
+
+    static class ClassInfo {
+        final Class<?> clazz;
+        final Constructor<?> constructor;
+        final List<Field> fields;
+        final Map<String, Field> fieldsByName;
+
+        ClassInfo(Class<?> clazz) {
+            this.clazz = clazz;
+            if (clazz.isEnum()) {
+                this.constructor = null;
+                this.fields = Collections.emptyList();
+                this.fieldsByName = Collections.emptyMap();
+                return;
+            }
+
+            try {
+                this.constructor = clazz.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(
+                        String.format("Class %s does not have a default constructor", clazz.getName()), e);
+            }
+
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+                hierarchy.add(0, current);
+            }
+
+            this.fields = new ArrayList<>();
+            this.fieldsByName = new LinkedHashMap<>();
+            for (Class<?> current : hierarchy) {
+                for (Field field : current.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+
+                    field.setAccessible(true);
+                    this.fields.add(field);
+                    // Fields are written with their simple names, so a field hidden by a subclass is read into the
+                    // subclass field
+                    this.fieldsByName.put(field.getName(), field);
+                }
+            }
+        }
+
+        Object newInstance() throws ReflectiveOperationException {
+            return this.constructor.newInstance();
+        }
+    }
+}
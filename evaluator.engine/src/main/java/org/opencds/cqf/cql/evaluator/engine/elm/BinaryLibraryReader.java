@@ -0,0 +1,241 @@
+package org.opencds.cqf.cql.evaluator.engine.elm;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.evaluator.engine.elm.BinaryLibraryFormat.ClassInfo;
+
+/**
+ * This class reads an ELM execution model Library written by the {@link BinaryLibraryWriter}. Only classes of the ELM
+ * execution model and the engine's evaluators are instantiated, so a document can not be used to create arbitrary
+ * objects.
+ */
+public class BinaryLibraryReader {
+
+    // A class of the document, with the fields of the class in the order they were written
+    private static class ClassDescriptor {
+        final ClassInfo classInfo;
+        final Field[] fields;
+
+        ClassDescriptor(ClassInfo classInfo, Field[] fields) {
+            this.classInfo = classInfo;
+            this.fields = fields;
+        }
+    }
+
+    private final byte[] buffer;
+    private int position;
+    private final List<String> strings = new ArrayList<>();
+    private final List<ClassDescriptor> classes = new ArrayList<>();
+
+    private BinaryLibraryReader(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads a Library.
+     * @param inputStream the stream to read. The stream is read to the end but not closed.
+     * @return the Library
+     * @throws IOException if the stream can not be read or is not a valid document
+     */
+    public static Library read(InputStream inputStream) throws IOException {
+        requireNonNull(inputStream, "inputStream can not be null.");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+
+        return read(output.toByteArray());
+    }
+
+    /**
+     * Reads a Library.
+     * @param content the encoded Library
+     * @return the Library
+     * @throws IOException if the content is not a valid document
+     */
+    public static Library read(byte[] content) throws IOException {
+        requireNonNull(content, "content can not be null.");
+
+        BinaryLibraryReader reader = new BinaryLibraryReader(content);
+        try {
+            if (reader.readInt() != BinaryLibraryFormat.MAGIC) {
+                throw new IOException("Content is not binary ELM");
+            }
+
+            int version = reader.readByte();
+            if (version != BinaryLibraryFormat.VERSION) {
+                throw new IOException(String.format("Unsupported binary ELM version %d", version));
+            }
+
+            Object library = reader.readValue();
+            if (!(library instanceof Library)) {
+                throw new IOException("Content does not contain a Library");
+            }
+
+            return (Library) library;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Binary ELM is truncated", e);
+        }
+    }
+
+    private Object readValue() throws IOException {
+        byte tag = this.readByte();
+        switch (tag) {
+            case BinaryLibraryFormat.NULL:
+                return null;
+            case BinaryLibraryFormat.OBJECT:
+                return this.readObject();
+            case BinaryLibraryFormat.STRING:
+                return this.readString();
+            case BinaryLibraryFormat.TRUE:
+                return Boolean.TRUE;
+            case BinaryLibraryFormat.FALSE:
+                return Boolean.FALSE;
+            case BinaryLibraryFormat.ENUM:
+                return this.readEnum();
+            case BinaryLibraryFormat.QNAME:
+                return new QName(this.readString(), this.readString(), this.readString());
+            case BinaryLibraryFormat.DECIMAL:
+                return new BigDecimal(this.readString());
+            case BinaryLibraryFormat.BIG_INTEGER:
+                return new BigInteger(this.readString());
+            case BinaryLibraryFormat.INTEGER:
+                return this.readInt();
+            case BinaryLibraryFormat.LIST:
+                int size = this.readVarInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(this.readValue());
+                }
+                return list;
+            case BinaryLibraryFormat.MAP:
+                int entries = this.readVarInt();
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    map.put(this.readValue(), this.readValue());
+                }
+                return map;
+            default:
+                throw new IOException(String.format("Unknown tag %d at position %d", tag, this.position - 1));
+        }
+    }
+
+    private Object readObject() throws IOException {
+        ClassDescriptor descriptor = this.readClass();
+        try {
+            Object object = descriptor.classInfo.newInstance();
+            for (Field field : descriptor.fields) {
+                field.set(object, this.readValue());
+            }
+
+            return object;
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new IOException(
+                    String.format("Unable to read an object of type %s", descriptor.classInfo.clazz.getName()), e);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object readEnum() throws IOException {
+        Class<?> clazz = this.readClass().classInfo.clazz;
+        if (!clazz.isEnum()) {
+            throw new IOException(String.format("Type %s is not an enum", clazz.getName()));
+        }
+
+        String name = this.readString();
+        try {
+            return Enum.valueOf((Class) clazz, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(String.format("Unknown value %s of enum %s", name, clazz.getName()), e);
+        }
+    }
+
+    private ClassDescriptor readClass() throws IOException {
+        int index = this.readVarInt();
+        if (index > 0) {
+            return this.classes.get(index - 1);
+        }
+
+        String className = this.readString();
+        if (!BinaryLibraryFormat.isAllowed(className)) {
+            throw new IOException(String.format("Type %s is not part of the ELM execution model", className));
+        }
+
+        ClassInfo classInfo;
+        try {
+            classInfo = BinaryLibraryFormat.getClassInfo(Class.forName(className, false, Library.class.getClassLoader()));
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
+            throw new IOException(String.format("Unable to load type %s", className), e);
+        }
+
+        Field[] fields = new Field[this.readVarInt()];
+        for (int i = 0; i < fields.length; i++) {
+            String fieldName = this.readString();
+            fields[i] = classInfo.fieldsByName.get(fieldName);
+            if (fields[i] == null) {
+                throw new IOException(String.format("Type %s does not have a field %s", className, fieldName));
+            }
+        }
+
+        ClassDescriptor descriptor = new ClassDescriptor(classInfo, fields);
+        this.classes.add(descriptor);
+        return descriptor;
+    }
+
+    private String readString() throws IOException {
+        int index = this.readVarInt();
+        if (index > 0) {
+            return this.strings.get(index - 1);
+        }
+
+        int length = this.readVarInt();
+        if (length < 0 || length > this.buffer.length - this.position) {
+            throw new IOException("Binary ELM is truncated");
+        }
+
+        String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+        this.position += length;
+        this.strings.add(value);
+        return value;
+    }
+
+    private byte readByte() {
+        return this.buffer[this.position++];
+    }
+
+    private int readInt() {
+        return ((this.readByte() & 0xff) << 24) | ((this.readByte() & 0xff) << 16) | ((this.readByte() & 0xff) << 8)
+                | (this.readByte() & 0xff);
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = this.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed binary ELM");
+    }
+}
@@ -0,0 +1,183 @@
+package org.opencds.cqf.cql.evaluator.engine.elm;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.evaluator.engine.elm.BinaryLibraryFormat.ClassInfo;
+
+/**
+ * This class writes an ELM execution model Library in a compact binary format that can be read by the
+ * {@link BinaryLibraryReader} much faster than JSON or XML ELM can be parsed. The format is not a standard ELM
+ * representation, and is only intended to be read by the same version of the evaluator and engine that wrote it.
+ */
+public class BinaryLibraryWriter {
+
+    private final DataOutputStream output;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Class<?>, Integer> classes = new HashMap<>();
+
+    private BinaryLibraryWriter(OutputStream output) {
+        this.output = new DataOutputStream(output);
+    }
+
+    /**
+     * Writes a Library.
+     * @param library the Library to write
+     * @param outputStream the stream to write to. The stream is flushed but not closed.
+     * @throws IOException if the stream can not be written
+     * @throws IllegalArgumentException if the Library contains a value that can not be encoded
+     */
+    public static void write(Library library, OutputStream outputStream) throws IOException {
+        requireNonNull(library, "library can not be null.");
+        requireNonNull(outputStream, "outputStream can not be null.");
+
+        BinaryLibraryWriter writer = new BinaryLibraryWriter(new BufferedOutputStream(outputStream));
+        writer.output.writeInt(BinaryLibraryFormat.MAGIC);
+        writer.output.writeByte(BinaryLibraryFormat.VERSION);
+        writer.writeValue(library);
+        writer.output.flush();
+    }
+
+    /**
+     * Writes a Library to a byte array.
+     * @param library the Library to write
+     * @return the encoded Library
+     * @throws IllegalArgumentException if the Library contains a value that can not be encoded
+     */
+    public static byte[] write(Library library) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            write(library, outputStream);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            this.output.writeByte(BinaryLibraryFormat.NULL);
+        } else if (value instanceof String) {
+            this.output.writeByte(BinaryLibraryFormat.STRING);
+            this.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            this.output.writeByte((Boolean) value ? BinaryLibraryFormat.TRUE : BinaryLibraryFormat.FALSE);
+        } else if (value instanceof Enum) {
+            this.output.writeByte(BinaryLibraryFormat.ENUM);
+            this.writeClass(((Enum<?>) value).getDeclaringClass());
+            this.writeString(((Enum<?>) value).name());
+        } else if (value instanceof QName) {
+            QName name = (QName) value;
+            this.output.writeByte(BinaryLibraryFormat.QNAME);
+            this.writeString(name.getNamespaceURI());
+            this.writeString(name.getLocalPart());
+            this.writeString(name.getPrefix());
+        } else if (value instanceof BigDecimal) {
+            this.output.writeByte(BinaryLibraryFormat.DECIMAL);
+            this.writeString(value.toString());
+        } else if (value instanceof BigInteger) {
+            this.output.writeByte(BinaryLibraryFormat.BIG_INTEGER);
+            this.writeString(value.toString());
+        } else if (value instanceof Integer) {
+            this.output.writeByte(BinaryLibraryFormat.INTEGER);
+            this.output.writeInt((Integer) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            this.output.writeByte(BinaryLibraryFormat.LIST);
+            this.writeVarInt(list.size());
+            for (Object item : list) {
+                this.writeValue(item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            this.output.writeByte(BinaryLibraryFormat.MAP);
+            this.writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                this.writeValue(entry.getKey());
+                this.writeValue(entry.getValue());
+            }
+        } else if (BinaryLibraryFormat.isAllowed(value.getClass().getName())) {
+            this.output.writeByte(BinaryLibraryFormat.OBJECT);
+            ClassInfo classInfo = this.writeClass(value.getClass());
+            for (Field field : classInfo.fields) {
+                this.writeValue(this.getFieldValue(field, value));
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    String.format("Unable to encode a value of type %s", value.getClass().getName()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getFieldValue(Field field, Object object) {
+        try {
+            Object value = field.get(object);
+            if (BinaryLibraryFormat.isAnnotation(field)) {
+                return BinaryLibraryFormat.toAnnotations((List<Object>) value);
+            }
+
+            return value;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ClassInfo writeClass(Class<?> clazz) throws IOException {
+        ClassInfo classInfo = BinaryLibraryFormat.getClassInfo(clazz);
+        Integer index = this.classes.get(clazz);
+        if (index != null) {
+            this.writeVarInt(index + 1);
+            return classInfo;
+        }
+
+        this.classes.put(clazz, this.classes.size());
+        this.writeVarInt(0);
+        this.writeString(clazz.getName());
+        this.writeVarInt(classInfo.fields.size());
+        for (Field field : classInfo.fields) {
+            this.writeString(field.getName());
+        }
+
+        return classInfo;
+    }
+
+    private void writeString(String value) throws IOException {
+        Integer index = this.strings.get(value);
+        if (index != null) {
+            this.writeVarInt(index + 1);
+            return;
+        }
+
+        this.strings.put(value, this.strings.size());
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.writeVarInt(0);
+        this.writeVarInt(bytes.length);
+        this.output.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            this.output.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        this.output.writeByte(value);
+    }
+}
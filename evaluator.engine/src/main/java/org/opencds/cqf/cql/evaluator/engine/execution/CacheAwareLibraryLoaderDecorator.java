@@ -1,8 +1,8 @@
 package org.opencds.cqf.cql.evaluator.engine.execution;
 
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
@@ -16,19 +16,23 @@ import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
  * CacheAwareLibraryLoaderDecorator. The cached Library is checked to see if has been translated with the correct options
  * before being returned. If it has been translated with a different set of options the cache is invalidated and the Library
  * is loaded from the inner LibraryLoader.
+ *
+ * The cache created by the CacheAwareLibraryLoaderDecorator is thread-safe, but a cache provided by the user is only as
+ * thread-safe as the Map provided. To share compiled Libraries across threads, use a {@link LibraryCache} with the
+ * {@link SharedCachingLibraryLoaderDecorator} instead.
  */
 public class CacheAwareLibraryLoaderDecorator implements TranslatorOptionAwareLibraryLoader {
 
     private TranslatorOptionAwareLibraryLoader innerLoader;
 
-    private Map<VersionedIdentifier, Library> libraryCache = new HashMap<>();
+    private Map<VersionedIdentifier, Library> libraryCache;
 
     public CacheAwareLibraryLoaderDecorator(TranslatorOptionAwareLibraryLoader libraryLoader,
             Map<VersionedIdentifier, Library> libraryCache) {
         this.innerLoader = libraryLoader;
         if (libraryCache == null)
         {
-            this.libraryCache = new HashMap<>();
+            this.libraryCache = new ConcurrentHashMap<>();
         }
         else {
             this.libraryCache = libraryCache;
@@ -0,0 +1,127 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.CodeSource;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.opencds.cqf.cql.evaluator.engine.util.FileCacheUtil;
+import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class persists translated ELM to a local directory, so that CQL translated by a previous process is not
+ * translated again. Each ELM document is stored as JXSON in its own file, named by a SHA-256 hash of the CQL source,
+ * the translator options, and the version of the translator, so a change to any of them is a cache miss rather than
+ * stale ELM.
+ *
+ * Files are written to a temporary file and moved into place, so the directory may be shared by concurrent processes.
+ * Processes that translate the same CQL at the same time write the same content, and the last move wins. A file that
+ * can not be read is treated as missing.
+ *
+ * NOTE: The ELM of a library is keyed by its own CQL only. If an included library changes without a change to its
+ * version, libraries that include it are not translated again until the cache directory is cleared.
+ */
+public class ElmCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ElmCache.class);
+
+    static final String EXTENSION = ".json";
+
+    static final String TRANSLATOR_VERSION = getTranslatorVersion();
+
+    private final Path directory;
+
+    /**
+     * @param directory the directory in which ELM is stored
+     */
+    public ElmCache(Path directory) {
+        this.directory = requireNonNull(directory, "directory can not be null.");
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Unable to create ELM directory %s", directory), e);
+        }
+    }
+
+    /**
+     * Creates the key of the ELM translated from CQL source with a set of translator options.
+     * @param cql the CQL source
+     * @param translatorOptions the translator options
+     * @return the key
+     */
+    public static String key(String cql, CqlTranslatorOptions translatorOptions) {
+        requireNonNull(cql, "cql can not be null.");
+        requireNonNull(translatorOptions, "translatorOptions can not be null.");
+
+        return FileCacheUtil.hash(TRANSLATOR_VERSION + "\n" + TranslatorOptionsUtil.getOptionsKey(translatorOptions) + "\n" + cql);
+    }
+
+    /**
+     * @param key the key of the ELM
+     * @return the stored ELM, as JXSON, or null if there is none
+     */
+    public String get(String key) {
+        requireNonNull(key, "key can not be null.");
+
+        Path path = this.getPath(key);
+        try {
+            return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Unable to read ELM {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores ELM. Failures are logged, since the ELM can always be translated again.
+     * @param key the key of the ELM
+     * @param elm the ELM, as JXSON
+     */
+    public void put(String key, String elm) {
+        requireNonNull(key, "key can not be null.");
+        requireNonNull(elm, "elm can not be null.");
+
+        Path path = this.getPath(key);
+        try {
+            FileCacheUtil.writeAtomically(path, temp -> Files.write(temp, elm.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            logger.warn("Unable to write ELM {}: {}", path, e.getMessage());
+        }
+    }
+
+    private Path getPath(String key) {
+        return this.directory.resolve(key + EXTENSION);
+    }
+
+    private static String getTranslatorVersion() {
+        // The version is only in the manifest of the released jar. Otherwise the location of the classes identifies
+        // the build, since a different version of the translator is a different jar.
+        String version = CqlTranslator.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+
+        try {
+            CodeSource codeSource = CqlTranslator.class.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                return codeSource.getLocation().toString();
+            }
+        } catch (SecurityException e) {
+            // Fall through
+        }
+
+        return "unknown";
+    }
+}
@@ -0,0 +1,160 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
+
+/**
+ * A thread-safe cache of compiled Libraries that may be shared by every evaluation in a process. Libraries are keyed
+ * by the content source they were loaded from, their identifier, and the translator options used to compile them, so
+ * evaluations that use different content or options do not share Libraries.
+ *
+ * The cache is bounded by the total number of statements in the cached Libraries, and Libraries expire a fixed time
+ * after they are loaded so that changes to the content are eventually picked up. Concurrent requests for a Library
+ * that is not cached are coalesced so the Library is translated only once. The cache holds a future for each Library,
+ * and a Library is loaded on the thread that first requests it without holding any lock of the cache, so loads that
+ * take a long time (or that load other Libraries through the cache) do not block requests for other Libraries.
+ */
+public class LibraryCache {
+
+    public static final long DEFAULT_MAXIMUM_STATEMENTS = 100_000;
+    public static final Duration DEFAULT_EXPIRE_AFTER_WRITE = Duration.ofHours(1);
+
+    private final AsyncCache<Key, Library> cache;
+
+    /**
+     * Creates a cache with the default bounds.
+     */
+    public LibraryCache() {
+        this(DEFAULT_MAXIMUM_STATEMENTS, DEFAULT_EXPIRE_AFTER_WRITE);
+    }
+
+    /**
+     * Creates a cache.
+     * @param maximumStatements the maximum total number of statements in the cached Libraries
+     * @param expireAfterWrite how long a Library is cached, or null to cache it until it is evicted by size
+     */
+    public LibraryCache(long maximumStatements, Duration expireAfterWrite) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumWeight(maximumStatements).recordStats();
+        if (expireAfterWrite != null) {
+            builder.expireAfterWrite(expireAfterWrite.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        this.cache = builder.<Key, Library>weigher((k, v) -> weigh(v)).buildAsync();
+    }
+
+    /**
+     * Loads a Library, using the cached Library if there is one.
+     * @param contentSource the source of the library content (e.g. the url of a FHIR server)
+     * @param libraryIdentifier the identifier of the Library to load
+     * @param translatorOptions the translator options the Library is compiled with
+     * @param libraryLoader the LibraryLoader used to load the Library if it is not cached
+     * @return the Library, or null if the LibraryLoader returned null
+     */
+    public Library load(String contentSource, VersionedIdentifier libraryIdentifier,
+            CqlTranslatorOptions translatorOptions, LibraryLoader libraryLoader) {
+        requireNonNull(contentSource, "contentSource can not be null.");
+        requireNonNull(libraryIdentifier, "libraryIdentifier can not be null.");
+        requireNonNull(translatorOptions, "translatorOptions can not be null.");
+        requireNonNull(libraryLoader, "libraryLoader can not be null.");
+
+        Key key = new Key(contentSource, libraryIdentifier, translatorOptions);
+        CompletableFuture<Library> library = this.cache.getIfPresent(key);
+        if (library == null) {
+            CompletableFuture<Library> load = new CompletableFuture<>();
+            library = this.cache.asMap().putIfAbsent(key, load);
+            if (library == null) {
+                // A Library that is null or fails to load is removed from the cache when its future completes
+                try {
+                    Library loaded = libraryLoader.load(libraryIdentifier);
+                    load.complete(loaded);
+                    return loaded;
+                } catch (Throwable e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            return library.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    public void invalidateAll() {
+        this.cache.synchronous().invalidateAll();
+    }
+
+    public long estimatedSize() {
+        return this.cache.synchronous().estimatedSize();
+    }
+
+    public CacheStats stats() {
+        return this.cache.synchronous().stats();
+    }
+
+    private static int weigh(Library library) {
+        if (library.getStatements() == null || library.getStatements().getDef() == null) {
+            return 1;
+        }
+
+        return 1 + library.getStatements().getDef().size();
+    }
+
+    private static class Key {
+        final String contentSource;
+        final String id;
+        final String system;
+        final String version;
+        final String options;
+
+        Key(String contentSource, VersionedIdentifier libraryIdentifier, CqlTranslatorOptions translatorOptions) {
+            this.contentSource = contentSource;
+            this.id = libraryIdentifier.getId();
+            this.system = libraryIdentifier.getSystem();
+            this.version = libraryIdentifier.getVersion();
+            this.options = TranslatorOptionsUtil.getOptionsKey(translatorOptions);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return Objects.equals(this.contentSource, other.contentSource) && Objects.equals(this.id, other.id)
+                    && Objects.equals(this.system, other.system) && Objects.equals(this.version, other.version)
+                    && Objects.equals(this.options, other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.contentSource, this.id, this.system, this.version, this.options);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceLoader;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.exception.CqlException;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class translates CQL libraries concurrently, and is meant to be shared by every evaluator (e.g. a singleton).
+ * The CQL translator is not thread-safe, so the service keeps pools of LibraryManagers, each with its own
+ * ModelManager, and each translation uses a LibraryManager that no other translation is using. Translations run on
+ * the Executor provided, or on the calling thread if there is none.
+ *
+ * There is a pool for each content source (e.g. the url of a FHIR server) and set of translator options, since a
+ * LibraryManager keeps the libraries it has translated (e.g. included libraries such as FHIRHelpers) and reuses them
+ * for later translations. A LibraryManager holds only one version of each library, so a translation that fails on a
+ * LibraryManager holding libraries of earlier translations (e.g. one that includes FHIRHelpers 4.0.0 after another
+ * included FHIRHelpers 4.0.1) is retried once without them. The LibraryContentProviders of each translation are
+ * registered with the LibraryManager for the duration of the translation only. LibraryManagers are replaced once they are older than the maximum translator
+ * age, so changes to the content are picked up after at most that long. Pools that are not used for that long are
+ * discarded.
+ *
+ * Concurrent requests to translate the same library from the same content source share a single translation.
+ *
+ * This class is thread-safe.
+ */
+public class LibraryTranslationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryTranslationService.class);
+
+    public static final Duration DEFAULT_MAXIMUM_TRANSLATOR_AGE = LibraryCache.DEFAULT_EXPIRE_AFTER_WRITE;
+
+    private final Supplier<ModelManager> modelManagerFactory;
+    private final Executor executor;
+    private final int poolSize;
+    private final long maximumTranslatorAgeNanos;
+
+    private final Cache<String, TranslatorPool> pools;
+    private final ConcurrentMap<String, CompletableFuture<TranslatedLibrary>> translations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a service whose LibraryManagers are replaced after the default maximum translator age.
+     * @param modelManagerFactory creates the ModelManager of each LibraryManager (e.g. a CacheAwareModelManager that
+     *                            shares a thread-safe global cache of Models)
+     * @param poolSize            the maximum number of LibraryManagers, and so of concurrent translations, for each
+     *                            content source and set of translator options
+     * @param executor            the Executor that runs translations, or null to translate on the calling thread.
+     *                            The Executor should be bounded (e.g. a fixed thread pool) and is not shut down by
+     *                            the service.
+     */
+    public LibraryTranslationService(Supplier<ModelManager> modelManagerFactory, int poolSize, Executor executor) {
+        this(modelManagerFactory, poolSize, DEFAULT_MAXIMUM_TRANSLATOR_AGE, executor);
+    }
+
+    /**
+     * @param modelManagerFactory  creates the ModelManager of each LibraryManager (e.g. a CacheAwareModelManager that
+     *                             shares a thread-safe global cache of Models)
+     * @param poolSize             the maximum number of LibraryManagers, and so of concurrent translations, for each
+     *                             content source and set of translator options
+     * @param maximumTranslatorAge how long a LibraryManager, and the libraries it has translated, is used for
+     * @param executor             the Executor that runs translations, or null to translate on the calling thread.
+     *                             The Executor should be bounded (e.g. a fixed thread pool) and is not shut down by
+     *                             the service.
+     */
+    public LibraryTranslationService(Supplier<ModelManager> modelManagerFactory, int poolSize,
+            Duration maximumTranslatorAge, Executor executor) {
+        this.modelManagerFactory = requireNonNull(modelManagerFactory, "modelManagerFactory can not be null.");
+        requireNonNull(maximumTranslatorAge, "maximumTranslatorAge can not be null.");
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be at least 1.");
+        }
+
+        this.poolSize = poolSize;
+        this.maximumTranslatorAgeNanos = maximumTranslatorAge.toNanos();
+        this.executor = executor;
+        this.pools = Caffeine.newBuilder().expireAfterAccess(maximumTranslatorAge).build();
+    }
+
+    /**
+     * Translates a library. If the library is already being translated from the same content source, the future of
+     * that translation is returned.
+     * @param contentSource           the source of the library content (e.g. the url of a FHIR server)
+     * @param libraryContentProviders the LibraryContentProviders of the content source, in the order they are
+     *                                searched
+     * @param translatorOptions       the translator options to translate with
+     * @param libraryIdentifier       the identifier of the library to translate
+     * @return a future that completes with the translated library, or completes exceptionally with a CqlException if
+     *         the library could not be translated
+     */
+    public CompletableFuture<TranslatedLibrary> translate(String contentSource,
+            List<LibraryContentProvider> libraryContentProviders, CqlTranslatorOptions translatorOptions,
+            VersionedIdentifier libraryIdentifier) {
+        requireNonNull(contentSource, "contentSource can not be null.");
+        requireNonNull(libraryContentProviders, "libraryContentProviders can not be null.");
+        requireNonNull(translatorOptions, "translatorOptions can not be null.");
+        requireNonNull(libraryIdentifier, "libraryIdentifier can not be null.");
+
+        String poolKey = contentSource + "|" + TranslatorOptionsUtil.getOptionsKey(translatorOptions);
+        String key = String.join("|", poolKey,
+                libraryIdentifier.getSystem() != null ? libraryIdentifier.getSystem() : "",
+                libraryIdentifier.getId(), libraryIdentifier.getVersion() != null ? libraryIdentifier.getVersion() : "");
+
+        CompletableFuture<TranslatedLibrary> future = new CompletableFuture<>();
+        CompletableFuture<TranslatedLibrary> existing = this.translations.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        List<LibraryContentProvider> providers = new ArrayList<>(libraryContentProviders);
+        Runnable task = () -> {
+            try {
+                TranslatorPool pool = this.pools.get(poolKey, k -> new TranslatorPool());
+                future.complete(pool.translate(providers, translatorOptions, libraryIdentifier));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                this.translations.remove(key, future);
+            }
+        };
+
+        if (this.executor == null) {
+            task.run();
+            return future;
+        }
+
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            this.translations.remove(key, future);
+            future.completeExceptionally(
+                    new CqlException(String.format("Unable to translate library %s", libraryIdentifier.getId()), e));
+        }
+
+        return future;
+    }
+
+    /**
+     * Translates a library and waits for the translation to complete.
+     * @param contentSource           the source of the library content (e.g. the url of a FHIR server)
+     * @param libraryContentProviders the LibraryContentProviders of the content source, in the order they are
+     *                                searched
+     * @param translatorOptions       the translator options to translate with
+     * @param libraryIdentifier       the identifier of the library to translate
+     * @return the translated library
+     * @throws CqlException if the library could not be translated
+     */
+    public TranslatedLibrary translateAndWait(String contentSource,
+            List<LibraryContentProvider> libraryContentProviders, CqlTranslatorOptions translatorOptions,
+            VersionedIdentifier libraryIdentifier) {
+        try {
+            return this.translate(contentSource, libraryContentProviders, translatorOptions, libraryIdentifier)
+                    .join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new CqlException(String.format("Unable to translate library %s", libraryIdentifier.getId()),
+                    e.getCause());
+        }
+    }
+
+    // The LibraryManagers of a content source and set of translator options
+    private class TranslatorPool {
+        private final BlockingQueue<PooledLibraryManager> idleLibraryManagers = new LinkedBlockingQueue<>();
+        private final AtomicInteger libraryManagerCount = new AtomicInteger();
+
+        TranslatedLibrary translate(List<LibraryContentProvider> libraryContentProviders,
+                CqlTranslatorOptions translatorOptions, VersionedIdentifier libraryIdentifier) {
+            PooledLibraryManager pooled = this.acquire();
+            LibrarySourceLoader sourceLoader = pooled.libraryManager.getLibrarySourceLoader();
+            try {
+                sourceLoader.clearProviders();
+                for (LibraryContentProvider provider : libraryContentProviders) {
+                    sourceLoader.registerProvider(provider);
+                }
+
+                boolean reused = !pooled.libraryManager.getTranslatedLibraries().isEmpty();
+                try {
+                    return resolveLibrary(pooled.libraryManager, libraryIdentifier, translatorOptions);
+                } catch (CqlException e) {
+                    if (!reused) {
+                        throw e;
+                    }
+
+                    logger.debug("Retrying translation of library {} without the libraries of earlier translations",
+                            libraryIdentifier.getId());
+                    pooled.libraryManager.getTranslatedLibraries().clear();
+                    return resolveLibrary(pooled.libraryManager, libraryIdentifier, translatorOptions);
+                }
+            } finally {
+                // Don't keep the providers (e.g. clients of a request) between translations
+                sourceLoader.clearProviders();
+                this.release(pooled);
+            }
+        }
+
+        private PooledLibraryManager acquire() {
+            PooledLibraryManager pooled = this.idleLibraryManagers.poll();
+            if (pooled != null) {
+                return pooled;
+            }
+
+            int count = this.libraryManagerCount.get();
+            while (count < poolSize) {
+                if (this.libraryManagerCount.compareAndSet(count, count + 1)) {
+                    logger.debug("Creating LibraryManager {} of {}", count + 1, poolSize);
+                    return new PooledLibraryManager(new LibraryManager(modelManagerFactory.get()));
+                }
+
+                count = this.libraryManagerCount.get();
+            }
+
+            try {
+                return this.idleLibraryManagers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CqlException("Interrupted while waiting for a translator", e);
+            }
+        }
+
+        private void release(PooledLibraryManager pooled) {
+            if (System.nanoTime() - pooled.createdAt > maximumTranslatorAgeNanos) {
+                // Replace rather than discard, so that translations waiting for a LibraryManager are not stranded
+                logger.debug("Replacing a LibraryManager that is older than the maximum translator age");
+                pooled = new PooledLibraryManager(new LibraryManager(modelManagerFactory.get()));
+            }
+
+            this.idleLibraryManagers.add(pooled);
+        }
+    }
+
+    private static class PooledLibraryManager {
+        final LibraryManager libraryManager;
+        final long createdAt = System.nanoTime();
+
+        PooledLibraryManager(LibraryManager libraryManager) {
+            this.libraryManager = libraryManager;
+        }
+    }
+
+    /**
+     * Translates a library with a LibraryManager.
+     * @param libraryManager the LibraryManager. The LibraryManager must not be used by other threads concurrently.
+     * @param libraryIdentifier the identifier of the library to translate
+     * @param translatorOptions the translator options to translate with
+     * @return the translated library
+     * @throws CqlException if the library could not be translated
+     */
+    static TranslatedLibrary resolveLibrary(LibraryManager libraryManager, VersionedIdentifier libraryIdentifier,
+            CqlTranslatorOptions translatorOptions) {
+        TranslatedLibrary library = null;
+        List<CqlTranslatorException> errors = new ArrayList<>();
+        try {
+            library = libraryManager.resolveLibrary(libraryIdentifier, translatorOptions, errors);
+        } catch (Exception e) {
+            throw new CqlException(String.format("Unable translate library %s", libraryIdentifier.getId()), e);
+        }
+
+        if (!errors.isEmpty()) {
+            for (CqlTranslatorException e : errors) {
+                if (e.getSeverity() == ErrorSeverity.Error) {
+                    throw new CqlException(String.format("Translation of library %s failed with the following message: %s", libraryIdentifier.getId(), e.getMessage()));
+                }
+            }
+        }
+
+        return library;
+    }
+}
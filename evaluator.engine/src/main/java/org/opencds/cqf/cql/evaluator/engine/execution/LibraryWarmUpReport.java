@@ -0,0 +1,82 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+/**
+ * The result of warming up a LibraryCache with a {@link LibraryWarmer}: the time taken to load each Library, and the
+ * reason each Library that could not be loaded failed.
+ *
+ * This class is thread-safe.
+ */
+public class LibraryWarmUpReport {
+
+    private final Map<VersionedIdentifier, Duration> loadTimes = new LinkedHashMap<>();
+    private final Map<VersionedIdentifier, String> failures = new LinkedHashMap<>();
+    private volatile Duration totalTime = Duration.ZERO;
+
+    /**
+     * @return the time taken to load each Library that was loaded, in the order the loads completed
+     */
+    public synchronized Map<VersionedIdentifier, Duration> getLoadTimes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this.loadTimes));
+    }
+
+    /**
+     * @return the reason each Library that could not be loaded failed, in the order the failures occurred
+     */
+    public synchronized Map<VersionedIdentifier, String> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this.failures));
+    }
+
+    /**
+     * @return the time taken to warm up the LibraryCache, including the discovery of included Libraries
+     */
+    public Duration getTotalTime() {
+        return this.totalTime;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return this.failures.isEmpty();
+    }
+
+    synchronized void addLoadTime(VersionedIdentifier libraryIdentifier, Duration loadTime) {
+        this.loadTimes.put(libraryIdentifier, loadTime);
+    }
+
+    // The first failure of a Library is its cause, so later failures (e.g. of a Library in an include cycle) are
+    // ignored
+    synchronized void addFailure(VersionedIdentifier libraryIdentifier, String reason) {
+        this.failures.putIfAbsent(libraryIdentifier, reason);
+    }
+
+    void setTotalTime(Duration totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Loaded %d libraries with %d failures in %d ms", this.loadTimes.size(),
+                this.failures.size(), this.totalTime.toMillis()));
+        for (Map.Entry<VersionedIdentifier, Duration> entry : this.loadTimes.entrySet()) {
+            builder.append(String.format("%n  %s: %d ms", format(entry.getKey()), entry.getValue().toMillis()));
+        }
+
+        for (Map.Entry<VersionedIdentifier, String> entry : this.failures.entrySet()) {
+            builder.append(String.format("%n  %s: failed: %s", format(entry.getKey()), entry.getValue()));
+        }
+
+        return builder.toString();
+    }
+
+    private static String format(VersionedIdentifier libraryIdentifier) {
+        return libraryIdentifier.getVersion() != null
+                ? libraryIdentifier.getId() + "|" + libraryIdentifier.getVersion()
+                : libraryIdentifier.getId();
+    }
+}
@@ -0,0 +1,267 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+import static org.opencds.cqf.cql.evaluator.converter.VersionedIdentifierConverter.toElmIdentifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.cqframework.cql.gen.cqlLexer;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class warms up a LibraryCache by compiling a set of Libraries and the Libraries they include before they are
+ * evaluated. The include graph is discovered by scanning the header of the CQL of each Library, and Libraries are
+ * loaded in dependency order, so each Library is loaded after the Libraries it includes. Libraries that do not depend
+ * on each other are loaded concurrently on the Executor provided.
+ *
+ * Libraries are loaded into the LibraryCache under the content source and translator options of the LibraryLoader, so
+ * evaluators that use the same content source and translator options find them in the cache. The LibraryLoader must
+ * be safe to use from multiple threads, such as a TranslatingLibraryLoader that uses a LibraryTranslationService.
+ */
+public class LibraryWarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryWarmer.class);
+
+    private final TranslatorOptionAwareLibraryLoader libraryLoader;
+    private final List<LibraryContentProvider> libraryContentProviders;
+    private final LibraryCache libraryCache;
+    private final String contentSource;
+
+    /**
+     * @param libraryLoader           the thread-safe LibraryLoader used to compile Libraries
+     * @param libraryContentProviders the LibraryContentProviders that provide the CQL of the Libraries, in the order
+     *                                they are searched
+     * @param libraryCache            the LibraryCache to warm up
+     * @param contentSource           the source of the library content (e.g. the url of a FHIR server)
+     */
+    public LibraryWarmer(TranslatorOptionAwareLibraryLoader libraryLoader,
+            List<LibraryContentProvider> libraryContentProviders, LibraryCache libraryCache, String contentSource) {
+        this.libraryLoader = requireNonNull(libraryLoader, "libraryLoader can not be null.");
+        this.libraryContentProviders = new ArrayList<>(
+                requireNonNull(libraryContentProviders, "libraryContentProviders can not be null."));
+        this.libraryCache = requireNonNull(libraryCache, "libraryCache can not be null.");
+        this.contentSource = requireNonNull(contentSource, "contentSource can not be null.");
+    }
+
+    /**
+     * Loads a set of Libraries and the Libraries they include into the LibraryCache, and waits for the loads to
+     * complete. A Library that can not be loaded does not stop the others from loading, but the Libraries that
+     * include it are not loaded.
+     * @param libraryIdentifiers the identifiers of the Libraries to load
+     * @param executor           the Executor that loads Libraries, or null to load them one at a time on the calling
+     *                           thread. The Executor is not shut down.
+     * @return a report of the time taken to load each Library and of the Libraries that could not be loaded
+     */
+    public LibraryWarmUpReport warmUp(Collection<VersionedIdentifier> libraryIdentifiers, Executor executor) {
+        requireNonNull(libraryIdentifiers, "libraryIdentifiers can not be null.");
+
+        long start = System.nanoTime();
+        LibraryWarmUpReport report = new LibraryWarmUpReport();
+        Map<VersionedIdentifier, List<VersionedIdentifier>> includes = this.getIncludeGraph(libraryIdentifiers, report);
+
+        Executor loadExecutor = executor != null ? executor : Runnable::run;
+        Map<VersionedIdentifier, CompletableFuture<Boolean>> loads = new HashMap<>();
+        for (VersionedIdentifier libraryIdentifier : includes.keySet()) {
+            this.scheduleLoad(libraryIdentifier, includes, loads, new HashSet<>(), report, loadExecutor);
+        }
+
+        CompletableFuture.allOf(loads.values().toArray(new CompletableFuture<?>[loads.size()])).join();
+        report.setTotalTime(Duration.ofNanos(System.nanoTime() - start));
+        logger.debug("{}", report);
+
+        return report;
+    }
+
+    // Finds the Libraries included by the given Libraries, directly or indirectly
+    private Map<VersionedIdentifier, List<VersionedIdentifier>> getIncludeGraph(
+            Collection<VersionedIdentifier> libraryIdentifiers, LibraryWarmUpReport report) {
+        Map<VersionedIdentifier, List<VersionedIdentifier>> includes = new LinkedHashMap<>();
+        Deque<VersionedIdentifier> pending = new ArrayDeque<>(libraryIdentifiers);
+        while (!pending.isEmpty()) {
+            VersionedIdentifier libraryIdentifier = pending.poll();
+            if (includes.containsKey(libraryIdentifier)) {
+                continue;
+            }
+
+            List<VersionedIdentifier> libraryIncludes;
+            try {
+                libraryIncludes = this.getIncludes(libraryIdentifier);
+            } catch (IOException e) {
+                // The Library is still loaded, so that the failure is reported by the LibraryLoader
+                logger.warn("Unable to read CQL content for library {}: {}", libraryIdentifier.getId(),
+                        e.getMessage());
+                libraryIncludes = new ArrayList<>();
+            }
+
+            includes.put(libraryIdentifier, libraryIncludes);
+            pending.addAll(libraryIncludes);
+        }
+
+        return includes;
+    }
+
+    private CompletableFuture<Boolean> scheduleLoad(VersionedIdentifier libraryIdentifier,
+            Map<VersionedIdentifier, List<VersionedIdentifier>> includes,
+            Map<VersionedIdentifier, CompletableFuture<Boolean>> loads, Set<VersionedIdentifier> path,
+            LibraryWarmUpReport report, Executor executor) {
+        CompletableFuture<Boolean> load = loads.get(libraryIdentifier);
+        if (load != null) {
+            return load;
+        }
+
+        if (!path.add(libraryIdentifier)) {
+            report.addFailure(libraryIdentifier, "The library includes itself through its included libraries");
+            return CompletableFuture.completedFuture(false);
+        }
+
+        List<VersionedIdentifier> dependencies = includes.get(libraryIdentifier);
+        List<CompletableFuture<Boolean>> dependencyLoads = new ArrayList<>(dependencies.size());
+        for (VersionedIdentifier dependency : dependencies) {
+            dependencyLoads.add(this.scheduleLoad(dependency, includes, loads, path, report, executor));
+        }
+
+        path.remove(libraryIdentifier);
+
+        load = CompletableFuture.allOf(dependencyLoads.toArray(new CompletableFuture<?>[dependencyLoads.size()]))
+                .thenApplyAsync(v -> {
+                    for (int i = 0; i < dependencies.size(); i++) {
+                        if (!dependencyLoads.get(i).join()) {
+                            report.addFailure(libraryIdentifier, String.format(
+                                    "The included library %s could not be loaded", dependencies.get(i).getId()));
+                            return false;
+                        }
+                    }
+
+                    return this.load(libraryIdentifier, report);
+                }, executor);
+
+        loads.put(libraryIdentifier, load);
+        return load;
+    }
+
+    private boolean load(VersionedIdentifier libraryIdentifier, LibraryWarmUpReport report) {
+        long start = System.nanoTime();
+        try {
+            Library library = this.libraryCache.load(this.contentSource, libraryIdentifier,
+                    this.libraryLoader.getCqlTranslatorOptions(), this.libraryLoader);
+            if (library == null) {
+                report.addFailure(libraryIdentifier, "The library was not found");
+                return false;
+            }
+
+            report.addLoadTime(libraryIdentifier, Duration.ofNanos(System.nanoTime() - start));
+            return true;
+        } catch (Exception e) {
+            logger.warn("Unable to load library {}: {}", libraryIdentifier.getId(), e.getMessage());
+            report.addFailure(libraryIdentifier, e.getMessage() != null ? e.getMessage() : e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Finds the Libraries a Library includes by scanning the include definitions in the header of its CQL. The CQL is
+     * not translated, so this is much faster than translating the Library.
+     * @param libraryIdentifier the identifier of the Library
+     * @return the identifiers of the included Libraries, or an empty list if there is no CQL for the Library
+     * @throws IOException if the CQL can not be read
+     */
+    protected List<VersionedIdentifier> getIncludes(VersionedIdentifier libraryIdentifier) throws IOException {
+        List<VersionedIdentifier> includes = new ArrayList<>();
+        InputStream source = this.getLibrarySource(libraryIdentifier);
+        if (source == null) {
+            return includes;
+        }
+
+        List<Token> tokens = new ArrayList<>();
+        try (InputStream input = source) {
+            cqlLexer lexer = new cqlLexer(CharStreams.fromStream(input));
+            lexer.removeErrorListeners();
+            for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+                if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+                    tokens.add(token);
+                }
+            }
+        }
+
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (isKeyword(token, "define") || isKeyword(token, "context")) {
+                // Include definitions precede the definitions of the Library
+                break;
+            }
+
+            if (!isKeyword(token, "include") || i + 1 >= tokens.size()) {
+                continue;
+            }
+
+            // include qualifiedIdentifier (version 'version')? (called identifier)?
+            int j = i + 1;
+            String id = unquote(tokens.get(j++));
+            while (j + 1 < tokens.size() && isKeyword(tokens.get(j), ".")) {
+                id = unquote(tokens.get(j + 1));
+                j += 2;
+            }
+
+            String version = null;
+            if (j + 1 < tokens.size() && isKeyword(tokens.get(j), "version")
+                    && tokens.get(j + 1).getType() == cqlLexer.STRING) {
+                version = unquote(tokens.get(j + 1));
+            }
+
+            // The translator resolves includes without a system, so they are cached without one
+            includes.add(new VersionedIdentifier().withId(id).withVersion(version));
+            i = j - 1;
+        }
+
+        return includes;
+    }
+
+    private InputStream getLibrarySource(VersionedIdentifier libraryIdentifier) {
+        org.hl7.elm.r1.VersionedIdentifier elmIdentifier = toElmIdentifier(libraryIdentifier);
+        for (LibraryContentProvider libraryContentProvider : this.libraryContentProviders) {
+            InputStream source = libraryContentProvider.getLibrarySource(elmIdentifier);
+            if (source != null) {
+                return source;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isKeyword(Token token, String keyword) {
+        int type = token.getType();
+        return type != cqlLexer.STRING && type != cqlLexer.QUOTEDIDENTIFIER && type != cqlLexer.DELIMITEDIDENTIFIER
+                && token.getText().equals(keyword);
+    }
+
+    private static String unquote(Token token) {
+        String text = token.getText();
+        int type = token.getType();
+        if ((type == cqlLexer.STRING || type == cqlLexer.QUOTEDIDENTIFIER || type == cqlLexer.DELIMITEDIDENTIFIER)
+                && text.length() >= 2) {
+            return text.substring(1, text.length() - 1);
+        }
+
+        return text;
+    }
+}
@@ -0,0 +1,41 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+/**
+ * This class caches the Libraries of a TranslatorOptionAwareLibraryLoader in a LibraryCache that may be shared with
+ * other LibraryLoaders for the same content source, so that Libraries are not translated again for every evaluation.
+ */
+public class SharedCachingLibraryLoaderDecorator implements TranslatorOptionAwareLibraryLoader {
+
+    private final TranslatorOptionAwareLibraryLoader innerLoader;
+    private final LibraryCache libraryCache;
+    private final String contentSource;
+
+    /**
+     * @param libraryLoader the LibraryLoader to cache
+     * @param libraryCache the cache
+     * @param contentSource the source of the library content of the LibraryLoader (e.g. the url of a FHIR server)
+     */
+    public SharedCachingLibraryLoaderDecorator(TranslatorOptionAwareLibraryLoader libraryLoader,
+            LibraryCache libraryCache, String contentSource) {
+        this.innerLoader = requireNonNull(libraryLoader, "libraryLoader can not be null.");
+        this.libraryCache = requireNonNull(libraryCache, "libraryCache can not be null.");
+        this.contentSource = requireNonNull(contentSource, "contentSource can not be null.");
+    }
+
+    @Override
+    public Library load(VersionedIdentifier libraryIdentifier) {
+        return this.libraryCache.load(this.contentSource, libraryIdentifier, this.getCqlTranslatorOptions(),
+                this.innerLoader);
+    }
+
+    @Override
+    public CqlTranslatorOptions getCqlTranslatorOptions() {
+        return this.innerLoader.getCqlTranslatorOptions();
+    }
+}
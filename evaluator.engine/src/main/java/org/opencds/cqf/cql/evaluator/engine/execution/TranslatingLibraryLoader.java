@@ -4,14 +4,17 @@ import static java.util.Objects.requireNonNull;
 import static org.opencds.cqf.cql.evaluator.converter.VersionedIdentifierConverter.toElmIdentifier;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -24,11 +27,9 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
-import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
-import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
 import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
 import org.cqframework.cql.cql2elm.model.serialization.LibraryWrapper;
 import org.cqframework.cql.elm.execution.Library;
@@ -39,21 +40,37 @@ import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentType;
+import org.opencds.cqf.cql.evaluator.engine.elm.BinaryLibraryReader;
 import org.opencds.cqf.cql.evaluator.engine.elm.LibraryMapper;
 import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The TranslatingLibraryLoader attempts to load a library from a set of
  * LibraryContentProviders. If pre-existing ELM is found for the requested
- * library and the ELM was generated using the same set of translator options as
+ * library (binary ELM is preferred, then JXSON, then XML) and the ELM was generated using the same set of translator options as
  * is provided to the TranslatingLibraryLoader, it will use that ELM. If the ELM
  * is not found, or the ELM translation options do not match, the
  * TranslatingLibraryLoader will attempt to regenerate the ELM by translating
  * CQL content with the requested options. If neither matching ELM content nor
  * CQL content is found for the requested Library, null is returned.
+ *
+ * The content of each format is requested from the LibraryContentProviders at
+ * once, so that a provider backed by a FHIR server only fetches the Library
+ * resource once per load.
+ *
+ * If an ElmCache is provided, the TranslatingLibraryLoader checks it for ELM
+ * previously translated from the same CQL content with the same options before
+ * translating, and stores the ELM it translates.
  */
 public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoader {
 
+    private static final Logger logger = LoggerFactory.getLogger(TranslatingLibraryLoader.class);
+
+    private static final Set<LibraryContentType> CONTENT_TYPES = EnumSet.of(LibraryContentType.BINARY,
+            LibraryContentType.JXSON, LibraryContentType.XML, LibraryContentType.CQL);
+
     protected static JAXBContext jaxbContext;
     protected static Marshaller marshaller;
 
@@ -64,8 +81,23 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
 
     protected LibraryManager libraryManager;
 
+    protected ElmCache elmCache;
+
+    protected LibraryTranslationService translationService;
+    protected String contentSource;
+
     public TranslatingLibraryLoader(ModelManager modelManager, List<LibraryContentProvider> libraryContentProviders,
             CqlTranslatorOptions translatorOptions) {
+        this(modelManager, libraryContentProviders, translatorOptions, null);
+    }
+
+    /**
+     * @param elmCache an ElmCache of previously translated CQL, or null to
+     *                 translate CQL every time
+     */
+    public TranslatingLibraryLoader(ModelManager modelManager, List<LibraryContentProvider> libraryContentProviders,
+            CqlTranslatorOptions translatorOptions, ElmCache elmCache) {
+        this.elmCache = elmCache;
         this.libraryContentProviders = requireNonNull(libraryContentProviders,
                 "libraryContentProviders can not be null");
 
@@ -78,14 +110,56 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
         }
     }
 
+    /**
+     * Creates a TranslatingLibraryLoader that translates CQL with a shared
+     * LibraryTranslationService, so that concurrent loads of different libraries
+     * are translated in parallel, concurrent loads of the same library share a
+     * translation, and included libraries are reused across loads.
+     *
+     * @param translationService      the LibraryTranslationService
+     * @param contentSource           the source of the library content (e.g. the
+     *                                url of a FHIR server). Libraries are only
+     *                                shared between loads of the same content
+     *                                source.
+     * @param libraryContentProviders the LibraryContentProviders of the content
+     *                                source, in the order they are searched
+     * @param translatorOptions       the translator options to translate with, or
+     *                                null for the default options
+     * @param elmCache                an ElmCache of previously translated CQL, or
+     *                                null to translate CQL every time
+     */
+    public TranslatingLibraryLoader(LibraryTranslationService translationService, String contentSource,
+            List<LibraryContentProvider> libraryContentProviders, CqlTranslatorOptions translatorOptions,
+            ElmCache elmCache) {
+        this.translationService = requireNonNull(translationService, "translationService can not be null");
+        this.contentSource = requireNonNull(contentSource, "contentSource can not be null");
+        this.libraryContentProviders = requireNonNull(libraryContentProviders,
+                "libraryContentProviders can not be null");
+        this.cqlTranslatorOptions = translatorOptions != null ? translatorOptions
+                : CqlTranslatorOptions.defaultOptions();
+        this.elmCache = elmCache;
+    }
+
     public Library load(VersionedIdentifier libraryIdentifier) {
-        Library library = this.getLibraryFromElm(libraryIdentifier);
+        Map<LibraryContentType, InputStream> contents = this.getLibraryContents(toElmIdentifier(libraryIdentifier),
+                CONTENT_TYPES);
+        try {
+            Library library = this.getLibraryFromElm(contents);
 
-        if (library != null && this.translatorOptionsMatch(library)) {
-            return library;
-        }
+            if (library != null && this.translatorOptionsMatch(library)) {
+                return library;
+            }
 
-        return this.translate(libraryIdentifier);
+            return this.translate(libraryIdentifier, contents.get(LibraryContentType.CQL));
+        } finally {
+            for (InputStream content : contents.values()) {
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    // Intentionally empty. The content is in memory.
+                }
+            }
+        }
     }
 
     @Override
@@ -93,9 +167,17 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
         return this.cqlTranslatorOptions;
     }
 
-    protected Library getLibraryFromElm(VersionedIdentifier libraryIdentifier) {
-        org.hl7.elm.r1.VersionedIdentifier versionedIdentifier = toElmIdentifier(libraryIdentifier);
-        InputStream content = this.getLibraryContent(versionedIdentifier, LibraryContentType.JXSON);
+    protected Library getLibraryFromElm(Map<LibraryContentType, InputStream> contents) {
+        InputStream content = contents.get(LibraryContentType.BINARY);
+        if (content != null) {
+            try {
+                return this.readBinary(content);
+            } catch (Exception e) {
+                // Intentionally empty. Fall through to jxson
+            }
+        }
+
+        content = contents.get(LibraryContentType.JXSON);
         if (content != null) {
             try {
                 return this.readJxson(content);
@@ -104,7 +186,7 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
             }
         }
 
-        content = this.getLibraryContent(versionedIdentifier, LibraryContentType.XML);
+        content = contents.get(LibraryContentType.XML);
         if (content != null) {
             try {
                 return this.readXml(content);
@@ -128,7 +210,14 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
     protected InputStream getLibraryContent(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier,
             LibraryContentType libraryContentType) {
         for (LibraryContentProvider libraryContentProvider : libraryContentProviders) {
-            InputStream content = libraryContentProvider.getLibraryContent(libraryIdentifier, libraryContentType);
+            InputStream content;
+            try {
+                content = libraryContentProvider.getLibraryContent(libraryIdentifier, libraryContentType);
+            } catch (UnsupportedOperationException e) {
+                // Providers that predate a content type may not support it
+                continue;
+            }
+
             if (content != null) {
                 return content;
             }
@@ -137,24 +226,59 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
         return null;
     }
 
-    protected Library translate(VersionedIdentifier libraryIdentifier) {
-        TranslatedLibrary library = null;
-        List<CqlTranslatorException> errors = new ArrayList<>();
-        try {
-            library = this.libraryManager.resolveLibrary(toElmIdentifier(libraryIdentifier),
-                    this.cqlTranslatorOptions, errors);
-        } catch (Exception e) {
-            throw new CqlException(String.format("Unable translate library %s", libraryIdentifier.getId(), e));
+    // Gets the content of each format from the first provider that has it
+    protected Map<LibraryContentType, InputStream> getLibraryContents(
+            org.hl7.elm.r1.VersionedIdentifier libraryIdentifier, Set<LibraryContentType> libraryContentTypes) {
+        Map<LibraryContentType, InputStream> contents = new EnumMap<>(LibraryContentType.class);
+        for (LibraryContentProvider libraryContentProvider : libraryContentProviders) {
+            Set<LibraryContentType> missing = EnumSet.noneOf(LibraryContentType.class);
+            missing.addAll(libraryContentTypes);
+            missing.removeAll(contents.keySet());
+            if (missing.isEmpty()) {
+                break;
+            }
+
+            contents.putAll(libraryContentProvider.getLibraryContents(libraryIdentifier, missing));
         }
 
-        if (!errors.isEmpty()) {
-            for (CqlTranslatorException e : errors) {
-                if (e.getSeverity() == ErrorSeverity.Error) {
-                    throw new CqlException(String.format("Translation of library %s failed with the following message: %s", libraryIdentifier.getId(), e.getMessage()));
+        return contents;
+    }
+
+    /**
+     * @param cqlContent the CQL content of the library, or null if there is none.
+     *                   It is used to find ELM in the ElmCache.
+     */
+    protected Library translate(VersionedIdentifier libraryIdentifier, InputStream cqlContent) {
+        String elmCacheKey = this.getElmCacheKey(libraryIdentifier, cqlContent);
+        if (elmCacheKey != null) {
+            String elm = this.elmCache.get(elmCacheKey);
+            if (elm != null) {
+                try {
+                    return this.readJxson(elm);
+                } catch (Exception e) {
+                    logger.warn("Unable to read cached ELM for library {}. Translating instead: {}",
+                            libraryIdentifier.getId(), e.getMessage());
                 }
             }
         }
 
+        TranslatedLibrary library;
+        if (this.translationService != null) {
+            library = this.translationService.translateAndWait(this.contentSource, this.libraryContentProviders,
+                    this.cqlTranslatorOptions, toElmIdentifier(libraryIdentifier));
+        } else {
+            library = LibraryTranslationService.resolveLibrary(this.libraryManager, toElmIdentifier(libraryIdentifier),
+                    this.cqlTranslatorOptions);
+        }
+
+        if (elmCacheKey != null) {
+            try {
+                this.elmCache.put(elmCacheKey, this.toJxson(library.getLibrary()));
+            } catch (Exception e) {
+                logger.warn("Unable to cache ELM for library {}: {}", libraryIdentifier.getId(), e.getMessage());
+            }
+        }
+
         try {
             return LibraryMapper.INSTANCE.map(library.getLibrary());
         }
@@ -163,6 +287,33 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
         }
     }
 
+    // Keys the ELM by the CQL content of the library, or returns null if there is no ElmCache or CQL content
+    protected String getElmCacheKey(VersionedIdentifier libraryIdentifier, InputStream cqlContent) {
+        if (this.elmCache == null || cqlContent == null) {
+            return null;
+        }
+
+        try (InputStream input = cqlContent) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            return ElmCache.key(new String(output.toByteArray(), StandardCharsets.UTF_8), this.cqlTranslatorOptions);
+        } catch (IOException e) {
+            logger.warn("Unable to read CQL content for library {}: {}", libraryIdentifier.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    protected Library readBinary(InputStream inputStream) throws IOException {
+        try (InputStream input = inputStream) {
+            return BinaryLibraryReader.read(input);
+        }
+    }
+
     protected synchronized Library readJxson(String json) throws IOException, JAXBException {
         return this.readJxson(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
     }
@@ -187,7 +338,8 @@ public class TranslatingLibraryLoader implements TranslatorOptionAwareLibraryLoa
         }
     }
 
-    protected synchronized String toJxson(org.hl7.elm.r1.Library library) {
+    // The ObjectMapper is thread-safe, so conversions to JXSON are not synchronized
+    protected String toJxson(org.hl7.elm.r1.Library library) {
         try {
             return convertToJxson(library);
         } catch (JsonProcessingException e) {
@@ -0,0 +1,169 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.cqframework.cql.elm.execution.CodeSystemDef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ValueSetPrefetchingLibraryLoaderDecorator expands every ValueSet defined by a Library and the Libraries it
+ * includes as soon as the Library is loaded, rather than when the first subject that uses each ValueSet is evaluated.
+ * The ValueSets are expanded concurrently on the supplied ExecutorService, and loading waits for them to finish. The
+ * TerminologyProvider should cache expansions in a thread-safe cache that is also used by the evaluation (e.g. a
+ * SharedCachingTerminologyProviderDecorator), otherwise the prefetched expansions are discarded.
+ *
+ * The included Libraries are loaded when the Library is loaded and are held by the decorator, so the decorator is
+ * meant to be short-lived (e.g. for the duration of a request). A ValueSet that can not be expanded is logged and left
+ * to be expanded during evaluation.
+ */
+public class ValueSetPrefetchingLibraryLoaderDecorator implements LibraryLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetPrefetchingLibraryLoaderDecorator.class);
+
+    private final LibraryLoader innerLoader;
+    private final TerminologyProvider terminologyProvider;
+    private final ExecutorService executorService;
+
+    private final Map<VersionedIdentifier, Library> libraries = new ConcurrentHashMap<>();
+    private final Set<String> prefetchedValueSets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param libraryLoader the LibraryLoader to decorate
+     * @param terminologyProvider the TerminologyProvider used to expand ValueSets
+     * @param executorService a bounded ExecutorService on which ValueSets are expanded. It is not shut down by the
+     *                        decorator.
+     */
+    public ValueSetPrefetchingLibraryLoaderDecorator(LibraryLoader libraryLoader,
+            TerminologyProvider terminologyProvider, ExecutorService executorService) {
+        this.innerLoader = requireNonNull(libraryLoader, "libraryLoader can not be null.");
+        this.terminologyProvider = requireNonNull(terminologyProvider, "terminologyProvider can not be null.");
+        this.executorService = requireNonNull(executorService, "executorService can not be null.");
+    }
+
+    @Override
+    public Library load(VersionedIdentifier libraryIdentifier) {
+        Library library = this.libraries.get(libraryIdentifier);
+        if (library != null) {
+            return library;
+        }
+
+        Map<String, ValueSetInfo> valueSets = new LinkedHashMap<>();
+        library = this.loadWithIncludes(libraryIdentifier, valueSets);
+        this.prefetch(valueSets);
+
+        return library;
+    }
+
+    private Library loadWithIncludes(VersionedIdentifier libraryIdentifier, Map<String, ValueSetInfo> valueSets) {
+        Library library = this.libraries.get(libraryIdentifier);
+        if (library != null) {
+            return library;
+        }
+
+        library = this.innerLoader.load(libraryIdentifier);
+        if (library == null) {
+            return null;
+        }
+
+        this.libraries.put(libraryIdentifier, library);
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef valueSetDef : library.getValueSets().getDef()) {
+                ValueSetInfo valueSet = toValueSetInfo(library, valueSetDef);
+                String key = valueSet.getId() + "|" + (valueSet.getVersion() != null ? valueSet.getVersion() : "");
+                if (this.prefetchedValueSets.add(key)) {
+                    valueSets.put(key, valueSet);
+                }
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef includeDef : library.getIncludes().getDef()) {
+                this.loadWithIncludes(
+                        new VersionedIdentifier().withId(includeDef.getPath()).withVersion(includeDef.getVersion()),
+                        valueSets);
+            }
+        }
+
+        return library;
+    }
+
+    private void prefetch(Map<String, ValueSetInfo> valueSets) {
+        if (valueSets.isEmpty()) {
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<>(valueSets.size());
+        for (ValueSetInfo valueSet : valueSets.values()) {
+            tasks.add(() -> this.terminologyProvider.expand(valueSet));
+        }
+
+        List<Future<Object>> futures;
+        try {
+            futures = this.executorService.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RejectedExecutionException e) {
+            logger.warn("Unable to prefetch ValueSets: {}", e.getMessage());
+            return;
+        }
+
+        int i = 0;
+        for (ValueSetInfo valueSet : valueSets.values()) {
+            try {
+                futures.get(i++).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.warn("Unable to prefetch ValueSet {}: {}", valueSet.getId(), e.getCause().getMessage());
+            }
+        }
+
+        logger.debug("Prefetched {} ValueSets", valueSets.size());
+    }
+
+    private static ValueSetInfo toValueSetInfo(Library library, ValueSetDef valueSetDef) {
+        ValueSetInfo valueSet = new ValueSetInfo().withId(valueSetDef.getId()).withVersion(valueSetDef.getVersion());
+        if (valueSetDef.getCodeSystem() != null && library.getCodeSystems() != null) {
+            for (CodeSystemRef codeSystemRef : valueSetDef.getCodeSystem()) {
+                // CodeSystems of included Libraries are resolved by the engine during evaluation
+                if (codeSystemRef.getLibraryName() != null) {
+                    continue;
+                }
+
+                for (CodeSystemDef codeSystemDef : library.getCodeSystems().getDef()) {
+                    if (codeSystemDef.getName().equals(codeSystemRef.getName())) {
+                        valueSet.withCodeSystem(new CodeSystemInfo().withId(codeSystemDef.getId())
+                                .withVersion(codeSystemDef.getVersion()));
+                    }
+                }
+            }
+        }
+
+        return valueSet;
+    }
+}
@@ -2,10 +2,16 @@ package org.opencds.cqf.cql.evaluator.engine.retrieve;
 
 import static java.util.Objects.requireNonNull;
 
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -13,34 +19,63 @@ import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverterFactory;
 import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.engine.terminology.BatchingTerminologyProvider;
 import org.opencds.cqf.cql.evaluator.engine.util.CodeUtil;
-import org.opencds.cqf.cql.evaluator.fhir.util.FhirPathCache;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessor;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessorCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.util.BundleUtil;
 
+/**
+ * This class implements the RetrieveProvider API, using a Bundle as the source of data. The Bundle is walked once at
+ * construction to build an index of resources by type. Relationships to a context (e.g. Patient) are indexed lazily
+ * the first time a given dataType and contextPath are retrieved, so that subsequent retrieves for any context value
+ * are simple lookups rather than scans of the Bundle. Terminology and date filtering are likewise backed by indexes
+ * that are built the first time a given codePath or datePath is used for a dataType.
+ *
+ * Date and terminology filtering are applied lazily as the results are iterated, so callers that only need to know
+ * whether a result exists (or only need the first result) do not filter the remaining resources. Each iteration
+ * of the results applies the filters again.
+ */
 public class BundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
 
 	private static final Logger logger = LoggerFactory.getLogger(BundleRetrieveProvider.class);
 
-	private final IBaseBundle bundle;
 	private final FhirContext fhirContext;
 	private final CodeUtil codeUtil;
-	private final IFhirPath fhirPath;
+
+	private final Map<String, List<IBaseResource>> resourcesByType;
+	private final Map<String, Map<String, List<IBaseResource>>> resourcesByContext = new ConcurrentHashMap<>();
+	private final Map<String, ResourceCodeIndex> codeIndexes = new ConcurrentHashMap<>();
+	private final Map<String, ResourceDateIndex> dateIndexes = new ConcurrentHashMap<>();
 
 	public BundleRetrieveProvider(final FhirContext fhirContext, final IBaseBundle iBaseBundle) {
 		
-		this.fhirContext = requireNonNull(fhirContext, "bundle can not be null.");
-		this.bundle = requireNonNull(iBaseBundle, "bundle can not be null.");
+		this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+		requireNonNull(iBaseBundle, "bundle can not be null.");
+		this.codeUtil = new CodeUtil(fhirContext);
+		this.resourcesByType = this.indexByType(BundleUtil.toListOfResources(fhirContext, iBaseBundle));
+	}
+
+	/**
+	 * Creates a BundleRetrieveProvider for resources that are not in a Bundle (e.g. the results of a search)
+	 * @param fhirContext the FhirContext of the resources
+	 * @param resources the resources
+	 */
+	public BundleRetrieveProvider(final FhirContext fhirContext, final Iterable<? extends IBaseResource> resources) {
+
+		this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+		requireNonNull(resources, "resources can not be null.");
 		this.codeUtil = new CodeUtil(fhirContext);
-		this.fhirPath = FhirPathCache.cachedForContext(fhirContext);
+		this.resourcesByType = this.indexByType(resources);
 	}
 
 	@Override
@@ -48,30 +83,27 @@ public class BundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
 			final String templateId, final String codePath, final Iterable<Code> codes, final String valueSet, final String datePath,
 			final String dateLowPath, final String dateHighPath, final Interval dateRange) {
 
-		List<? extends IBaseResource> resources = BundleUtil.toListOfResourcesOfType(
-				this.fhirContext, this.bundle,
-				this.fhirContext.getResourceDefinition(dataType).getImplementingClass());
+		String resourceType = this.fhirContext.getResourceDefinition(dataType).getName();
 
-		resources = this.filterToContext(dataType, context, contextPath, contextValue, resources);
-		resources = this.filterToTerminology(dataType, codePath, codes, valueSet, resources);
+		// The context is resolved eagerly from the index. The date and terminology filters are lazy
+		// stages over the candidates, so only as many resources are filtered as are actually consumed.
+		List<? extends IBaseResource> candidates = this.filterToContext(resourceType, context, contextPath, contextValue);
+		Iterable<? extends IBaseResource> resources = this.filterToDates(resourceType, datePath, dateLowPath, dateHighPath,
+				dateRange, candidates);
+		int candidateCount = resources instanceof List ? ((List<?>) resources).size() : candidates.size();
+		resources = this.filterToTerminology(resourceType, codePath, codes, valueSet, candidateCount, resources);
 
-		return resources.stream().map(x -> (Object) x).collect(Collectors.toList());
+		return this.asObjects(resources);
 	}
 
-	private boolean anyCodeMatch(final Iterable<Code> left, final Iterable<Code> right) {
-		if (left == null || right == null) {
-			return false;
-		}
-
-		for (final Code code : left) {
-			for (final Code otherCode : right) {
-				if (code.getCode() != null && code.getCode().equals(otherCode.getCode()) && code.getSystem() != null && code.getSystem().equals(otherCode.getSystem())) {
-					return true;
-				}
-			}
+	@SuppressWarnings("unchecked")
+	private Iterable<Object> asObjects(Iterable<? extends IBaseResource> resources) {
+		if (resources instanceof List) {
+			return Collections.<Object>unmodifiableList((List<? extends IBaseResource>) resources);
 		}
 
-		return false;
+		// FilteredIterable is read-only, so it is safe to view it as an Iterable of Objects
+		return (Iterable<Object>) (Iterable<?>) resources;
 	}
 
 	public boolean anyCodeInValueSet(final Iterable<Code> codes, final String valueSet) {
@@ -94,30 +126,42 @@ public class BundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
 		return false;
 	}
 
-	// Special case filtering to handle "codes" that are actually ids. This is a
-	// workaround to handle filtering by Id.
-	private boolean isPrimitiveMatch(final String dataType, final IPrimitiveType<?> code, final Iterable<Code> codes) {
-		if (code == null || codes == null) {
-			return false;
+	private Iterable<? extends IBaseResource> filterToDates(final String dataType, final String datePath, final String dateLowPath,
+			final String dateHighPath, final Interval dateRange, final List<? extends IBaseResource> resources) {
+		if (dateRange == null) {
+			return resources;
 		}
 
-		// This handles the case that the value is a reference such as
-		// "Medication/med-id"
-		final String primitiveString = code.getValueAsString().replace(dataType + "/", "");
-		for (final Object c : codes) {
-			if (c instanceof String) {
-				final String s = (String) c;
-				if (s.equals(primitiveString)) {
-					return true;
-				}
-			}
+		if (datePath == null && dateLowPath == null && dateHighPath == null) {
+			return resources;
 		}
 
-		return false;
+		// Dates are indexed in the zone of the evaluation, so each zone has its own index
+		final ZoneId zone = ResourceDateIndex.getEvaluationZone();
+		final long[] bounds = ResourceDateIndex.toBounds(dateRange, zone);
+		if (bounds == null) {
+			logger.info("Unable to filter {} to non-temporal dateRange {}. Returning all resources.", dataType, dateRange);
+			return resources;
+		}
+
+		final ResourceDateIndex dateIndex = this.dateIndexes.computeIfAbsent(
+				dataType + "|" + datePath + "|" + dateLowPath + "|" + dateHighPath + "|" + zone.getId(),
+				k -> new ResourceDateIndex(new FhirTypeConverterFactory().create(this.fhirContext.getVersion().getVersion()),
+						this.getPathAccessor(dataType, datePath), this.getPathAccessor(dataType, dateLowPath),
+						this.getPathAccessor(dataType, dateHighPath),
+						this.resourcesByType.getOrDefault(dataType, Collections.emptyList()), zone));
+
+		// If no other filters have been applied, the index can answer the query directly.
+		if (resources.size() >= dateIndex.getResourceCount()) {
+			return dateIndex.getResources(bounds[0], bounds[1]);
+		}
+
+		return new FilteredIterable<IBaseResource>(resources, res -> dateIndex.overlaps(res, bounds[0], bounds[1]));
 	}
 
-	private List<? extends IBaseResource> filterToTerminology(final String dataType, final String codePath, final Iterable<Code> codes,
-			final String valueSet, final List<? extends IBaseResource> resources) {
+	private Iterable<? extends IBaseResource> filterToTerminology(final String dataType, final String codePath,
+			final Iterable<Code> codes, final String valueSet, final int candidateCount,
+			final Iterable<? extends IBaseResource> resources) {
 		if (codes == null && valueSet == null) {
 			return resources;
 		}
@@ -126,39 +170,69 @@ public class BundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
 			return resources;
 		}
 
-		final List<IBaseResource> filtered = new ArrayList<>();
+		final ResourceCodeIndex codeIndex = this.codeIndexes.computeIfAbsent(dataType + "|" + codePath,
+				k -> new ResourceCodeIndex(this.getPathAccessor(dataType, codePath), this.codeUtil, dataType,
+						this.resourcesByType.getOrDefault(dataType, Collections.emptyList())));
+
+		final List<Code> requestedCodes = new ArrayList<>();
+		final Set<String> ids = new HashSet<>();
+		if (codes != null) {
+			// "codes" may contain Strings that are actually ids. This is a
+			// workaround to handle filtering by Id.
+			for (final Object c : codes) {
+				if (c instanceof Code) {
+					requestedCodes.add((Code) c);
+				}
+				else if (c instanceof String) {
+					ids.add((String) c);
+				}
+			}
+		}
 
-		for (final IBaseResource res : resources) {
-			final List<IBase> values = this.fhirPath.evaluate(res, codePath, IBase.class);
+		final long[] codeKeys = codeIndex.keys(requestedCodes);
 
-			if (values != null && values.size() == 1 && values.get(0) instanceof IPrimitiveType) {
-				if (isPrimitiveMatch(dataType, (IPrimitiveType<?>) values.get(0), codes)) {
-					filtered.add(res);
-				}
-				continue;
+		// If the requested codes are rare relative to the candidates, probe the index once.
+		// Otherwise, check the indexed codes of each candidate.
+		final Set<IBaseResource> codeMatches = (codeKeys.length > 0 || !ids.isEmpty())
+				&& codeIndex.count(codeKeys, ids) < candidateCount ? codeIndex.getResources(codeKeys, ids) : null;
+
+		if (valueSet != null && this.terminologyProvider instanceof BatchingTerminologyProvider) {
+			this.prefetchMembership(codeIndex, resources, valueSet);
+		}
+
+		return new FilteredIterable<IBaseResource>(resources, res -> {
+			boolean codeMatch = codeMatches != null ? codeMatches.contains(res) : codeIndex.matches(res, codeKeys, ids);
+			if (codeMatch) {
+				return true;
 			}
 
-			final List<Code> resourceCodes = this.codeUtil.getElmCodesFromObject(values);
+			final List<Code> resourceCodes = codeIndex.getCodes(res);
 			if (resourceCodes == null) {
-				continue;
+				return false;
 			}
 
-			if (anyCodeMatch(resourceCodes, codes)) {
-				filtered.add(res);
-				continue;
-			}
+			return anyCodeInValueSet(resourceCodes, valueSet);
+		});
+	}
 
-			if (anyCodeInValueSet(resourceCodes, valueSet)) {
-				filtered.add(res);
-				continue;
+	// Checks the codes of all the candidates in one batch rather than a round trip for each resource
+	private void prefetchMembership(final ResourceCodeIndex codeIndex, final Iterable<? extends IBaseResource> resources,
+			final String valueSet) {
+		final List<Code> codes = new ArrayList<>();
+		for (IBaseResource resource : resources) {
+			final List<Code> resourceCodes = codeIndex.getCodes(resource);
+			if (resourceCodes != null) {
+				codes.addAll(resourceCodes);
 			}
 		}
 
-		return filtered;
+		((BatchingTerminologyProvider) this.terminologyProvider).prefetch(codes,
+				new ValueSetInfo().withId(valueSet));
 	}
 
 	private List<? extends IBaseResource> filterToContext(final String dataType, final String context, final String contextPath,
-			final Object contextValue, final List<? extends IBaseResource> resources) {
+			final Object contextValue) {
+		List<IBaseResource> resources = this.resourcesByType.getOrDefault(dataType, Collections.emptyList());
 		if (context == null || contextValue == null || contextPath == null) {
 			logger.info(
 					"Unable to relate {} to {} context with contextPath: {} and contextValue: {}. Returning all resources.",
@@ -166,78 +240,100 @@ public class BundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
 			return resources;
 		}
 
-		final List<IBaseResource> filtered = new ArrayList<>();
+		Map<String, List<IBaseResource>> contextIndex = this.resourcesByContext.computeIfAbsent(dataType + "|" + contextPath,
+				k -> this.indexByContext(dataType, contextPath, resources));
 
-		for (final IBaseResource res : resources) {
-			final Optional<IBase> resContextValue = this.fhirPath.evaluateFirst(res, contextPath, IBase.class);
-			if (resContextValue.isPresent() && resContextValue.get() instanceof IIdType) {
-				String id = ((IIdType)resContextValue.get()).getIdPart();
+		return contextIndex.getOrDefault(contextValue, Collections.emptyList());
+	}
 
-				if (id == null) {
-					logger.debug("Found null id for {} resource. Skipping.", dataType);
-					continue;
-				}
+	private Map<String, List<IBaseResource>> indexByType(final Iterable<? extends IBaseResource> resources) {
+		Map<String, List<IBaseResource>> index = new HashMap<>();
+		for (IBaseResource resource : resources) {
+			String resourceType = this.fhirContext.getResourceDefinition(resource).getName();
+			index.computeIfAbsent(resourceType, k -> new ArrayList<>()).add(resource);
+		}
 
-				if (id.startsWith("urn:")) {
-					logger.debug("Found {} with urn: prefix. Stripping.", dataType);
-					id = stripUrnScheme(id);
-				}
-				
-				if (!id.equals(contextValue)) {
-					logger.debug("Found {} with id  {}. Skipping.", dataType, id);
-					continue;
-				}
+		return index;
+	}
+
+	private Map<String, List<IBaseResource>> indexByContext(final String dataType, final String contextPath,
+			final List<IBaseResource> resources) {
+		Map<String, List<IBaseResource>> index = new HashMap<>();
+		for (IBaseResource resource : resources) {
+			String resourceContextValue = this.getContextValue(dataType, contextPath, resource);
+			if (resourceContextValue == null) {
+				continue;
 			}
-			else if (resContextValue.isPresent() && resContextValue.get() instanceof IBaseReference) {
-					String id = ((IBaseReference)resContextValue.get()).getReferenceElement().getValue();
-					if (id == null) {
-						logger.debug("Found null reference for {} resource. Skipping.", dataType);
-						continue;
-					}
-
-					if (id.startsWith("urn:")) {
-						logger.debug("Found reference with urn: prefix. Stripping.", dataType);
-						id = stripUrnScheme(id);
-					}
-	
-					if (id.contains("/")) {
-						id = id.split("/")[1];
-					}
-					
-					if (!id.equals(contextValue)) {
-						logger.info("Found {} with id  {}. Skipping.", dataType, id);
-						continue;
-					}
-				}
-			else {
-				final Optional<IBase> reference = this.fhirPath.evaluateFirst(res, "reference", IBase.class);
-				if (!reference.isPresent()) {
-					logger.info("Found {} resource unrelated to context. Skipping.", dataType);
-					continue;
-				}
 
-				String referenceString = ((IPrimitiveType<?>)reference.get()).getValueAsString();
-				if (referenceString.startsWith("urn:")) {
-					logger.debug("Found reference with urn: prefix. Stripping.", dataType);
-					referenceString = stripUrnScheme(referenceString);
-				}
+			index.computeIfAbsent(resourceContextValue, k -> new ArrayList<>()).add(resource);
+		}
 
-				if (referenceString.contains("/")) {
-					referenceString = referenceString.substring(referenceString.indexOf("/") + 1,
-							referenceString.length());
-				}
+		return index;
+	}
 
-				if (!referenceString.equals((String) contextValue)) {
-					logger.info("Found {} resource for context value: {} when expecting: {}. Skipping.", dataType,
-							referenceString, (String) contextValue);
-					continue;
-				}
+	private PathAccessor getPathAccessor(final String dataType, final String path) {
+		if (path == null) {
+			return null;
+		}
+
+		return PathAccessorCache.cachedFor(this.fhirContext, dataType, path);
+	}
+
+	private String getContextValue(final String dataType, final String contextPath, final IBaseResource resource) {
+		final Optional<IBase> resContextValue = this.getPathAccessor(dataType, contextPath).evaluateFirst(resource, IBase.class);
+		if (resContextValue.isPresent() && resContextValue.get() instanceof IIdType) {
+			String id = ((IIdType)resContextValue.get()).getIdPart();
+
+			if (id == null) {
+				logger.debug("Found null id for {} resource. Skipping.", dataType);
+				return null;
+			}
+
+			if (id.startsWith("urn:")) {
+				logger.debug("Found {} with urn: prefix. Stripping.", dataType);
+				id = stripUrnScheme(id);
+			}
+
+			return id;
+		}
+		else if (resContextValue.isPresent() && resContextValue.get() instanceof IBaseReference) {
+			String id = ((IBaseReference)resContextValue.get()).getReferenceElement().getValue();
+			if (id == null) {
+				logger.debug("Found null reference for {} resource. Skipping.", dataType);
+				return null;
+			}
+
+			if (id.startsWith("urn:")) {
+				logger.debug("Found reference with urn: prefix. Stripping.", dataType);
+				id = stripUrnScheme(id);
+			}
+
+			if (id.contains("/")) {
+				id = id.split("/")[1];
 			}
 
-			filtered.add(res);
+			return id;
 		}
+		else {
+			final Optional<IBase> reference = this.getPathAccessor(dataType, "reference").evaluateFirst(resource, IBase.class);
+			if (!reference.isPresent()) {
+				logger.debug("Found {} resource unrelated to context. Skipping.", dataType);
+				return null;
+			}
 
-		return filtered;
+			String referenceString = ((IPrimitiveType<?>)reference.get()).getValueAsString();
+			if (referenceString.startsWith("urn:")) {
+				logger.debug("Found reference with urn: prefix. Stripping.", dataType);
+				referenceString = stripUrnScheme(referenceString);
+			}
+
+			if (referenceString.contains("/")) {
+				referenceString = referenceString.substring(referenceString.indexOf("/") + 1,
+						referenceString.length());
+			}
+
+			return referenceString;
+		}
 	}
 
     private String stripUrnScheme(String uri) {
@@ -0,0 +1,67 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * This class is a lazy view of the elements of a source Iterable that match a predicate. The predicate is only
+ * evaluated as elements are requested, so consumers that stop early (e.g. to check for existence or to take the
+ * first element) do not filter the rest of the source. Each call to iterator() starts a new pass over the source.
+ */
+class FilteredIterable<T> implements Iterable<T> {
+
+    private final Iterable<? extends T> source;
+    private final Predicate<? super T> predicate;
+
+    FilteredIterable(Iterable<? extends T> source, Predicate<? super T> predicate) {
+        this.source = requireNonNull(source, "source can not be null");
+        this.predicate = requireNonNull(predicate, "predicate can not be null");
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new FilteredIterator<T>(this.source.iterator(), this.predicate);
+    }
+
+    private static class FilteredIterator<T> implements Iterator<T> {
+
+        private final Iterator<? extends T> source;
+        private final Predicate<? super T> predicate;
+
+        private T next;
+        private boolean hasNext;
+
+        FilteredIterator(Iterator<? extends T> source, Predicate<? super T> predicate) {
+            this.source = source;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!this.hasNext && this.source.hasNext()) {
+                T candidate = this.source.next();
+                if (this.predicate.test(candidate)) {
+                    this.next = candidate;
+                    this.hasNext = true;
+                }
+            }
+
+            return this.hasNext;
+        }
+
+        @Override
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            T result = this.next;
+            this.next = null;
+            this.hasNext = false;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * This class indexes FHIR Bulk Data NDJSON files (one resource per line) by the Patient whose compartment each
+ * resource belongs to. The files are read once, and only the file, offset, and length of each line is kept in memory.
+ * The resources are parsed from the files again when they are requested, so the heap needed is bounded by the size
+ * of the index rather than the size of the files.
+ *
+ * While indexing, the type, id, and references of each resource are read with a streaming JSON parser rather than by
+ * parsing the resource, unless a Patient compartment path of its type is more than a dotted path of element names.
+ * A line that is valid JSON but not a valid resource is therefore only reported when it is requested.
+ *
+ * Resources that are not in the compartment of any Patient (e.g. Medications) are in a shared partition with an empty
+ * Patient id.
+ */
+public class NdjsonResourceIndex implements PatientPartitionedResources, Closeable {
+
+    public static final String NDJSON_EXTENSION = ".ndjson";
+
+    static final String SHARED_PARTITION = "";
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final FhirContext fhirContext;
+    private final List<FileChannel> files = new ArrayList<>();
+    private final Map<String, Map<String, Lines>> linesByTypeAndPatient = new HashMap<>();
+    private final Map<String, Lines> linesByType = new HashMap<>();
+
+    /**
+     * Indexes the NDJSON files in a directory.
+     * @param fhirContext the FhirContext of the resources
+     * @param directory the directory
+     * @return the index
+     * @throws IOException if the files can not be read
+     */
+    public static NdjsonResourceIndex forDirectory(FhirContext fhirContext, Path directory) throws IOException {
+        requireNonNull(directory, "directory can not be null.");
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + NDJSON_EXTENSION)) {
+            stream.forEach(files::add);
+        }
+
+        Collections.sort(files);
+        return new NdjsonResourceIndex(fhirContext, files);
+    }
+
+    /**
+     * @param directory a directory
+     * @return true if the directory contains NDJSON files
+     * @throws IOException if the directory can not be read
+     */
+    public static boolean hasNdjsonFiles(Path directory) throws IOException {
+        requireNonNull(directory, "directory can not be null.");
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + NDJSON_EXTENSION)) {
+            return stream.iterator().hasNext();
+        }
+    }
+
+    public NdjsonResourceIndex(FhirContext fhirContext, List<Path> files) throws IOException {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+        requireNonNull(files, "files can not be null.");
+
+        try {
+            PatientCompartment patientCompartment = new PatientCompartment(fhirContext);
+            Map<String, String> names = new HashMap<>();
+            for (Path file : files) {
+                this.files.add(FileChannel.open(file, StandardOpenOption.READ));
+                this.index(this.files.size() - 1, file, patientCompartment, names);
+            }
+        } catch (IOException | RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    private void index(int fileIndex, Path file, PatientCompartment patientCompartment, Map<String, String> names)
+            throws IOException {
+        IParser parser = this.fhirContext.newJsonParser();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] line = new byte[8192];
+        int length = 0;
+        long lineStart = 0;
+        long position = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+
+                    line = append(line, length, buffer, start, i - start);
+                    length += i - start;
+                    this.indexLine(fileIndex, file, lineStart, line, length, parser, patientCompartment, names);
+
+                    position += i - start + 1;
+                    lineStart = position;
+                    length = 0;
+                    start = i + 1;
+                }
+
+                line = append(line, length, buffer, start, read - start);
+                length += read - start;
+                position += read - start;
+            }
+        }
+
+        this.indexLine(fileIndex, file, lineStart, line, length, parser, patientCompartment, names);
+    }
+
+    private static byte[] append(byte[] line, int length, byte[] bytes, int offset, int count) {
+        if (length + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        }
+
+        System.arraycopy(bytes, offset, line, length, count);
+        return line;
+    }
+
+    private void indexLine(int fileIndex, Path file, long lineStart, byte[] line, int length, IParser parser,
+            PatientCompartment patientCompartment, Map<String, String> names) {
+        // Trailing carriage returns and blank lines are ignored
+        int end = length;
+        while (end > 0 && Character.isWhitespace(line[end - 1])) {
+            end--;
+        }
+
+        if (end == 0) {
+            return;
+        }
+
+        String resourceType;
+        Set<String> patientIds;
+        try {
+            ScannedResource scanned = scan(line, end);
+            resourceType = scanned.resourceType;
+            patientIds = patientCompartment.getPatientIds(resourceType, scanned.id, scanned.references);
+            if (patientIds == null) {
+                IBaseResource resource = parser.parseResource(new String(line, 0, end, StandardCharsets.UTF_8));
+                patientIds = patientCompartment.getPatientIds(resource);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException(String.format("Unable to parse line at offset %d of %s",
+                    lineStart, file), e);
+        }
+
+        resourceType = names.computeIfAbsent(resourceType, x -> x);
+        this.linesByType.computeIfAbsent(resourceType, x -> new Lines()).add(fileIndex, lineStart, end);
+
+        if (patientIds.isEmpty()) {
+            patientIds.add(SHARED_PARTITION);
+        }
+
+        Map<String, Lines> linesByPatient = this.linesByTypeAndPatient.computeIfAbsent(resourceType,
+                x -> new HashMap<>());
+        for (String patientId : patientIds) {
+            linesByPatient.computeIfAbsent(names.computeIfAbsent(patientId, x -> x), x -> new Lines())
+                    .add(fileIndex, lineStart, end);
+        }
+    }
+
+    /**
+     * Reads the type, id, and reference strings of a resource from its JSON.
+     */
+    private static ScannedResource scan(byte[] line, int length) throws IOException {
+        ScannedResource scanned = new ScannedResource();
+        try (JsonParser json = JSON_FACTORY.createParser(line, 0, length)) {
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object.");
+            }
+
+            scanObject(json, null, scanned);
+            if (json.nextToken() != null) {
+                throw new IOException("Unexpected content after the JSON object.");
+            }
+        }
+
+        if (scanned.resourceType == null) {
+            throw new IOException("Missing resourceType.");
+        }
+
+        return scanned;
+    }
+
+    private static void scanObject(JsonParser json, String path, ScannedResource scanned) throws IOException {
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String name = json.getCurrentName();
+            JsonToken token = json.nextToken();
+            if (path == null && token == JsonToken.VALUE_STRING && "resourceType".equals(name)) {
+                scanned.resourceType = json.getText();
+            } else if (path == null && token == JsonToken.VALUE_STRING && "id".equals(name)) {
+                scanned.id = json.getText();
+            } else if (path != null && token == JsonToken.VALUE_STRING && "reference".equals(name)) {
+                scanned.references.computeIfAbsent(path, x -> new ArrayList<>()).add(json.getText());
+            } else if (path == null && "contained".equals(name)) {
+                // The references of contained resources are not references of the resource
+                json.skipChildren();
+            } else {
+                scanValue(json, token, path == null ? name : path + "." + name, scanned);
+            }
+        }
+    }
+
+    private static void scanValue(JsonParser json, JsonToken token, String path, ScannedResource scanned)
+            throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            scanObject(json, path, scanned);
+        } else if (token == JsonToken.START_ARRAY) {
+            JsonToken element;
+            while ((element = json.nextToken()) != JsonToken.END_ARRAY) {
+                scanValue(json, element, path, scanned);
+            }
+        }
+    }
+
+    private static class ScannedResource {
+        String resourceType;
+        String id;
+        final Map<String, List<String>> references = new HashMap<>();
+    }
+
+    @Override
+    public Set<String> getPatientIds() {
+        Set<String> ids = new HashSet<>();
+        for (Map<String, Lines> linesByPatient : this.linesByTypeAndPatient.values()) {
+            ids.addAll(linesByPatient.keySet());
+        }
+
+        ids.remove(SHARED_PARTITION);
+        return Collections.unmodifiableSet(ids);
+    }
+
+    @Override
+    public List<IBaseResource> getResources(String patientId, String resourceType) {
+        requireNonNull(patientId, "patientId can not be null.");
+        requireNonNull(resourceType, "resourceType can not be null.");
+
+        Lines lines = this.linesByTypeAndPatient.getOrDefault(resourceType, Collections.emptyMap()).get(patientId);
+        if (lines == null) {
+            return Collections.emptyList();
+        }
+
+        IParser parser = this.fhirContext.newJsonParser();
+        List<IBaseResource> resources = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            resources.add(this.parse(parser, lines, i));
+        }
+
+        return resources;
+    }
+
+    /**
+     * Returns all the resources of a given type. Each line is parsed as the result is iterated.
+     */
+    @Override
+    public Iterable<IBaseResource> getResources(String resourceType) {
+        requireNonNull(resourceType, "resourceType can not be null.");
+
+        Lines lines = this.linesByType.getOrDefault(resourceType, new Lines());
+        return () -> new Iterator<IBaseResource>() {
+            private final IParser parser = fhirContext.newJsonParser();
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < lines.size();
+            }
+
+            @Override
+            public IBaseResource next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return parse(this.parser, lines, this.next++);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        for (FileChannel file : this.files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private IBaseResource parse(IParser parser, Lines lines, int line) {
+        byte[] bytes = new byte[lines.getLength(line)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        FileChannel file = this.files.get(lines.getFile(line));
+        long offset = lines.getOffset(line);
+        try {
+            // Positional reads, so concurrent reads don't share a position
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of NDJSON file.");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return parser.parseResource(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The file, offset, and length of a list of lines, packed into two longs per line.
+     */
+    private static class Lines {
+        private long[] values = new long[4];
+        private int size = 0;
+
+        void add(int file, long offset, int length) {
+            if (this.size * 2 == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+
+            this.values[this.size * 2] = offset;
+            this.values[this.size * 2 + 1] = ((long) file << 32) | (length & 0xFFFFFFFFL);
+            this.size++;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        long getOffset(int line) {
+            return this.values[line * 2];
+        }
+
+        int getFile(int line) {
+            return (int) (this.values[line * 2 + 1] >>> 32);
+        }
+
+        int getLength(int line) {
+            return (int) this.values[line * 2 + 1];
+        }
+    }
+}
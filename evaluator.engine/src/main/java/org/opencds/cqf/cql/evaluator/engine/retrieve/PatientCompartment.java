@@ -0,0 +1,209 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessor;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessorCache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.primitive.IdDt;
+
+/**
+ * Finds the Patients whose compartment a resource belongs to, as defined by the Patient compartment search
+ * parameters of the base FHIR specification (e.g. Condition.subject).
+ */
+class PatientCompartment {
+
+    private static final String PATIENT = "Patient";
+    private static final String RESOLVES_TO_PATIENT = ".where(resolve() is Patient)";
+    private static final String URN_UUID = "urn:uuid:";
+    private static final String REFERENCE = "Reference";
+    private static final Pattern SIMPLE_PATH = Pattern.compile("[a-z][A-Za-z0-9_]*(\\.[a-z][A-Za-z0-9_]*)*");
+
+    private final FhirContext fhirContext;
+    private final Map<String, List<PathAccessor>> compartmentPaths = new ConcurrentHashMap<>();
+    private final Map<String, Optional<List<String[]>>> simpleCompartmentPaths = new ConcurrentHashMap<>();
+
+    PatientCompartment(FhirContext fhirContext) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+    }
+
+    /**
+     * @param resource the resource
+     * @return the ids of the Patients whose compartment the resource belongs to, or an empty set if none
+     */
+    Set<String> getPatientIds(IBaseResource resource) {
+        Set<String> patientIds = new LinkedHashSet<>();
+        String resourceType = this.fhirContext.getResourceType(resource);
+        if (PATIENT.equals(resourceType)) {
+            patientIds.add(resource.getIdElement().getIdPart());
+            return patientIds;
+        }
+
+        for (PathAccessor accessor : this.getCompartmentPaths(resourceType)) {
+            List<IBase> values;
+            try {
+                values = accessor.evaluate(resource, IBase.class);
+            } catch (RuntimeException e) {
+                continue;
+            }
+
+            for (IBase value : values) {
+                String patientId = value instanceof IBaseReference ? getPatientId((IBaseReference) value) : null;
+                if (patientId != null) {
+                    patientIds.add(patientId);
+                }
+            }
+        }
+
+        return patientIds;
+    }
+
+    /**
+     * Finds the Patients whose compartment a resource belongs to from the references in its JSON, without parsing
+     * the resource. This is only possible when every compartment path of the resource type is a dotted path of
+     * element names (e.g. "participant.individual").
+     * @param resourceType the type of the resource
+     * @param id the id of the resource, or null if it has none
+     * @param references the reference strings of the resource, keyed by the dotted JSON path of the element that
+     * holds them (e.g. "participant.individual" for participant[0].individual.reference)
+     * @return the ids of the Patients whose compartment the resource belongs to, or null if the resource must be
+     * parsed to find them
+     */
+    Set<String> getPatientIds(String resourceType, String id, Map<String, List<String>> references) {
+        Set<String> patientIds = new LinkedHashSet<>();
+        if (PATIENT.equals(resourceType)) {
+            if (id != null) {
+                patientIds.add(id);
+            }
+
+            return patientIds;
+        }
+
+        Optional<List<String[]>> paths = this.getSimpleCompartmentPaths(resourceType);
+        if (!paths.isPresent()) {
+            return null;
+        }
+
+        for (Map.Entry<String, List<String>> entry : references.entrySet()) {
+            String[] jsonPath = entry.getKey().split("\\.");
+            for (String[] path : paths.get()) {
+                if (!matches(path, jsonPath)) {
+                    continue;
+                }
+
+                for (String reference : entry.getValue()) {
+                    String patientId = getPatientId(reference);
+                    if (patientId != null) {
+                        patientIds.add(patientId);
+                    }
+                }
+
+                break;
+            }
+        }
+
+        return patientIds;
+    }
+
+    private Optional<List<String[]>> getSimpleCompartmentPaths(String resourceType) {
+        return this.simpleCompartmentPaths.computeIfAbsent(resourceType, type -> {
+            List<RuntimeSearchParam> searchParams = this.fhirContext.getResourceDefinition(type)
+                    .getSearchParamsForCompartmentName(PATIENT);
+            if (searchParams == null) {
+                return Optional.of(Collections.emptyList());
+            }
+
+            List<String[]> paths = new ArrayList<>();
+            for (RuntimeSearchParam searchParam : searchParams) {
+                for (String path : searchParam.getPathsSplit()) {
+                    String simplePath = path.replace(RESOLVES_TO_PATIENT, "").trim();
+                    if (simplePath.startsWith(type + ".")) {
+                        simplePath = simplePath.substring(type.length() + 1);
+                    }
+
+                    if (!SIMPLE_PATH.matcher(simplePath).matches()) {
+                        return Optional.empty();
+                    }
+
+                    paths.add(simplePath.split("\\."));
+                }
+            }
+
+            return Optional.of(paths);
+        });
+    }
+
+    // A JSON name may be the name of a choice element with its type (e.g. "subjectReference" for "subject")
+    private static boolean matches(String[] path, String[] jsonPath) {
+        if (path.length != jsonPath.length) {
+            return false;
+        }
+
+        for (int i = 0; i < path.length; i++) {
+            if (!path[i].equals(jsonPath[i]) && !(path[i] + REFERENCE).equals(jsonPath[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private List<PathAccessor> getCompartmentPaths(String resourceType) {
+        return this.compartmentPaths.computeIfAbsent(resourceType, type -> {
+            List<PathAccessor> accessors = new ArrayList<>();
+            List<RuntimeSearchParam> searchParams = this.fhirContext.getResourceDefinition(type)
+                    .getSearchParamsForCompartmentName(PATIENT);
+            if (searchParams == null) {
+                return accessors;
+            }
+
+            for (RuntimeSearchParam searchParam : searchParams) {
+                for (String path : searchParam.getPathsSplit()) {
+                    // The type of the reference is checked when it is read
+                    accessors.add(PathAccessorCache.cachedFor(this.fhirContext, type,
+                            path.replace(RESOLVES_TO_PATIENT, "").trim()));
+                }
+            }
+
+            return accessors;
+        });
+    }
+
+    private static String getPatientId(IBaseReference reference) {
+        IIdType id = reference.getReferenceElement();
+        if (id == null || id.getValue() == null) {
+            return null;
+        }
+
+        return getPatientId(id);
+    }
+
+    private static String getPatientId(String reference) {
+        return getPatientId(new IdDt(reference));
+    }
+
+    private static String getPatientId(IIdType id) {
+        // Bundles may use urn:uuid references to the fullUrl of the Patient
+        if (id.getValue().startsWith(URN_UUID)) {
+            return id.getValue().substring(URN_UUID.length());
+        }
+
+        return PATIENT.equals(id.getResourceType()) ? id.getIdPart() : null;
+    }
+}
@@ -0,0 +1,35 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A source of FHIR resources that are partitioned by the Patient whose compartment they belong to, such that the
+ * resources of a single Patient can be read without reading the resources of every Patient. Resources that are not
+ * in the compartment of any Patient are in a shared partition.
+ */
+public interface PatientPartitionedResources {
+
+    /**
+     * @return the ids of the Patients with resources
+     */
+    Set<String> getPatientIds();
+
+    /**
+     * Reads the resources of a given type in the compartment of a Patient.
+     * @param patientId the id of the Patient
+     * @param resourceType the type of resource
+     * @return the resources, or an empty list if there are none
+     */
+    List<IBaseResource> getResources(String patientId, String resourceType);
+
+    /**
+     * Reads all the resources of a given type, from every Patient and the shared partition. The resources are read
+     * lazily as the result is iterated.
+     * @param resourceType the type of resource
+     * @return the resources
+     */
+    Iterable<IBaseResource> getResources(String resourceType);
+}
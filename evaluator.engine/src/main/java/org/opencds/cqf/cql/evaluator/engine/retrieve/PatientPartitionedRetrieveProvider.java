@@ -0,0 +1,145 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * This class implements the RetrieveProvider API using PatientPartitionedResources (e.g. a PatientResourceStore or
+ * an NdjsonResourceIndex) as the source of data. Patient context
+ * retrieves parse only the resources of the requested type for the current Patient, and only the resources of the
+ * current Patient are kept in memory. Filtering by code, ValueSet, and date is done by a BundleRetrieveProvider over
+ * those resources.
+ *
+ * Retrieves that are not related to a Patient (e.g. all Patients, or the Patients of a Practitioner) read every
+ * resource of the requested type. Results are read lazily as they are iterated, and each iteration reads the
+ * resources again. Filtered results (by code, ValueSet, date, or a context other than Patient) are filtered by a
+ * BundleRetrieveProvider over a batch of resources at a time, so only one batch and the matching resources are kept
+ * in memory.
+ */
+public class PatientPartitionedRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+    private static final String PATIENT = "Patient";
+
+    static final int DEFAULT_POPULATION_BATCH_SIZE = 1000;
+
+    private final FhirContext fhirContext;
+    private final PatientPartitionedResources resources;
+    private final int populationBatchSize;
+
+    private String currentPatientId;
+    private final Map<String, BundleRetrieveProvider> currentProviders = new HashMap<>();
+
+    public PatientPartitionedRetrieveProvider(FhirContext fhirContext, PatientPartitionedResources resources) {
+        this(fhirContext, resources, DEFAULT_POPULATION_BATCH_SIZE);
+    }
+
+    PatientPartitionedRetrieveProvider(FhirContext fhirContext, PatientPartitionedResources resources,
+            int populationBatchSize) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+        this.resources = requireNonNull(resources, "resources can not be null.");
+        if (populationBatchSize < 1) {
+            throw new IllegalArgumentException("populationBatchSize must be at least 1.");
+        }
+
+        this.populationBatchSize = populationBatchSize;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        requireNonNull(dataType, "dataType can not be null.");
+
+        String resourceType = this.fhirContext.getResourceDefinition(dataType).getName();
+        if (PATIENT.equals(context) && contextPath != null && contextValue != null) {
+            return this.getPatientProvider(stripReference(contextValue.toString()), resourceType).retrieve(context,
+                    contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath,
+                    dateHighPath, dateRange);
+        }
+
+        boolean hasContext = context != null && contextPath != null && contextValue != null;
+        if (!hasContext && codes == null && valueSet == null && dateRange == null) {
+            return asObjects(this.resources.getResources(resourceType));
+        }
+
+        return () -> new PopulationIterator(resourceType, provider -> provider.retrieve(context, contextPath,
+                contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath,
+                dateRange));
+    }
+
+    private synchronized BundleRetrieveProvider getPatientProvider(String patientId, String resourceType) {
+        if (!patientId.equals(this.currentPatientId)) {
+            this.currentProviders.clear();
+            this.currentPatientId = patientId;
+        }
+
+        return this.currentProviders.computeIfAbsent(resourceType, x -> this.configure(
+                new BundleRetrieveProvider(this.fhirContext, this.resources.getResources(patientId, resourceType))));
+    }
+
+    // Filters every resource of a type with a BundleRetrieveProvider over one batch of resources at a time
+    private class PopulationIterator implements Iterator<Object> {
+        private final Iterator<IBaseResource> resources;
+        private final Function<BundleRetrieveProvider, Iterable<Object>> retrieve;
+        private Iterator<Object> batch = Collections.emptyIterator();
+
+        PopulationIterator(String resourceType, Function<BundleRetrieveProvider, Iterable<Object>> retrieve) {
+            this.resources = PatientPartitionedRetrieveProvider.this.resources.getResources(resourceType).iterator();
+            this.retrieve = retrieve;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!this.batch.hasNext() && this.resources.hasNext()) {
+                List<IBaseResource> batchResources = new ArrayList<>();
+                while (batchResources.size() < populationBatchSize && this.resources.hasNext()) {
+                    batchResources.add(this.resources.next());
+                }
+
+                this.batch = this.retrieve.apply(configure(new BundleRetrieveProvider(fhirContext, batchResources)))
+                        .iterator();
+            }
+
+            return this.batch.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return this.batch.next();
+        }
+    }
+
+    private BundleRetrieveProvider configure(BundleRetrieveProvider provider) {
+        provider.setTerminologyProvider(this.getTerminologyProvider());
+        provider.setExpandValueSets(this.isExpandValueSets());
+        return provider;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<Object> asObjects(Iterable<? extends IBaseResource> resources) {
+        return (Iterable<Object>) (Iterable<?>) resources;
+    }
+
+    private static String stripReference(String patientId) {
+        return patientId.startsWith(PATIENT + "/") ? patientId.substring(PATIENT.length() + 1) : patientId;
+    }
+}
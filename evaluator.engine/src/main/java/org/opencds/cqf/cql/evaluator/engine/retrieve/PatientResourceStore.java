@@ -0,0 +1,250 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * This class reads a file of FHIR resources written by the PatientResourceStoreImporter. The resources in the file
+ * are grouped into blocks of JSON, one block for each Patient and resource type, and an index of the blocks is kept
+ * at the end of the file. The file is memory-mapped and only the index is read when the store is opened. The
+ * resources of a block are parsed each time they are requested, so the heap needed is bounded by the size of the
+ * index and the blocks currently in use rather than the size of the file.
+ *
+ * Resources that are not in the compartment of any Patient (e.g. Medications) are stored in a shared partition with
+ * an empty Patient id.
+ *
+ * The file layout is:
+ * <pre>
+ * int magic, int version
+ * blocks: newline separated JSON resources
+ * int blockCount, then for each block: string patientId, string resourceType, long offset, int length,
+ *     int resourceCount (strings are an unsigned short length followed by UTF-8 bytes)
+ * long indexOffset
+ * </pre>
+ */
+public class PatientResourceStore implements PatientPartitionedResources, Closeable {
+
+    static final int MAGIC = 0x43514C52;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    static final String SHARED_PARTITION = "";
+
+    // MappedByteBuffers are limited to Integer.MAX_VALUE bytes
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FhirContext fhirContext;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Map<String, Map<String, Block>> blocksByPatient;
+    private final Map<String, List<Block>> blocksByType;
+
+    public PatientResourceStore(FhirContext fhirContext, Path path) throws IOException {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+        requireNonNull(path, "path can not be null.");
+
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = this.channel.size();
+            int segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * SEGMENT_SIZE;
+                this.segments[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+
+            if (size < HEADER_LENGTH + 4 + 8) {
+                throw new IOException(String.format("%s is not a patient resource store.", path));
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(this.read(0, HEADER_LENGTH));
+            if (header.getInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a patient resource store.", path));
+            }
+
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("%s has unsupported version %d.", path, version));
+            }
+
+            long indexOffset = ByteBuffer.wrap(this.read(size - 8, 8)).getLong();
+            this.blocksByPatient = new HashMap<>();
+            this.blocksByType = new HashMap<>();
+            this.readIndex(ByteBuffer.wrap(this.read(indexOffset, (int) (size - 8 - indexOffset))));
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    private void readIndex(ByteBuffer index) {
+        int blockCount = index.getInt();
+        for (int i = 0; i < blockCount; i++) {
+            String patientId = readString(index);
+            String resourceType = readString(index);
+            Block block = new Block(index.getLong(), index.getInt(), index.getInt());
+
+            this.blocksByPatient.computeIfAbsent(patientId, x -> new HashMap<>()).put(resourceType, block);
+            this.blocksByType.computeIfAbsent(resourceType, x -> new ArrayList<>()).add(block);
+        }
+    }
+
+    @Override
+    public Set<String> getPatientIds() {
+        Set<String> ids = new HashSet<>(this.blocksByPatient.keySet());
+        ids.remove(SHARED_PARTITION);
+        return Collections.unmodifiableSet(ids);
+    }
+
+    @Override
+    public List<IBaseResource> getResources(String patientId, String resourceType) {
+        requireNonNull(patientId, "patientId can not be null.");
+        requireNonNull(resourceType, "resourceType can not be null.");
+
+        Map<String, Block> blocks = this.blocksByPatient.get(patientId);
+        if (blocks == null || !blocks.containsKey(resourceType)) {
+            return Collections.emptyList();
+        }
+
+        return this.parse(blocks.get(resourceType));
+    }
+
+    /**
+     * Returns all the resources of a given type, from every Patient and the shared partition. The blocks are parsed
+     * one at a time as the result is iterated. Resources in the compartment of more than one Patient are stored in
+     * each of their partitions, so they are returned only the first time they are read.
+     */
+    @Override
+    public Iterable<IBaseResource> getResources(String resourceType) {
+        requireNonNull(resourceType, "resourceType can not be null.");
+
+        List<Block> blocks = this.blocksByType.getOrDefault(resourceType, Collections.emptyList());
+        return () -> new Iterator<IBaseResource>() {
+            private final Iterator<Block> blockIterator = blocks.iterator();
+            private final Set<String> ids = new HashSet<>();
+            private Iterator<IBaseResource> current = Collections.emptyIterator();
+            private IBaseResource next;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null) {
+                    while (!this.current.hasNext() && this.blockIterator.hasNext()) {
+                        this.current = parse(this.blockIterator.next()).iterator();
+                    }
+
+                    if (!this.current.hasNext()) {
+                        return false;
+                    }
+
+                    IBaseResource resource = this.current.next();
+                    String id = resource.getIdElement().getIdPart();
+                    if (id == null || this.ids.add(id)) {
+                        this.next = resource;
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public IBaseResource next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                IBaseResource resource = this.next;
+                this.next = null;
+                return resource;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private List<IBaseResource> parse(Block block) {
+        String json = new String(this.read(block.offset, block.length), StandardCharsets.UTF_8);
+
+        // Parsers are not thread-safe
+        IParser parser = this.fhirContext.newJsonParser();
+        List<IBaseResource> resources = new ArrayList<>(block.resourceCount);
+        int start = 0;
+        while (start < json.length()) {
+            int end = json.indexOf('\n', start);
+            if (end < 0) {
+                end = json.length();
+            }
+
+            if (end > start) {
+                resources.add(parser.parseResource(json.substring(start, end)));
+            }
+
+            start = end + 1;
+        }
+
+        return resources;
+    }
+
+    private byte[] read(long offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > (long) this.segments.length * SEGMENT_SIZE) {
+            throw new UncheckedIOException(new IOException("Patient resource store is corrupt."));
+        }
+
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long position = offset + copied;
+            // Duplicate the buffer so concurrent reads don't share a position
+            ByteBuffer segment = this.segments[(int) (position / SEGMENT_SIZE)].duplicate();
+            segment.position((int) (position % SEGMENT_SIZE));
+            int count = Math.min(length - copied, segment.remaining());
+            segment.get(bytes, copied, count);
+            copied += count;
+        }
+
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Block {
+        final long offset;
+        final int length;
+        final int resourceCount;
+
+        Block(long offset, int length, int resourceCount) {
+            this.offset = offset;
+            this.length = length;
+            this.resourceCount = resourceCount;
+        }
+    }
+}
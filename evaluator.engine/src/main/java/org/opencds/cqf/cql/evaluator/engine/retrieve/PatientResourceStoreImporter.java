@@ -0,0 +1,250 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.evaluator.fhir.DirectoryBundler;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * This class builds a PatientResourceStore from a directory of FHIR resources, a Bundle, or any other source of
+ * resources. A resource is stored in the partition of each Patient whose compartment it belongs to, as defined by
+ * the Patient compartment search parameters of the base FHIR specification (e.g. Condition.subject). Resources that
+ * are not in the compartment of any Patient are stored in a shared partition.
+ *
+ * Resources are encoded and written to a staging file as they are read, and only their positions are kept in
+ * memory. The staged resources are then copied into the store grouped by Patient and resource type, so the heap
+ * needed to import is bounded by the number of resources rather than their size.
+ */
+public class PatientResourceStoreImporter {
+
+    private static final byte[] NEWLINE = { '\n' };
+
+    private final FhirContext fhirContext;
+    private final PatientCompartment patientCompartment;
+
+    public PatientResourceStoreImporter(FhirContext fhirContext) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+        this.patientCompartment = new PatientCompartment(fhirContext);
+    }
+
+    /**
+     * Imports the FHIR resources in a directory, and its sub-directories, into a store.
+     * @param path the directory to import
+     * @param storePath the path of the store to write
+     * @throws IOException if the store can not be written
+     */
+    public void importDirectory(String path, Path storePath) throws IOException {
+        requireNonNull(path, "path can not be null.");
+
+        DirectoryBundler directoryBundler = new DirectoryBundler(this.fhirContext);
+        this.importResources(x -> directoryBundler.forEachResource(path, x), storePath);
+    }
+
+    /**
+     * Imports the resources of a Bundle into a store.
+     * @param bundle the Bundle to import
+     * @param storePath the path of the store to write
+     * @throws IOException if the store can not be written
+     */
+    public void importBundle(IBaseBundle bundle, Path storePath) throws IOException {
+        requireNonNull(bundle, "bundle can not be null.");
+
+        this.importResources(BundleUtil.toListOfResources(this.fhirContext, bundle), storePath);
+    }
+
+    /**
+     * Imports resources into a store.
+     * @param resources the resources to import
+     * @param storePath the path of the store to write
+     * @throws IOException if the store can not be written
+     */
+    public void importResources(Iterable<? extends IBaseResource> resources, Path storePath) throws IOException {
+        requireNonNull(resources, "resources can not be null.");
+
+        this.importResources(x -> resources.forEach(x), storePath);
+    }
+
+    private void importResources(Consumer<Consumer<IBaseResource>> source, Path storePath) throws IOException {
+        requireNonNull(storePath, "storePath can not be null.");
+
+        Path parent = storePath.toAbsolutePath().getParent();
+        Path stagingPath = Files.createTempFile(parent, storePath.getFileName().toString(), ".staging");
+        try (FileChannel staging = FileChannel.open(stagingPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            List<Entry> entries = this.stage(source, staging);
+            this.write(entries, staging, storePath);
+        }
+    }
+
+    private List<Entry> stage(Consumer<Consumer<IBaseResource>> source, FileChannel staging) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Map<String, String> names = new HashMap<>();
+        IParser parser = this.fhirContext.newJsonParser();
+
+        // Not closed, since that would close the staging channel
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(staging));
+        long[] offset = { 0 };
+        try {
+            source.accept(resource -> {
+                // The encoded resource must be a single line
+                byte[] bytes = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+                String resourceType = names.computeIfAbsent(this.fhirContext.getResourceType(resource), x -> x);
+                for (String patientId : this.getPatientIds(resource)) {
+                    entries.add(new Entry(names.computeIfAbsent(patientId, x -> x), resourceType, offset[0], bytes.length));
+                }
+
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                offset[0] += bytes.length;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        out.flush();
+
+        return entries;
+    }
+
+    private void write(List<Entry> entries, FileChannel staging, Path storePath) throws IOException {
+        // Stable, so resources stay in the order they were read
+        entries.sort(Comparator.comparing((Entry x) -> x.patientId).thenComparing(x -> x.resourceType));
+
+        try (FileChannel store = FileChannel.open(storePath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(store, ByteBuffer.wrap(ByteBuffer.allocate(PatientResourceStore.HEADER_LENGTH)
+                    .putInt(PatientResourceStore.MAGIC).putInt(PatientResourceStore.VERSION).array()));
+
+            List<Block> blocks = new ArrayList<>();
+            int i = 0;
+            while (i < entries.size()) {
+                Entry first = entries.get(i);
+                long start = store.position();
+                int count = 0;
+                for (; i < entries.size() && entries.get(i).patientId.equals(first.patientId)
+                        && entries.get(i).resourceType.equals(first.resourceType); i++) {
+                    Entry entry = entries.get(i);
+                    transferFully(staging, entry.offset, entry.length, store);
+                    writeFully(store, ByteBuffer.wrap(NEWLINE));
+                    count++;
+                }
+
+                long length = store.position() - start;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException(String.format("The %s resources of Patient %s are too large to store.",
+                            first.resourceType, first.patientId));
+                }
+
+                blocks.add(new Block(first.patientId, first.resourceType, start, (int) length, count));
+            }
+
+            long indexOffset = store.position();
+            // Not closed, since that would close the store before it is forced
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(store)));
+            index.writeInt(blocks.size());
+            for (Block block : blocks) {
+                writeString(index, block.patientId);
+                writeString(index, block.resourceType);
+                index.writeLong(block.offset);
+                index.writeInt(block.length);
+                index.writeInt(block.resourceCount);
+            }
+
+            index.writeLong(indexOffset);
+            index.flush();
+            store.force(false);
+        }
+    }
+
+    private Set<String> getPatientIds(IBaseResource resource) {
+        Set<String> patientIds = this.patientCompartment.getPatientIds(resource);
+        if (patientIds.isEmpty()) {
+            patientIds.add(PatientResourceStore.SHARED_PARTITION);
+        }
+
+        return patientIds;
+    }
+
+    private static void transferFully(FileChannel source, long offset, long length, FileChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += source.transferTo(offset + transferred, length - transferred, target);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException(String.format("%s is too long to store.", value));
+        }
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static class Entry {
+        final String patientId;
+        final String resourceType;
+        final long offset;
+        final int length;
+
+        Entry(String patientId, String resourceType, long offset, int length) {
+            this.patientId = patientId;
+            this.resourceType = resourceType;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Block {
+        final String patientId;
+        final String resourceType;
+        final long offset;
+        final int length;
+        final int resourceCount;
+
+        Block(String patientId, String resourceType, long offset, int length, int resourceCount) {
+            this.patientId = patientId;
+            this.resourceType = resourceType;
+            this.offset = offset;
+            this.length = length;
+            this.resourceCount = resourceCount;
+        }
+    }
+}
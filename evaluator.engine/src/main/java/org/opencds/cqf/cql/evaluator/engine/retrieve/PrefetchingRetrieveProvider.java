@@ -0,0 +1,211 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * This class serves Patient context retrieves from resources that are fetched in bulk for a chunk of Patients at a
+ * time, rather than searching an inner RetrieveProvider once per retrieve per Patient.
+ *
+ * The Patients to evaluate are taken from the first unfiltered retrieve of all Patients (which is how a population
+ * is enumerated for Measure evaluation), or may be set directly with setSubjectIds. The first time a given dataType
+ * and contextPath is retrieved for a Patient, that dataType is fetched for every Patient in the same chunk and the
+ * results are indexed in memory. Later retrieves for any Patient in the chunk, including those filtered by code,
+ * ValueSet, or date, are answered from the index. Only the current chunk is kept in memory.
+ *
+ * Retrieves that are not in the Patient context, and dataTypes that the SubjectDataFetcher fails to fetch, are
+ * passed through to the inner RetrieveProvider. So are retrieves filtered by ValueSet when there is no
+ * TerminologyProvider or ValueSets are not expanded, since checking their membership locally needs a
+ * TerminologyProvider, and the inner RetrieveProvider may let the server check it instead (e.g. with :in).
+ */
+public class PrefetchingRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchingRetrieveProvider.class);
+
+    private static final String PATIENT = "Patient";
+
+    private final FhirContext fhirContext;
+    private final RetrieveProvider innerProvider;
+    private final SubjectDataFetcher subjectDataFetcher;
+    private final int chunkSize;
+
+    private List<String> subjectIds = Collections.emptyList();
+    private Map<String, Integer> subjectPositions = Collections.emptyMap();
+
+    private String currentChunkKey;
+    private List<String> currentChunk;
+    private final Map<String, BundleRetrieveProvider> chunkProviders = new HashMap<>();
+    private final Set<String> unsupported = new HashSet<>();
+
+    public PrefetchingRetrieveProvider(FhirContext fhirContext, RetrieveProvider retrieveProvider,
+            SubjectDataFetcher subjectDataFetcher, int chunkSize) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null.");
+        this.innerProvider = requireNonNull(retrieveProvider, "retrieveProvider can not be null.");
+        this.subjectDataFetcher = requireNonNull(subjectDataFetcher, "subjectDataFetcher can not be null.");
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1.");
+        }
+
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the ids of the Patients that will be evaluated, in the order they will be evaluated.
+     * @param subjectIds the Patient ids
+     */
+    public synchronized void setSubjectIds(List<String> subjectIds) {
+        requireNonNull(subjectIds, "subjectIds can not be null.");
+
+        this.subjectIds = new ArrayList<>(subjectIds);
+        this.subjectPositions = new HashMap<>();
+        for (int i = 0; i < this.subjectIds.size(); i++) {
+            this.subjectPositions.putIfAbsent(this.subjectIds.get(i), i);
+        }
+
+        this.clearChunk();
+    }
+
+    @Override
+    public void setTerminologyProvider(TerminologyProvider terminologyProvider) {
+        super.setTerminologyProvider(terminologyProvider);
+        if (this.innerProvider instanceof TerminologyAwareRetrieveProvider) {
+            ((TerminologyAwareRetrieveProvider) this.innerProvider).setTerminologyProvider(terminologyProvider);
+        }
+    }
+
+    @Override
+    public TerminologyAwareRetrieveProvider setExpandValueSets(boolean expandValueSets) {
+        super.setExpandValueSets(expandValueSets);
+        if (this.innerProvider instanceof TerminologyAwareRetrieveProvider) {
+            ((TerminologyAwareRetrieveProvider) this.innerProvider).setExpandValueSets(expandValueSets);
+        }
+
+        return this;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        String key = dataType + "|" + contextPath;
+        boolean needsTerminology = valueSet != null
+                && (this.getTerminologyProvider() == null || !this.isExpandValueSets());
+        if (!PATIENT.equals(context) || contextPath == null || contextValue == null || needsTerminology) {
+            Iterable<Object> results = this.innerProvider.retrieve(context, contextPath, contextValue, dataType,
+                    templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+            if (context == null && PATIENT.equals(dataType) && codes == null && valueSet == null
+                    && dateRange == null && results != null) {
+                results = this.captureSubjects(results);
+            }
+
+            return results;
+        }
+
+        BundleRetrieveProvider provider = this.getChunkProvider(key, dataType, contextPath,
+                stripReference(contextValue.toString()));
+        if (provider == null) {
+            return this.innerProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+                    codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        return provider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    private synchronized BundleRetrieveProvider getChunkProvider(String key, String dataType, String contextPath,
+            String subjectId) {
+        if (this.unsupported.contains(key)) {
+            return null;
+        }
+
+        this.enterChunk(subjectId);
+
+        BundleRetrieveProvider provider = this.chunkProviders.get(key);
+        if (provider != null) {
+            return provider;
+        }
+
+        List<? extends IBaseResource> resources;
+        try {
+            resources = this.subjectDataFetcher.fetch(dataType, contextPath, this.currentChunk);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to prefetch {} by {}. Retrieving it for each Patient instead: {}", dataType,
+                    contextPath, e.getMessage());
+            this.unsupported.add(key);
+            return null;
+        }
+
+        logger.debug("Prefetched {} {} resources for {} Patients", resources.size(), dataType,
+                this.currentChunk.size());
+
+        provider = new BundleRetrieveProvider(this.fhirContext, resources);
+        provider.setTerminologyProvider(this.getTerminologyProvider());
+        provider.setExpandValueSets(this.isExpandValueSets());
+        this.chunkProviders.put(key, provider);
+
+        return provider;
+    }
+
+    private void enterChunk(String subjectId) {
+        Integer position = this.subjectPositions.get(subjectId);
+
+        // Patients that are not part of the population are fetched on their own
+        String chunkKey = position != null ? Integer.toString(position / this.chunkSize) : "Patient/" + subjectId;
+        if (chunkKey.equals(this.currentChunkKey)) {
+            return;
+        }
+
+        this.clearChunk();
+        this.currentChunkKey = chunkKey;
+        if (position != null) {
+            int start = (position / this.chunkSize) * this.chunkSize;
+            this.currentChunk = this.subjectIds.subList(start, Math.min(start + this.chunkSize, this.subjectIds.size()));
+        } else {
+            this.currentChunk = Collections.singletonList(subjectId);
+        }
+    }
+
+    private void clearChunk() {
+        this.chunkProviders.clear();
+        this.currentChunkKey = null;
+        this.currentChunk = null;
+    }
+
+    private Iterable<Object> captureSubjects(Iterable<Object> results) {
+        List<Object> resultList = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (Object result : results) {
+            resultList.add(result);
+            if (result instanceof IBaseResource) {
+                ids.add(((IBaseResource) result).getIdElement().getIdPart());
+            }
+        }
+
+        this.setSubjectIds(ids);
+        return resultList;
+    }
+
+    private static String stripReference(String subjectId) {
+        return subjectId.startsWith(PATIENT + "/") ? subjectId.substring(PATIENT.length() + 1) : subjectId;
+    }
+}
@@ -2,21 +2,39 @@ package org.opencds.cqf.cql.evaluator.engine.retrieve;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
+/**
+ * This class returns the result of the first RetrieveProvider, in priority order, that returns a non-empty result.
+ *
+ * If an ExecutorService is supplied, the retrieve is issued to all the RetrieveProviders concurrently, and the
+ * results are then considered in priority order. Once a non-empty result is found, the retrieves of lower priority
+ * RetrieveProviders are cancelled. The results are the same as when the RetrieveProviders are queried one at a
+ * time. The ExecutorService should be bounded (e.g. a fixed thread pool) and is not shut down by this class.
+ */
 public class PriorityRetrieveProvider implements RetrieveProvider {
 
     private List<RetrieveProvider> retrieveProviders;
-;
+    private ExecutorService executorService;
+
     public PriorityRetrieveProvider(List<RetrieveProvider> retrieveProviders) {
+        this(retrieveProviders, null);
+    }
+
+    public PriorityRetrieveProvider(List<RetrieveProvider> retrieveProviders, ExecutorService executorService) {
         requireNonNull(retrieveProviders, "retrieveProviders can not be null.");
 
         this.retrieveProviders = retrieveProviders;
+        this.executorService = executorService;
     }
 
     @Override
@@ -24,20 +42,98 @@ public class PriorityRetrieveProvider implements RetrieveProvider {
             String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
             String dateLowPath, String dateHighPath, Interval dateRange) {
 
+        if (this.executorService != null && this.retrieveProviders.size() > 1) {
+            return this.retrieveConcurrently(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                    valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
         for (RetrieveProvider rp : retrieveProviders){
-            Iterable<Object> result = rp.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, 
+            Iterable<Object> result = rp.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
                 valueSet, datePath, dateLowPath, dateHighPath, dateRange);
 
-            if (result == null) {
-                // TODO: Change the semantics such that null means unknown while empty set means known empty
-                throw new IllegalStateException("retrieveProvider unexpectedly returned null. Should be an empty set.");
-            }
-
-            if (result.iterator().hasNext()) {
+            if (hasResults(result)) {
                 return result;
             }
         }
 
         return Collections.emptySet();
     }
-}
\ No newline at end of file
+
+    private Iterable<Object> retrieveConcurrently(String context, String contextPath, Object contextValue,
+            String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+            String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        List<Future<Result>> futures = new ArrayList<>(this.retrieveProviders.size());
+        for (RetrieveProvider rp : this.retrieveProviders) {
+            futures.add(this.executorService.submit(() -> {
+                Iterable<Object> result = rp.retrieve(context, contextPath, contextValue, dataType, templateId,
+                        codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+                // Checking for results may do the work of a lazy result, so do it concurrently as well.
+                return new Result(result, result != null && result.iterator().hasNext());
+            }));
+        }
+
+        try {
+            for (Future<Result> future : futures) {
+                Result result = getResult(future);
+                if (result.iterable == null) {
+                    // Fail the same way as the sequential path
+                    hasResults(null);
+                }
+
+                if (result.hasResults) {
+                    return result.iterable;
+                }
+            }
+
+            return Collections.emptySet();
+        } finally {
+            // The results of lower priority providers are not needed
+            for (Future<Result> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static boolean hasResults(Iterable<Object> result) {
+        if (result == null) {
+            // TODO: Change the semantics such that null means unknown while empty set means known empty
+            throw new IllegalStateException("retrieveProvider unexpectedly returned null. Should be an empty set.");
+        }
+
+        // Results may be lazy, so only check for the first element and
+        // return the result as-is rather than copying it.
+        return result.iterator().hasNext();
+    }
+
+    private static Result getResult(Future<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for retrieve results.", e);
+        } catch (ExecutionException e) {
+            // Rethrow the exception the provider would have thrown in sequential mode
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IllegalStateException("Unable to retrieve results.", cause);
+        }
+    }
+
+    private static class Result {
+        final Iterable<Object> iterable;
+        final boolean hasResults;
+
+        Result(Iterable<Object> iterable, boolean hasResults) {
+            this.iterable = iterable;
+            this.hasResults = hasResults;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class memoizes the results of an inner RetrieveProvider. Results are cached by the full retrieve signature
+ * for as long as the context value stays the same. The cache is cleared the first time a retrieve is made for a
+ * different context value (e.g. when evaluation moves on to the next Patient), so its size is bounded by the
+ * distinct retrieves of a single context value.
+ *
+ * Retrieves without a context value (e.g. all the resources of a type) are not cached, since they are typically
+ * large and are not repeated per context value.
+ *
+ * Results are cached lazily. The first iteration of a result iterates the results of the inner RetrieveProvider
+ * directly, so a caller that only needs the first result (e.g. exists or First) does not evaluate the rest. The
+ * results are copied into a List the second time they are iterated, so lazy results are evaluated in full at most
+ * once per context value.
+ */
+public class PrivateCachingRetrieveProviderDecorator implements RetrieveProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrivateCachingRetrieveProviderDecorator.class);
+
+    private final RetrieveProvider innerProvider;
+
+    private final Map<String, MemoizingIterable> resultsBySignature = new HashMap<>();
+    private String currentContext;
+    private Object currentContextValue;
+
+    private long hitCount;
+    private long missCount;
+
+    public PrivateCachingRetrieveProviderDecorator(RetrieveProvider retrieveProvider) {
+        this.innerProvider = requireNonNull(retrieveProvider, "retrieveProvider can not be null.");
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        if (contextValue == null) {
+            return this.innerProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+                    codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        String signature = signature(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+        synchronized (this) {
+            if (!Objects.equals(context, this.currentContext)
+                    || !Objects.equals(contextValue, this.currentContextValue)) {
+                logger.debug("Context changed to {} {}. Clearing {} cached retrieves.", context, contextValue,
+                        this.resultsBySignature.size());
+                this.resultsBySignature.clear();
+                this.currentContext = context;
+                this.currentContextValue = contextValue;
+            }
+
+            MemoizingIterable cached = this.resultsBySignature.get(signature);
+            if (cached != null) {
+                this.hitCount++;
+                return cached;
+            }
+
+            this.missCount++;
+        }
+
+        Iterable<Object> results = this.innerProvider.retrieve(context, contextPath, contextValue, dataType,
+                templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        if (results == null) {
+            return null;
+        }
+
+        MemoizingIterable memoized = new MemoizingIterable(results);
+        synchronized (this) {
+            // Don't cache results for a context value that is no longer current
+            if (Objects.equals(contextValue, this.currentContextValue)) {
+                this.resultsBySignature.put(signature, memoized);
+            }
+        }
+
+        return memoized;
+    }
+
+    /**
+     * @return the number of retrieves that were answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * @return the number of retrieves that were passed to the inner RetrieveProvider
+     */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Clears all cached results.
+     */
+    public synchronized void clear() {
+        this.resultsBySignature.clear();
+        this.currentContext = null;
+        this.currentContextValue = null;
+    }
+
+    // Iterates the inner results the first time, and copies them into a List the second time
+    private static class MemoizingIterable implements Iterable<Object> {
+        private Iterable<Object> results;
+        private List<Object> resultList;
+        private boolean iterated;
+
+        MemoizingIterable(Iterable<Object> results) {
+            this.results = results;
+        }
+
+        @Override
+        public synchronized Iterator<Object> iterator() {
+            if (this.resultList != null) {
+                return this.resultList.iterator();
+            }
+
+            if (!this.iterated) {
+                this.iterated = true;
+                Iterator<Object> iterator = this.results.iterator();
+                // The results are shared, so they are read-only
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return iterator.next();
+                    }
+                };
+            }
+
+            List<Object> list = new ArrayList<>();
+            for (Object result : this.results) {
+                list.add(result);
+            }
+
+            this.resultList = Collections.unmodifiableList(list);
+            this.results = null;
+            return this.resultList.iterator();
+        }
+    }
+
+    // Code and Interval do not implement hashCode, so the signature is built as a String
+    private static String signature(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(context).append('|').append(contextPath).append('|').append(contextValue).append('|')
+                .append(dataType).append('|').append(templateId).append('|').append(codePath).append('|');
+
+        if (codes != null) {
+            builder.append('[');
+            // "codes" may contain Strings that are actually ids
+            for (Object code : codes) {
+                if (code instanceof Code) {
+                    Code c = (Code) code;
+                    builder.append(c.getSystem()).append('^').append(c.getVersion()).append('^').append(c.getCode());
+                } else {
+                    builder.append(code);
+                }
+
+                builder.append(',');
+            }
+
+            builder.append(']');
+        }
+
+        builder.append('|').append(valueSet).append('|').append(datePath).append('|').append(dateLowPath)
+                .append('|').append(dateHighPath).append('|');
+
+        if (dateRange != null) {
+            builder.append(dateRange.getLowClosed() ? '[' : '(').append(dateRange.getLow()).append(',')
+                    .append(dateRange.getHigh()).append(dateRange.getHighClosed() ? ']' : ')');
+        }
+
+        return builder.toString();
+    }
+}
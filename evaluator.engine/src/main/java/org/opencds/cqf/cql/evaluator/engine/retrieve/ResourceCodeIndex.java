@@ -0,0 +1,215 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.evaluator.engine.util.CodeUtil;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessor;
+
+/**
+ * This class is an inverted index of the codes found at a given codePath for a set of resources of a single type. It
+ * maps a key for each system and code to the resources that have that code, and keeps the codes of each resource so
+ * that code and ValueSet filtering can be answered without re-evaluating the codePath. The keys are assigned by the
+ * index rather than the process-wide CodeDictionary, so the codes of the data are released with the index instead of
+ * growing the dictionary for the life of the process.
+ *
+ * The codePath may also resolve to a single primitive value (e.g. an id or reference). In that case the
+ * resource is indexed by that value instead, which supports the special case of filtering by id.
+ */
+class ResourceCodeIndex {
+
+    private static final long NO_KEY = -1L;
+
+    private final Map<IBaseResource, Entry> entries = new IdentityHashMap<>();
+    private final Map<Long, List<IBaseResource>> resourcesByCode = new HashMap<>();
+    private final Map<String, List<IBaseResource>> resourcesById = new HashMap<>();
+
+    private final Map<String, Integer> systemIds = new HashMap<>();
+    private final Map<String, Integer> codeIds = new HashMap<>();
+
+    ResourceCodeIndex(PathAccessor codePathAccessor, CodeUtil codeUtil, String dataType,
+            List<? extends IBaseResource> resources) {
+        for (IBaseResource resource : resources) {
+            this.entries.put(resource, this.index(codePathAccessor, codeUtil, dataType, resource));
+        }
+    }
+
+    /**
+     * Creates the sorted, distinct keys used to look up the requested codes. Codes that no indexed resource has can
+     * not match, so they are omitted.
+     * @param codes the requested codes
+     * @return the keys of the codes
+     */
+    long[] keys(List<Code> codes) {
+        return codes.stream().mapToLong(code -> this.findKey(code.getSystem(), code.getCode()))
+                .filter(key -> key != NO_KEY).sorted().distinct().toArray();
+    }
+
+    /**
+     * Checks whether a resource has any of the requested codes or ids.
+     * @param resource the resource to check. Must be one of the indexed resources.
+     * @param codeKeys the keys of the requested codes
+     * @param ids the requested ids
+     * @return true if the resource matches any of the requested codes or ids
+     */
+    boolean matches(IBaseResource resource, long[] codeKeys, Set<String> ids) {
+        Entry entry = this.getEntry(resource);
+        if (entry.codes == null) {
+            return entry.id != null && ids.contains(entry.id);
+        }
+
+        for (long key : entry.keys) {
+            if (Arrays.binarySearch(codeKeys, key) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the codes of a resource.
+     * @param resource the resource. Must be one of the indexed resources.
+     * @return the codes of the resource, or null if the codePath resolved to a primitive value
+     */
+    List<Code> getCodes(IBaseResource resource) {
+        return this.getEntry(resource).codes;
+    }
+
+    /**
+     * Counts the number of index entries that would be visited to find the resources matching any of the requested
+     * codes or ids. This is used to choose between probing the index and checking resources one at a time.
+     * @param codeKeys the keys of the requested codes
+     * @param ids the requested ids
+     * @return the total number of resources indexed under the requested codes and ids
+     */
+    int count(long[] codeKeys, Set<String> ids) {
+        int count = 0;
+        for (long key : codeKeys) {
+            count += this.resourcesByCode.getOrDefault(key, Collections.emptyList()).size();
+        }
+
+        for (String id : ids) {
+            count += this.resourcesById.getOrDefault(id, Collections.emptyList()).size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets all the resources that have any of the requested codes or ids.
+     * @param codeKeys the keys of the requested codes
+     * @param ids the requested ids
+     * @return an identity-based set of the matching resources
+     */
+    Set<IBaseResource> getResources(long[] codeKeys, Set<String> ids) {
+        Set<IBaseResource> resources = Collections.newSetFromMap(new IdentityHashMap<IBaseResource, Boolean>());
+        for (long key : codeKeys) {
+            resources.addAll(this.resourcesByCode.getOrDefault(key, Collections.emptyList()));
+        }
+
+        for (String id : ids) {
+            resources.addAll(this.resourcesById.getOrDefault(id, Collections.emptyList()));
+        }
+
+        return resources;
+    }
+
+    private Entry getEntry(IBaseResource resource) {
+        Entry entry = this.entries.get(resource);
+        if (entry == null) {
+            throw new IllegalArgumentException("resource is not present in the code index.");
+        }
+
+        if (entry.error != null) {
+            throw entry.error;
+        }
+
+        return entry;
+    }
+
+    private Entry index(PathAccessor codePathAccessor, CodeUtil codeUtil, String dataType, IBaseResource resource) {
+        Entry entry = new Entry();
+        try {
+            List<IBase> values = codePathAccessor.evaluate(resource, IBase.class);
+
+            // Special case filtering to handle "codes" that are actually ids. This is a
+            // workaround to handle filtering by Id.
+            if (values != null && values.size() == 1 && values.get(0) instanceof IPrimitiveType) {
+                String value = ((IPrimitiveType<?>) values.get(0)).getValueAsString();
+                if (value != null) {
+                    // This handles the case that the value is a reference such as
+                    // "Medication/med-id"
+                    entry.id = value.replace(dataType + "/", "");
+                    this.resourcesById.computeIfAbsent(entry.id, k -> new ArrayList<>()).add(resource);
+                }
+
+                return entry;
+            }
+
+            entry.codes = codeUtil.getElmCodesFromObject(values);
+            long[] keys = new long[entry.codes.size()];
+            int count = 0;
+            for (Code code : entry.codes) {
+                long key = this.key(code.getSystem(), code.getCode());
+                if (key != NO_KEY) {
+                    keys[count++] = key;
+                    this.resourcesByCode.computeIfAbsent(key, k -> new ArrayList<>()).add(resource);
+                }
+            }
+
+            entry.keys = count == keys.length ? keys : Arrays.copyOf(keys, count);
+        } catch (RuntimeException e) {
+            // Defer the error until the resource is actually filtered, as it would have been
+            // without the index.
+            entry.error = e;
+        }
+
+        return entry;
+    }
+
+    private long key(String system, String code) {
+        if (system == null || code == null) {
+            return NO_KEY;
+        }
+
+        int systemId = this.systemIds.computeIfAbsent(system, x -> this.systemIds.size());
+        int codeId = this.codeIds.computeIfAbsent(code, x -> this.codeIds.size());
+        return pack(systemId, codeId);
+    }
+
+    private long findKey(String system, String code) {
+        if (system == null || code == null) {
+            return NO_KEY;
+        }
+
+        Integer systemId = this.systemIds.get(system);
+        Integer codeId = this.codeIds.get(code);
+        if (systemId == null || codeId == null) {
+            return NO_KEY;
+        }
+
+        return pack(systemId, codeId);
+    }
+
+    private static long pack(int systemId, int codeId) {
+        return ((long) systemId << 32) | (codeId & 0xFFFFFFFFL);
+    }
+
+    private static class Entry {
+        String id;
+        List<Code> codes;
+        long[] keys;
+        RuntimeException error;
+    }
+}
@@ -0,0 +1,326 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverter;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class indexes the date values found at a given datePath (or dateLowPath and dateHighPath) for a set of
+ * resources of a single type. Each resource with a date is reduced to an interval of epoch milliseconds that covers
+ * the full precision of its value (e.g. a date of 2019-01-16 covers that whole day), and the intervals are kept in
+ * arrays sorted by start and by end so that overlapping resources can be found with binary searches.
+ *
+ * Dates have no offset, so they are placed in the zone of the evaluation (see getEvaluationZone), as the engine does
+ * when it compares a Date to a DateTime. DateTimes keep their own offset.
+ *
+ * Resources that have no date value at the given paths are not indexed and never overlap a date range.
+ */
+class ResourceDateIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceDateIndex.class);
+
+    private final int resourceCount;
+    private final Map<IBaseResource, Bounds> boundsByResource = new IdentityHashMap<>();
+
+    private final Bounds[] byStart;
+    private final long[] starts;
+    private final Bounds[] byEnd;
+    private final long[] ends;
+
+    ResourceDateIndex(FhirTypeConverter fhirTypeConverter, PathAccessor datePath, PathAccessor dateLowPath,
+            PathAccessor dateHighPath, List<? extends IBaseResource> resources, ZoneId zone) {
+        this.resourceCount = resources.size();
+
+        List<Bounds> bounds = new ArrayList<>();
+        int ordinal = 0;
+        for (IBaseResource resource : resources) {
+            Bounds b = null;
+            try {
+                b = toBounds(fhirTypeConverter, datePath, dateLowPath, dateHighPath, resource, zone);
+            } catch (RuntimeException e) {
+                logger.debug("Unable to determine date for {} resource. Skipping: {}", resource.fhirType(), e.getMessage());
+            }
+
+            if (b != null) {
+                b.resource = resource;
+                b.ordinal = ordinal;
+                bounds.add(b);
+                this.boundsByResource.put(resource, b);
+            }
+
+            ordinal++;
+        }
+
+        this.byStart = bounds.toArray(new Bounds[bounds.size()]);
+        Arrays.sort(this.byStart, Comparator.comparingLong(x -> x.start));
+        this.starts = new long[this.byStart.length];
+        for (int i = 0; i < this.byStart.length; i++) {
+            this.starts[i] = this.byStart[i].start;
+        }
+
+        this.byEnd = bounds.toArray(new Bounds[bounds.size()]);
+        Arrays.sort(this.byEnd, Comparator.comparingLong(x -> x.end));
+        this.ends = new long[this.byEnd.length];
+        for (int i = 0; i < this.byEnd.length; i++) {
+            this.ends[i] = this.byEnd[i].end;
+        }
+    }
+
+    /**
+     * @return the number of resources that were considered for this index, including those without a date
+     */
+    int getResourceCount() {
+        return this.resourceCount;
+    }
+
+    /**
+     * Checks whether the date of a resource overlaps a range.
+     * @param resource the resource to check
+     * @param low the inclusive lower bound of the range, in epoch milliseconds
+     * @param high the inclusive upper bound of the range, in epoch milliseconds
+     * @return true if the resource has a date that overlaps the range
+     */
+    boolean overlaps(IBaseResource resource, long low, long high) {
+        Bounds b = this.boundsByResource.get(resource);
+        return b != null && b.start <= high && b.end >= low;
+    }
+
+    /**
+     * Gets all the indexed resources with a date that overlaps a range.
+     * @param low the inclusive lower bound of the range, in epoch milliseconds
+     * @param high the inclusive upper bound of the range, in epoch milliseconds
+     * @return the overlapping resources, in the order they were indexed
+     */
+    List<IBaseResource> getResources(long low, long high) {
+        // Resources that start at or before the high bound are a prefix of byStart, and
+        // resources that end at or after the low bound are a suffix of byEnd. Scan the smaller one.
+        int startsBefore = upperBound(this.starts, high);
+        int endsAfter = this.ends.length - lowerBound(this.ends, low);
+
+        List<Bounds> matches = new ArrayList<>();
+        if (startsBefore <= endsAfter) {
+            for (int i = 0; i < startsBefore; i++) {
+                if (this.byStart[i].end >= low) {
+                    matches.add(this.byStart[i]);
+                }
+            }
+        } else {
+            for (int i = this.byEnd.length - endsAfter; i < this.byEnd.length; i++) {
+                if (this.byEnd[i].start <= high) {
+                    matches.add(this.byEnd[i]);
+                }
+            }
+        }
+
+        matches.sort(Comparator.comparingInt(x -> x.ordinal));
+
+        List<IBaseResource> resources = new ArrayList<>(matches.size());
+        for (Bounds b : matches) {
+            resources.add(b.resource);
+        }
+
+        return resources;
+    }
+
+    /**
+     * @return the zone of the evaluation date time of the engine Context of the current thread, or the system default
+     * zone if there is none
+     */
+    static ZoneId getEvaluationZone() {
+        Context context = Context.getContext();
+        return context != null ? context.getEvaluationZonedDateTime().getZone() : ZoneId.systemDefault();
+    }
+
+    /**
+     * Converts a CQL date range into inclusive epoch millisecond bounds.
+     * @param dateRange the date range
+     * @param zone the zone of the evaluation
+     * @return an array of the low and high bounds, or null if the range does not contain dates
+     */
+    static long[] toBounds(Interval dateRange, ZoneId zone) {
+        Object low = dateRange.getLow();
+        Object high = dateRange.getHigh();
+        if (!isTemporal(low) && !isTemporal(high)) {
+            return null;
+        }
+
+        long lowBound = low != null ? getStart(low, zone) : Long.MIN_VALUE;
+        long highBound = high != null ? getEnd(high, zone) : Long.MAX_VALUE;
+
+        // For open boundaries, exclude the whole precision of the boundary value
+        if (low != null && !dateRange.getLowClosed()) {
+            lowBound = getEnd(low, zone) + 1;
+        }
+
+        if (high != null && !dateRange.getHighClosed()) {
+            highBound = getStart(high, zone) - 1;
+        }
+
+        return new long[] { lowBound, highBound };
+    }
+
+    private static Bounds toBounds(FhirTypeConverter fhirTypeConverter, PathAccessor datePath,
+            PathAccessor dateLowPath, PathAccessor dateHighPath, IBaseResource resource, ZoneId zone) {
+        if (datePath != null) {
+            Object value = evaluate(fhirTypeConverter, datePath, resource);
+            if (value instanceof Interval) {
+                Object low = ((Interval) value).getLow();
+                Object high = ((Interval) value).getHigh();
+                if (!isTemporal(low) && !isTemporal(high)) {
+                    return null;
+                }
+
+                return new Bounds(isTemporal(low) ? getStart(low, zone) : Long.MIN_VALUE,
+                        isTemporal(high) ? getEnd(high, zone) : Long.MAX_VALUE);
+            }
+
+            if (isTemporal(value)) {
+                return new Bounds(getStart(value, zone), getEnd(value, zone));
+            }
+
+            return null;
+        }
+
+        Object low = dateLowPath != null ? evaluate(fhirTypeConverter, dateLowPath, resource) : null;
+        Object high = dateHighPath != null ? evaluate(fhirTypeConverter, dateHighPath, resource) : null;
+        if (!isTemporal(low) && !isTemporal(high)) {
+            return null;
+        }
+
+        return new Bounds(isTemporal(low) ? getStart(low, zone) : Long.MIN_VALUE,
+                isTemporal(high) ? getEnd(high, zone) : Long.MAX_VALUE);
+    }
+
+    private static Object evaluate(FhirTypeConverter fhirTypeConverter, PathAccessor path, IBaseResource resource) {
+        Optional<IBase> value = path.evaluateFirst(resource, IBase.class);
+        if (!value.isPresent()) {
+            return null;
+        }
+
+        return fhirTypeConverter.toCqlType(value.get());
+    }
+
+    private static boolean isTemporal(Object value) {
+        return value instanceof DateTime || value instanceof Date;
+    }
+
+    private static long getStart(Object value, ZoneId zone) {
+        if (value instanceof DateTime) {
+            return ((DateTime) value).getDateTime().toInstant().toEpochMilli();
+        }
+
+        if (value instanceof Date) {
+            return ((Date) value).getDate().atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+
+        throw new IllegalArgumentException(String.format("Unable to determine the start of non-temporal value %s", value));
+    }
+
+    private static long getEnd(Object value, ZoneId zone) {
+        if (value instanceof DateTime) {
+            DateTime dateTime = (DateTime) value;
+            return dateTime.getDateTime().plus(1, toChronoUnit(dateTime.getPrecision())).toInstant().toEpochMilli() - 1;
+        }
+
+        if (value instanceof Date) {
+            Date date = (Date) value;
+            return date.getDate().plus(1, toDateChronoUnit(date.getPrecision())).atStartOfDay(zone)
+                    .toInstant().toEpochMilli() - 1;
+        }
+
+        throw new IllegalArgumentException(String.format("Unable to determine the end of non-temporal value %s", value));
+    }
+
+    // A Date is at least as coarse as a day, whatever its precision says (including no precision)
+    private static ChronoUnit toDateChronoUnit(Precision precision) {
+        ChronoUnit unit = toChronoUnit(precision);
+        return unit.compareTo(ChronoUnit.DAYS) < 0 ? ChronoUnit.DAYS : unit;
+    }
+
+    private static ChronoUnit toChronoUnit(Precision precision) {
+        if (precision == null) {
+            return ChronoUnit.MILLIS;
+        }
+
+        switch (precision) {
+            case YEAR:
+                return ChronoUnit.YEARS;
+            case MONTH:
+                return ChronoUnit.MONTHS;
+            case WEEK:
+                return ChronoUnit.WEEKS;
+            case DAY:
+                return ChronoUnit.DAYS;
+            case HOUR:
+                return ChronoUnit.HOURS;
+            case MINUTE:
+                return ChronoUnit.MINUTES;
+            case SECOND:
+                return ChronoUnit.SECONDS;
+            default:
+                return ChronoUnit.MILLIS;
+        }
+    }
+
+    // Returns the number of elements less than or equal to value
+    private static int upperBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    // Returns the number of elements less than value
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static class Bounds {
+        final long start;
+        final long end;
+        IBaseResource resource;
+        int ordinal;
+
+        Bounds(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * This class fetches the resources related to a set of Patients from a FHIR server with a single paged search per
+ * resource type (e.g. Condition?subject=Patient/1,Patient/2,...). The contextPath is used as the name of the search
+ * parameter, which matches the search parameters defined for the Patient compartment in the base FHIR
+ * specification (e.g. "subject" or "patient"). Patients themselves are searched by _id.
+ */
+public class RestSubjectDataFetcher implements SubjectDataFetcher {
+
+    private final IGenericClient fhirClient;
+
+    public RestSubjectDataFetcher(IGenericClient fhirClient) {
+        this.fhirClient = requireNonNull(fhirClient, "fhirClient can not be null.");
+    }
+
+    @Override
+    public List<? extends IBaseResource> fetch(String dataType, String contextPath, List<String> subjectIds) {
+        requireNonNull(dataType, "dataType can not be null.");
+        requireNonNull(contextPath, "contextPath can not be null.");
+        requireNonNull(subjectIds, "subjectIds can not be null.");
+
+        ICriterion<?> criterion;
+        if ("Patient".equals(dataType)) {
+            criterion = new TokenClientParam("_id").exactly().codes(subjectIds);
+        } else {
+            List<String> references = new ArrayList<>(subjectIds.size());
+            for (String id : subjectIds) {
+                references.add("Patient/" + id);
+            }
+
+            criterion = new ReferenceClientParam(contextPath).hasAnyOfIds(references);
+        }
+
+        IBaseBundle bundle = this.fhirClient.search().forResource(dataType).where(criterion).execute();
+
+        List<IBaseResource> resources = new ArrayList<>();
+        while (bundle != null) {
+            resources.addAll(BundleUtil.toListOfResourcesOfType(this.fhirClient.getFhirContext(), bundle,
+                    this.fhirClient.getFhirContext().getResourceDefinition(dataType).getImplementingClass()));
+
+            if (BundleUtil.getLinkUrlOfType(this.fhirClient.getFhirContext(), bundle, "next") == null) {
+                break;
+            }
+
+            bundle = this.fhirClient.loadPage().next(bundle).execute();
+        }
+
+        return resources;
+    }
+}
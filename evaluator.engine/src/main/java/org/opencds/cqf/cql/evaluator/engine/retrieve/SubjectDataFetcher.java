@@ -0,0 +1,22 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A SubjectDataFetcher loads all the resources of a given type that are related to a set of subjects (e.g. Patients)
+ * in bulk, so that they can be retrieved from memory during evaluation.
+ */
+@FunctionalInterface
+public interface SubjectDataFetcher {
+
+    /**
+     * Fetches all the resources of a given type related to any of the subjects.
+     * @param dataType the type of resource to fetch (e.g. "Condition")
+     * @param contextPath the path relating the resources to a subject (e.g. "subject")
+     * @param subjectIds the ids of the subjects
+     * @return the resources related to any of the subjects
+     */
+    List<? extends IBaseResource> fetch(String dataType, String contextPath, List<String> subjectIds);
+}
@@ -0,0 +1,21 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * A TerminologyProvider that can check the membership of several Codes in a ValueSet at once (e.g. in a single
+ * request to a terminology server), so that callers with many Codes to check (e.g. the codes of the resources of a
+ * retrieve) do not pay for a check per Code.
+ */
+public interface BatchingTerminologyProvider extends TerminologyProvider {
+
+    /**
+     * Checks the membership of several Codes in a ValueSet in as few batches as possible, so that subsequent calls
+     * to in for the Codes are answered without further checks.
+     * @param codes the Codes to check
+     * @param valueSet the ValueSet to check membership of
+     */
+    public void prefetch(Iterable<Code> codes, ValueSetInfo valueSet);
+}
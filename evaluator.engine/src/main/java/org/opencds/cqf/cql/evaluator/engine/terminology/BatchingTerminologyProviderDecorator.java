@@ -0,0 +1,315 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.ParametersUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+
+/**
+ * This class checks ValueSet membership against a FHIR terminology server with batches of ValueSet/$validate-code
+ * requests, rather than a round trip for each check. Checks that are issued while a batch is in flight (e.g. by
+ * concurrent evaluations) are queued and sent together as the next batch, and a window may be specified to wait for
+ * more checks before each batch is sent. A caller with several codes to check (e.g. the codes of the resources of a
+ * retrieve) can check them in a single batch with prefetch.
+ *
+ * The results of the checks are cached by ValueSet, system, and code. Expansions and lookups are delegated to the
+ * inner TerminologyProvider.
+ */
+public class BatchingTerminologyProviderDecorator implements BatchingTerminologyProvider {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAXIMUM_RESULTS = 100_000;
+
+    private final TerminologyProvider innerProvider;
+    private final IGenericClient fhirClient;
+    private final Duration window;
+    private final int maxBatchSize;
+
+    private final Cache<String, Boolean> results;
+    private final Map<String, Check> inFlight = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+    private List<Check> pending = new ArrayList<>();
+    private boolean sending = false;
+
+    /**
+     * Creates a decorator that sends each batch as soon as the previous batch completes.
+     * @param terminologyProvider the TerminologyProvider used for expansions and lookups
+     * @param fhirClient the client of the terminology server
+     */
+    public BatchingTerminologyProviderDecorator(TerminologyProvider terminologyProvider, IGenericClient fhirClient) {
+        this(terminologyProvider, fhirClient, Duration.ZERO, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param terminologyProvider the TerminologyProvider used for expansions and lookups
+     * @param fhirClient the client of the terminology server
+     * @param window how long to wait for more checks before a batch is sent
+     * @param maxBatchSize the maximum number of checks in a batch
+     */
+    public BatchingTerminologyProviderDecorator(TerminologyProvider terminologyProvider, IGenericClient fhirClient,
+            Duration window, int maxBatchSize) {
+        this.innerProvider = requireNonNull(terminologyProvider, "terminologyProvider can not be null.");
+        this.fhirClient = requireNonNull(fhirClient, "fhirClient can not be null.");
+        this.window = requireNonNull(window, "window can not be null.");
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1.");
+        }
+
+        this.maxBatchSize = maxBatchSize;
+        this.results = Caffeine.newBuilder().maximumSize(DEFAULT_MAXIMUM_RESULTS).build();
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        requireNonNull(code, "code can not be null.");
+        requireNonNull(valueSet, "valueSet can not be null.");
+
+        String key = key(code, valueSet);
+        Boolean result = this.results.getIfPresent(key);
+        if (result != null) {
+            return result;
+        }
+
+        Check check = this.enqueue(key, code, valueSet);
+        this.send();
+        return join(check);
+    }
+
+    @Override
+    public void prefetch(Iterable<Code> codes, ValueSetInfo valueSet) {
+        requireNonNull(codes, "codes can not be null.");
+        requireNonNull(valueSet, "valueSet can not be null.");
+
+        List<Check> checks = new ArrayList<>();
+        for (Code code : codes) {
+            if (code == null || code.getCode() == null) {
+                continue;
+            }
+
+            String key = key(code, valueSet);
+            if (this.results.getIfPresent(key) == null) {
+                checks.add(this.enqueue(key, code, valueSet));
+            }
+        }
+
+        if (checks.isEmpty()) {
+            return;
+        }
+
+        this.send();
+        for (Check check : checks) {
+            join(check);
+        }
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return this.innerProvider.expand(valueSet);
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return this.innerProvider.lookup(code, codeSystem);
+    }
+
+    private Check enqueue(String key, Code code, ValueSetInfo valueSet) {
+        synchronized (this.lock) {
+            Check check = this.inFlight.get(key);
+            if (check == null) {
+                check = new Check(key, code, valueSet);
+                this.inFlight.put(key, check);
+                this.pending.add(check);
+            }
+
+            return check;
+        }
+    }
+
+    private void send() {
+        while (true) {
+            synchronized (this.lock) {
+                // The thread that is sending a batch sends the checks that are queued in the meantime
+                if (this.sending || this.pending.isEmpty()) {
+                    return;
+                }
+
+                this.sending = true;
+            }
+
+            List<Check> batch;
+            try {
+                this.await();
+                synchronized (this.lock) {
+                    if (this.pending.size() <= this.maxBatchSize) {
+                        batch = this.pending;
+                        this.pending = new ArrayList<>();
+                    } else {
+                        batch = new ArrayList<>(this.pending.subList(0, this.maxBatchSize));
+                        this.pending = new ArrayList<>(this.pending.subList(this.maxBatchSize, this.pending.size()));
+                    }
+                }
+
+                this.validate(batch);
+            } finally {
+                synchronized (this.lock) {
+                    this.sending = false;
+                }
+            }
+        }
+    }
+
+    private void await() {
+        if (this.window.isZero() || this.window.isNegative()) {
+            return;
+        }
+
+        synchronized (this.lock) {
+            if (this.pending.size() >= this.maxBatchSize) {
+                return;
+            }
+        }
+
+        try {
+            Thread.sleep(this.window.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void validate(List<Check> batch) {
+        FhirContext fhirContext = this.fhirClient.getFhirContext();
+        try {
+            BundleBuilder builder = new BundleBuilder(fhirContext);
+            builder.setBundleField("type", "batch");
+            for (Check check : batch) {
+                IBase entry = builder.addEntry();
+                IBase request = builder.addBackboneElement(entry, "request");
+                builder.addToField(request, "method", builder.newPrimitive("code", "GET"));
+                builder.addToField(request, "url", builder.newPrimitive("uri", check.getUrl()));
+            }
+
+            IBaseBundle response = this.fhirClient.transaction().withBundle(builder.getBundle())
+                    .execute();
+            List<BundleEntryParts> entries = BundleUtil.toListOfEntries(fhirContext, response);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Check check = batch.get(i);
+                IBaseResource resource = i < entries.size() ? entries.get(i).getResource() : null;
+                if (!(resource instanceof IBaseParameters)) {
+                    check.completeExceptionally(new IllegalStateException(
+                            String.format("Unable to validate code %s in ValueSet %s", check.code.getCode(),
+                                    check.valueSet.getId())));
+                    continue;
+                }
+
+                List<String> values = ParametersUtil.getNamedParameterValuesAsString(fhirContext,
+                        (IBaseParameters) resource, "result");
+                boolean result = !values.isEmpty() && Boolean.parseBoolean(values.get(0));
+                this.results.put(check.key, result);
+                check.complete(result);
+            }
+        } catch (RuntimeException e) {
+            for (Check check : batch) {
+                check.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static boolean join(Check check) {
+        try {
+            return check.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private static String key(Code code, ValueSetInfo valueSet) {
+        return valueSet.getId() + "|" + valueSet.getVersion() + "|" + code.getSystem() + "|" + code.getCode();
+    }
+
+    private class Check {
+        final String key;
+        final Code code;
+        final ValueSetInfo valueSet;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Check(String key, Code code, ValueSetInfo valueSet) {
+            this.key = key;
+            this.code = code;
+            this.valueSet = valueSet;
+        }
+
+        String getUrl() {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("url", this.valueSet.getId());
+            parameters.put("valueSetVersion", this.valueSet.getVersion());
+            parameters.put("code", this.code.getCode());
+            parameters.put("system", this.code.getSystem());
+            parameters.put("systemVersion", this.code.getVersion());
+
+            StringBuilder url = new StringBuilder("ValueSet/$validate-code");
+            char separator = '?';
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (parameter.getValue() == null) {
+                    continue;
+                }
+
+                url.append(separator).append(parameter.getKey()).append('=').append(encode(parameter.getValue()));
+                separator = '&';
+            }
+
+            return url.toString();
+        }
+
+        void complete(boolean value) {
+            inFlight.remove(this.key);
+            this.result.complete(value);
+        }
+
+        void completeExceptionally(RuntimeException e) {
+            inFlight.remove(this.key);
+            this.result.completeExceptionally(e);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+}
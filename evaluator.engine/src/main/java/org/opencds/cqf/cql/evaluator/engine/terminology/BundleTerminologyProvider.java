@@ -3,10 +3,13 @@ package org.opencds.cqf.cql.evaluator.engine.terminology;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -19,24 +22,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.util.BundleUtil;
 
 public class BundleTerminologyProvider implements TerminologyProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(BundleTerminologyProvider.class);
 
-    private FhirContext fhirContext;
-    private List<? extends IBaseResource> valueSets;
-    private Map<String, Iterable<Code>> valueSetIndex = new HashMap<>();
+    // Expansions larger than this are held as CompactExpansions
+    static final int COMPACT_EXPANSION_THRESHOLD = 10_000;
 
-    private boolean initialized = false;
+    private FhirContext fhirContext;
+    private Map<String, IBaseResource> valueSets = new HashMap<>();
+    private ComposeExpander composeExpander;
+    // Expansions are built the first time each ValueSet is used. Very large expansions are held compactly, and
+    // smaller ones as a list of Codes with a CodeSet for fast membership checks.
+    private Map<String, Expansion> valueSetIndex = new ConcurrentHashMap<>();
 
     public BundleTerminologyProvider(FhirContext fhirContext, IBaseBundle bundle) {
         requireNonNull(fhirContext, "fhirContext can not be null.");
         requireNonNull(bundle, "bundle can not be null.");
 
         this.fhirContext = fhirContext;
-        this.valueSets = BundleUtil.toListOfResourcesOfType(this.fhirContext, bundle, this.fhirContext.getResourceDefinition("ValueSet").getImplementingClass());
+        List<? extends IBaseResource> valueSets = BundleUtil.toListOfResourcesOfType(this.fhirContext, bundle, this.fhirContext.getResourceDefinition("ValueSet").getImplementingClass());
+        for (IBaseResource resource : valueSets) {
+            this.valueSets.put(ValueSetUtil.getUrl(this.fhirContext, resource), resource);
+        }
+
+        List<? extends IBaseResource> codeSystems = this.fhirContext.getVersion().getVersion().isEqualOrNewerThan(FhirVersionEnum.DSTU3)
+                ? BundleUtil.toListOfResourcesOfType(this.fhirContext, bundle, this.fhirContext.getResourceDefinition("CodeSystem").getImplementingClass())
+                : Collections.emptyList();
+        this.composeExpander = new ComposeExpander(this.fhirContext, codeSystems);
     }
 
     
@@ -51,21 +67,15 @@ public class BundleTerminologyProvider implements TerminologyProvider {
         requireNonNull(code, "code can not be null when using 'expand'");
         requireNonNull(valueSet, "valueSet can not be null when using 'expand'");
 
-        Iterable<Code> codes = this.expand(valueSet);
-        for (Code c : codes) {
-            if (c.getCode().equals(code.getCode()) && c.getSystem().equals(code.getSystem())) {
-                return true;
-            }
-        }
-
-        return false;
+        return this.getExpansion(valueSet).contains(code);
     }
 
     
     /** 
      * This method expands a ValueSet into a list of Codes. It will use the "expansion" element of the ValueSet if present.
-     * It will fall back the to "compose" element if not present. <b>NOTE:</b> This provider does not provide a full expansion
-     * of the "compose" element. If only lists the codes present in the "compose". 
+     * It will fall back the to "compose" element if not present. The "compose" element is expanded using the CodeSystems
+     * in the bundle, including "is-a" and "descendent-of" filters. <b>NOTE:</b> If the "compose" element can not be fully
+     * expanded (e.g. a CodeSystem is not in the bundle) this provider only lists the codes present in the "compose".
      * @param valueSet The ValueSetInfo of the ValueSet to expand
      * @return The Codes in the ValueSet. <b>NOTE:</b> This method never returns null.
      */
@@ -74,13 +84,22 @@ public class BundleTerminologyProvider implements TerminologyProvider {
     public Iterable<Code> expand(ValueSetInfo valueSet) {
         requireNonNull(valueSet, "valueSet can not be null when using 'expand'");
 
-        this.initialize();
+        return this.getExpansion(valueSet).codes;
+    }
+
+    private Expansion getExpansion(ValueSetInfo valueSet) {
+        Expansion expansion = this.valueSetIndex.get(valueSet.getId());
+        if (expansion != null) {
+            return expansion;
+        }
 
-        if (!this.valueSetIndex.containsKey(valueSet.getId())) {
-            throw new IllegalArgumentException(String.format("Unable to locate ValueSet %s", valueSet.getId()));
+        IBaseResource resource = valueSet.getId() != null ? this.valueSets.get(valueSet.getId()) : null;
+        if (resource == null) {
+            throw new ValueSetNotFoundException(valueSet.getId());
         }
 
-        return this.valueSetIndex.get(valueSet.getId());
+        // Concurrent first uses of a ValueSet wait for a single expansion
+        return this.valueSetIndex.computeIfAbsent(valueSet.getId(), x -> this.expand(resource));
     }
 
     
@@ -106,29 +125,45 @@ public class BundleTerminologyProvider implements TerminologyProvider {
         return null;
     }
 
-    private void initialize() {
-        if (this.initialized) {
-            return;
-        }
+    private Expansion expand(IBaseResource resource) {
+        Iterable<Code> codes = ValueSetUtil.getCodesInExpansion(this.fhirContext, resource);
 
-        for (IBaseResource resource : this.valueSets) {
-            String url = ValueSetUtil.getUrl(fhirContext, resource);
-            Iterable<Code> codes = ValueSetUtil.getCodesInExpansion(this.fhirContext, resource);
+        if (codes == null) {
+            codes = this.composeExpander.expand(resource);
+        }
 
-            if (codes == null) {
-                logger.info("ValueSet {} is not expanded. Falling back to compose definition. This will potentially produce incorrect results. ", url);
-                codes = ValueSetUtil.getCodesInCompose(this.fhirContext, resource);
-            }
+        if (codes == null) {
+            logger.info("ValueSet {} is not expanded. Falling back to compose definition. This will potentially produce incorrect results. ", ValueSetUtil.getUrl(this.fhirContext, resource));
+            codes = ValueSetUtil.getCodesInCompose(this.fhirContext, resource);
+        }
 
-            if (codes == null) {
-                codes = Collections.emptySet();
-            }
+        if (codes == null) {
+            codes = Collections.emptySet();
+        }
 
-            this.valueSetIndex.put(url, codes);
+        List<Code> list = new ArrayList<>();
+        codes.forEach(list::add);
+        if (list.size() > COMPACT_EXPANSION_THRESHOLD) {
+            CompactExpansion compactExpansion = CompactExpansion.of(list);
+            return new Expansion(compactExpansion, compactExpansion::contains);
         }
 
+        CodeSet codeSet = CodeSet.of(list);
+        return new Expansion(Collections.unmodifiableList(list), codeSet::contains);
+    }
 
-        this.initialized = true;
+    private static class Expansion {
+        final Iterable<Code> codes;
+        final Predicate<Code> membership;
+
+        Expansion(Iterable<Code> codes, Predicate<Code> membership) {
+            this.codes = codes;
+            this.membership = membership;
+        }
+
+        boolean contains(Code code) {
+            return this.membership.test(code);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide dictionary that assigns an int id to each distinct code system and code, so that a system and code
+ * can be packed into a single long key and compared as a primitive. Ids start at 1, so a key is never 0, and
+ * NO_KEY is returned when a system or code has never been interned (and so can not match any interned key).
+ *
+ * The dictionary also returns a canonical instance of each system, so that the Codes of resources and expansions can
+ * share a single copy of long system URIs. Entries are never removed, so only the codes of terminology (e.g. ValueSet
+ * expansions) should be interned, and the dictionary grows with the terminology rather than with the data. Codes of
+ * data should be looked up with findKey.
+ */
+public final class CodeDictionary {
+
+    public static final long NO_KEY = -1L;
+
+    private static final Map<String, Integer> systems = new ConcurrentHashMap<>();
+    private static final Map<String, String> canonicalSystems = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> codes = new ConcurrentHashMap<>();
+
+    private CodeDictionary() {
+    }
+
+    /**
+     * @param system the system to intern
+     * @return the canonical instance of the system, or null if the system is null
+     */
+    public static String internSystem(String system) {
+        if (system == null) {
+            return null;
+        }
+
+        String canonical = canonicalSystems.putIfAbsent(system, system);
+        return canonical != null ? canonical : system;
+    }
+
+    /**
+     * Interns a system and code.
+     * @param system the system
+     * @param code the code
+     * @return the key of the system and code, or NO_KEY if either is null
+     */
+    public static long key(String system, String code) {
+        if (system == null || code == null) {
+            return NO_KEY;
+        }
+
+        return pack(id(systems, system), id(codes, code));
+    }
+
+    /**
+     * Finds the key of a system and code without interning them. This should be used for codes that are only
+     * compared against interned keys (e.g. the codes requested by a retrieve), so that they do not grow the
+     * dictionary.
+     * @param system the system
+     * @param code the code
+     * @return the key of the system and code, or NO_KEY if either is null or has not been interned
+     */
+    public static long findKey(String system, String code) {
+        if (system == null || code == null) {
+            return NO_KEY;
+        }
+
+        Integer systemId = systems.get(system);
+        Integer codeId = codes.get(code);
+        if (systemId == null || codeId == null) {
+            return NO_KEY;
+        }
+
+        return pack(systemId, codeId);
+    }
+
+    /**
+     * @return the number of distinct codes interned
+     */
+    public static int codeCount() {
+        return codes.size();
+    }
+
+    private static int id(Map<String, Integer> ids, String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        // The size of the map is only read under the lock, so ids are dense and unique
+        synchronized (ids) {
+            return ids.computeIfAbsent(value, x -> ids.size() + 1);
+        }
+    }
+
+    private static long pack(int systemId, int codeId) {
+        return ((long) systemId << 32) | (codeId & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,145 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collection;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * An immutable set of the system and code of a list of Codes (e.g. the expansion of a ValueSet) that checks
+ * membership in constant time. The set is an open-addressing hash table with linear probing of the keys assigned to
+ * each system and code by the CodeDictionary, which is much more compact than a HashSet for large expansions since
+ * there are no entry objects or strings, and membership is checked by comparing primitive keys. Versions are not
+ * considered.
+ */
+public final class CodeSet {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // 0 is never a key, so it marks an empty slot
+    private long[] keys;
+    private int size;
+
+    private CodeSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2 && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+
+        this.keys = new long[capacity];
+    }
+
+    /**
+     * Creates a CodeSet of the system and code of each Code. Codes without a system or code are ignored, since they
+     * can never be members.
+     * @param codes the Codes
+     * @return the CodeSet
+     */
+    public static CodeSet of(Iterable<Code> codes) {
+        requireNonNull(codes, "codes can not be null.");
+
+        CodeSet codeSet = new CodeSet(codes instanceof Collection ? ((Collection<?>) codes).size() : 0);
+        for (Code code : codes) {
+            if (code == null) {
+                continue;
+            }
+
+            long key = CodeDictionary.key(code.getSystem(), code.getCode());
+            if (key != CodeDictionary.NO_KEY) {
+                codeSet.add(key);
+            }
+        }
+
+        return codeSet;
+    }
+
+    /**
+     * @param code the Code to check
+     * @return true if the set contains a Code with the same system and code
+     */
+    public boolean contains(Code code) {
+        requireNonNull(code, "code can not be null.");
+
+        return this.contains(code.getSystem(), code.getCode());
+    }
+
+    /**
+     * @param system the system to check
+     * @param code the code to check
+     * @return true if the set contains the system and code
+     */
+    public boolean contains(String system, String code) {
+        return this.contains(CodeDictionary.findKey(system, code));
+    }
+
+    /**
+     * @param key the CodeDictionary key of the system and code to check
+     * @return true if the set contains the key
+     */
+    public boolean contains(long key) {
+        if (key == CodeDictionary.NO_KEY || key == 0) {
+            return false;
+        }
+
+        int mask = this.keys.length - 1;
+        for (int i = hash(key) & mask; this.keys[i] != 0; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of distinct system and code pairs in the set
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private void add(long key) {
+        if (this.size * 2 >= this.keys.length) {
+            this.resize();
+        }
+
+        if (insert(this.keys, key)) {
+            this.size++;
+        }
+    }
+
+    private void resize() {
+        if (this.keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("CodeSet is full.");
+        }
+
+        long[] newKeys = new long[this.keys.length * 2];
+        for (long key : this.keys) {
+            if (key != 0) {
+                insert(newKeys, key);
+            }
+        }
+
+        this.keys = newKeys;
+    }
+
+    private static boolean insert(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return false;
+            }
+        }
+
+        keys[i] = key;
+        return true;
+    }
+
+    private static int hash(long key) {
+        // Mix the system and code ids, since the table index uses the low bits
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,310 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The precomputed transitive closure of the is-a hierarchy of a CodeSystem, which answers subsumption questions
+ * without walking the hierarchy.
+ *
+ * The concepts are numbered in depth-first preorder, so the descendants of a concept in a strict hierarchy are a
+ * single contiguous range of numbers (interval labelling). A concept with more than one parent is reachable from each
+ * of them, so the closure of each concept is stored as a sorted list of disjoint ranges, which is a single range
+ * unless the hierarchy is polyhierarchical. Sets of concepts are returned as BitSets of preorder numbers, so that
+ * filters can be combined with set operations.
+ */
+final class CodeSystemHierarchy {
+
+    private static final Logger logger = LoggerFactory.getLogger(CodeSystemHierarchy.class);
+
+    private final String url;
+    private final String version;
+
+    // Indexed by preorder number
+    private final String[] codes;
+    private final String[] displays;
+    // The closure of each concept as flattened [start, end) pairs, including the concept itself
+    private final int[][] closures;
+
+    private final Map<String, Integer> numbersByCode;
+
+    /**
+     * @param url the url of the CodeSystem
+     * @param version the version of the CodeSystem. May be null.
+     * @param codes the distinct codes of the concepts
+     * @param displays the displays of the concepts, in the same order as the codes. Displays may be null.
+     * @param edges the is-a relationships as {parent, child} pairs of indices into the codes
+     */
+    CodeSystemHierarchy(String url, String version, List<String> codes, List<String> displays, List<int[]> edges) {
+        requireNonNull(url, "url can not be null.");
+        requireNonNull(codes, "codes can not be null.");
+        requireNonNull(displays, "displays can not be null.");
+        requireNonNull(edges, "edges can not be null.");
+
+        this.url = url;
+        this.version = version;
+
+        int count = codes.size();
+        List<List<Integer>> children = new ArrayList<>(count);
+        boolean[] hasParent = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            children.add(new ArrayList<>());
+        }
+
+        for (int[] edge : edges) {
+            children.get(edge[0]).add(edge[1]);
+            hasParent[edge[1]] = true;
+        }
+
+        Labeller labeller = new Labeller(children, url);
+        for (int i = 0; i < count; i++) {
+            if (!hasParent[i]) {
+                labeller.visit(i);
+            }
+        }
+
+        // Concepts that are only reachable through a cycle
+        for (int i = 0; i < count; i++) {
+            labeller.visit(i);
+        }
+
+        this.codes = new String[count];
+        this.displays = new String[count];
+        this.closures = new int[count][];
+        this.numbersByCode = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            int number = labeller.numbers[i];
+            this.codes[number] = codes.get(i);
+            this.displays[number] = displays.get(i);
+            this.closures[number] = labeller.closures[i];
+            this.numbersByCode.put(codes.get(i), number);
+        }
+    }
+
+    String getUrl() {
+        return this.url;
+    }
+
+    String getVersion() {
+        return this.version;
+    }
+
+    int size() {
+        return this.codes.length;
+    }
+
+    boolean contains(String code) {
+        return code != null && this.numbersByCode.containsKey(code);
+    }
+
+    /**
+     * @param ancestor the code of the ancestor
+     * @param code the code to check
+     * @return true if the code is the ancestor or one of its descendants
+     */
+    boolean subsumes(String ancestor, String code) {
+        Integer ancestorNumber = ancestor != null ? this.numbersByCode.get(ancestor) : null;
+        Integer number = code != null ? this.numbersByCode.get(code) : null;
+        if (ancestorNumber == null || number == null) {
+            return false;
+        }
+
+        return inClosure(this.closures[ancestorNumber], number);
+    }
+
+    /**
+     * @return all the concepts of the CodeSystem
+     */
+    BitSet all() {
+        BitSet concepts = new BitSet(this.codes.length);
+        concepts.set(0, this.codes.length);
+        return concepts;
+    }
+
+    /**
+     * @param code the code of the concept
+     * @return the concept and all its descendants, or an empty set if the code is not in the CodeSystem
+     */
+    BitSet descendantsOrSelf(String code) {
+        BitSet concepts = new BitSet(this.codes.length);
+        Integer number = code != null ? this.numbersByCode.get(code) : null;
+        if (number != null) {
+            int[] closure = this.closures[number];
+            for (int i = 0; i < closure.length; i += 2) {
+                concepts.set(closure[i], closure[i + 1]);
+            }
+        }
+
+        return concepts;
+    }
+
+    /**
+     * @param code the code of the concept
+     * @return all the descendants of the concept, or an empty set if the code is not in the CodeSystem
+     */
+    BitSet descendants(String code) {
+        BitSet concepts = this.descendantsOrSelf(code);
+        Integer number = code != null ? this.numbersByCode.get(code) : null;
+        if (number != null) {
+            concepts.clear(number);
+        }
+
+        return concepts;
+    }
+
+    /**
+     * @param code the code of the concept
+     * @return the concept and all its ancestors, or an empty set if the code is not in the CodeSystem
+     */
+    BitSet ancestorsOrSelf(String code) {
+        BitSet concepts = new BitSet(this.codes.length);
+        Integer number = code != null ? this.numbersByCode.get(code) : null;
+        if (number != null) {
+            for (int i = 0; i < this.closures.length; i++) {
+                if (inClosure(this.closures[i], number)) {
+                    concepts.set(i);
+                }
+            }
+        }
+
+        return concepts;
+    }
+
+    /**
+     * @param concepts a set of concepts
+     * @return the Codes of the concepts, in hierarchy order
+     */
+    List<Code> toCodes(BitSet concepts) {
+        List<Code> result = new ArrayList<>(concepts.cardinality());
+        for (int i = concepts.nextSetBit(0); i >= 0; i = concepts.nextSetBit(i + 1)) {
+            result.add(new Code().withSystem(this.url).withVersion(this.version).withCode(this.codes[i])
+                    .withDisplay(this.displays[i]));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param code the code of the concept
+     * @return the display of the concept, or null if the code is not in the CodeSystem
+     */
+    String getDisplay(String code) {
+        Integer number = code != null ? this.numbersByCode.get(code) : null;
+        return number != null ? this.displays[number] : null;
+    }
+
+    private static boolean inClosure(int[] closure, int number) {
+        // Binary search over the starts of the ranges
+        int low = 0;
+        int high = closure.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (closure[mid * 2] > number) {
+                high = mid - 1;
+            } else if (closure[mid * 2 + 1] <= number) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Numbers the concepts in depth-first preorder and computes the closure of each concept as the union of its own
+     * subtree range and the closures of its children.
+     */
+    private static class Labeller {
+        private static final int UNVISITED = 0;
+        private static final int VISITING = 1;
+        private static final int VISITED = 2;
+
+        final List<List<Integer>> children;
+        final String url;
+        final int[] numbers;
+        final int[][] closures;
+        final int[] states;
+        int next = 0;
+
+        Labeller(List<List<Integer>> children, String url) {
+            this.children = children;
+            this.url = url;
+            this.numbers = new int[children.size()];
+            this.closures = new int[children.size()][];
+            this.states = new int[children.size()];
+        }
+
+        void visit(int concept) {
+            if (this.states[concept] != UNVISITED) {
+                return;
+            }
+
+            this.states[concept] = VISITING;
+            this.numbers[concept] = this.next++;
+
+            List<Integer> children = this.children.get(concept);
+            List<int[]> closures = new ArrayList<>(children.size());
+            for (int child : children) {
+                if (this.states[child] == VISITING) {
+                    logger.warn("CodeSystem {} has a cycle in its hierarchy. The relationship is ignored.", this.url);
+                    continue;
+                }
+
+                this.visit(child);
+                closures.add(this.closures[child]);
+            }
+
+            // The concepts numbered while visiting the children are the subtree of this concept
+            closures.add(new int[] { this.numbers[concept], this.next });
+            this.closures[concept] = merge(closures);
+            this.states[concept] = VISITED;
+        }
+
+        private static int[] merge(List<int[]> closures) {
+            if (closures.size() == 1) {
+                return closures.get(0);
+            }
+
+            int count = 0;
+            for (int[] closure : closures) {
+                count += closure.length / 2;
+            }
+
+            long[] ranges = new long[count];
+            int i = 0;
+            for (int[] closure : closures) {
+                for (int j = 0; j < closure.length; j += 2) {
+                    ranges[i++] = ((long) closure[j] << 32) | closure[j + 1];
+                }
+            }
+
+            Arrays.sort(ranges);
+
+            int[] merged = new int[count * 2];
+            int length = 0;
+            for (long range : ranges) {
+                int start = (int) (range >>> 32);
+                int end = (int) range;
+                if (length > 0 && start <= merged[length - 1]) {
+                    merged[length - 1] = Math.max(merged[length - 1], end);
+                } else {
+                    merged[length++] = start;
+                    merged[length++] = end;
+                }
+            }
+
+            return length == merged.length ? merged : Arrays.copyOf(merged, length);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * An immutable, compact representation of the expansion of a ValueSet, for very large expansions. The Codes are
+ * grouped by system and version, and the codes and displays of each group are stored as UTF-8 bytes packed into a
+ * single array with an array of offsets, so there are no Code or String objects per code. The codes of each group are
+ * sorted, so membership is checked with a binary search. Codes are only materialized as they are iterated, and each
+ * iteration creates new Code objects.
+ *
+ * The Codes are iterated in order of system and version (in the order each first appears), then code. Duplicate
+ * Codes (by system, version, and code) are stored once.
+ */
+public final class CompactExpansion implements Iterable<Code> {
+
+    private final Group[] groups;
+    private final int size;
+
+    private CompactExpansion(Group[] groups) {
+        this.groups = groups;
+        int count = 0;
+        for (Group group : groups) {
+            count += group.size();
+        }
+
+        this.size = count;
+    }
+
+    /**
+     * Creates a CompactExpansion of a list of Codes. Codes without a code are ignored.
+     * @param codes the Codes
+     * @return the CompactExpansion
+     */
+    public static CompactExpansion of(Iterable<Code> codes) {
+        requireNonNull(codes, "codes can not be null.");
+
+        Map<List<String>, List<Entry>> entriesByGroup = new LinkedHashMap<>();
+        for (Code code : codes) {
+            if (code == null || code.getCode() == null) {
+                continue;
+            }
+
+            List<String> group = new ArrayList<>(2);
+            group.add(code.getSystem());
+            group.add(code.getVersion());
+            entriesByGroup.computeIfAbsent(group, x -> new ArrayList<>())
+                    .add(new Entry(code.getCode().getBytes(StandardCharsets.UTF_8), code.getDisplay()));
+        }
+
+        Group[] groups = new Group[entriesByGroup.size()];
+        int i = 0;
+        for (Map.Entry<List<String>, List<Entry>> group : entriesByGroup.entrySet()) {
+            groups[i++] = new Group(CodeDictionary.internSystem(group.getKey().get(0)), group.getKey().get(1),
+                    group.getValue());
+        }
+
+        return new CompactExpansion(groups);
+    }
+
+    /**
+     * @param code the Code to check
+     * @return true if the expansion contains a Code with the same system and code. Versions are not considered.
+     */
+    public boolean contains(Code code) {
+        requireNonNull(code, "code can not be null.");
+
+        return this.contains(code.getSystem(), code.getCode());
+    }
+
+    /**
+     * @param system the system to check
+     * @param code the code to check
+     * @return true if the expansion contains the system and code
+     */
+    public boolean contains(String system, String code) {
+        if (system == null || code == null) {
+            return false;
+        }
+
+        byte[] bytes = null;
+        for (Group group : this.groups) {
+            if (!system.equals(group.system)) {
+                continue;
+            }
+
+            if (bytes == null) {
+                bytes = code.getBytes(StandardCharsets.UTF_8);
+            }
+
+            if (group.indexOf(bytes) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of Codes in the expansion
+     */
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Iterator<Code> iterator() {
+        return new Iterator<Code>() {
+            private int group = 0;
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.group < groups.length && this.index >= groups[this.group].size()) {
+                    this.group++;
+                    this.index = 0;
+                }
+
+                return this.group < groups.length;
+            }
+
+            @Override
+            public Code next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return groups[this.group].get(this.index++);
+            }
+        };
+    }
+
+    private static class Entry {
+        final byte[] code;
+        final String display;
+
+        Entry(byte[] code, String display) {
+            this.code = code;
+            this.display = display;
+        }
+    }
+
+    private static class Group {
+        final String system;
+        final String version;
+
+        final byte[] codes;
+        final int[] codeOffsets;
+        final byte[] displays;
+        final int[] displayOffsets;
+        // Distinguishes null displays from empty displays
+        final BitSet hasDisplay;
+
+        Group(String system, String version, List<Entry> entries) {
+            this.system = system;
+            this.version = version;
+
+            entries.sort((x, y) -> compare(x.code, 0, x.code.length, y.code));
+            List<Entry> distinct = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                Entry previous = distinct.isEmpty() ? null : distinct.get(distinct.size() - 1);
+                if (previous == null || compare(previous.code, 0, previous.code.length, entry.code) != 0) {
+                    distinct.add(entry);
+                }
+            }
+
+            int count = distinct.size();
+            this.codeOffsets = new int[count + 1];
+            this.displayOffsets = new int[count + 1];
+            this.hasDisplay = new BitSet(count);
+
+            List<byte[]> displayBytes = new ArrayList<>(count);
+            int codeLength = 0;
+            int displayLength = 0;
+            for (int i = 0; i < count; i++) {
+                Entry entry = distinct.get(i);
+                byte[] display = entry.display != null ? entry.display.getBytes(StandardCharsets.UTF_8) : new byte[0];
+                displayBytes.add(display);
+                if (entry.display != null) {
+                    this.hasDisplay.set(i);
+                }
+
+                codeLength += entry.code.length;
+                displayLength += display.length;
+                this.codeOffsets[i + 1] = codeLength;
+                this.displayOffsets[i + 1] = displayLength;
+            }
+
+            this.codes = new byte[codeLength];
+            this.displays = new byte[displayLength];
+            for (int i = 0; i < count; i++) {
+                byte[] code = distinct.get(i).code;
+                System.arraycopy(code, 0, this.codes, this.codeOffsets[i], code.length);
+                byte[] display = displayBytes.get(i);
+                System.arraycopy(display, 0, this.displays, this.displayOffsets[i], display.length);
+            }
+        }
+
+        int size() {
+            return this.codeOffsets.length - 1;
+        }
+
+        int indexOf(byte[] code) {
+            int low = 0;
+            int high = this.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(this.codes, this.codeOffsets[mid], this.codeOffsets[mid + 1], code);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -1;
+        }
+
+        Code get(int index) {
+            String code = new String(this.codes, this.codeOffsets[index],
+                    this.codeOffsets[index + 1] - this.codeOffsets[index], StandardCharsets.UTF_8);
+            String display = this.hasDisplay.get(index)
+                    ? new String(this.displays, this.displayOffsets[index],
+                            this.displayOffsets[index + 1] - this.displayOffsets[index], StandardCharsets.UTF_8)
+                    : null;
+
+            return new Code().withSystem(this.system).withVersion(this.version).withCode(code).withDisplay(display);
+        }
+
+        // Compares bytes[start, end) to other as unsigned bytes, which orders UTF-8 by code point
+        private static int compare(byte[] bytes, int start, int end, byte[] other) {
+            int length = Math.min(end - start, other.length);
+            for (int i = 0; i < length; i++) {
+                int c = (bytes[start + i] & 0xFF) - (other[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+
+            return (end - start) - other.length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompactExpansion(%d codes in %d groups)", this.size, this.groups.length);
+    }
+}
@@ -0,0 +1,272 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.evaluator.engine.util.ValueSetUtil;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessorCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * This class expands the "compose" element of a ValueSet in-process, using a set of CodeSystem resources. It supports
+ * includes and excludes that list concepts, that include an entire CodeSystem, or that filter on the "concept"
+ * property with the "is-a", "descendent-of", "is-not-a", and "generalizes" operators. The hierarchy of each
+ * CodeSystem is precomputed as a {@link CodeSystemHierarchy} the first time it is used.
+ *
+ * A ValueSet that can not be expanded exactly (e.g. it includes other ValueSets, uses other filters, or uses a
+ * CodeSystem that is not available) is not expanded, so that the caller can choose how to fall back.
+ *
+ * This class is thread-safe.
+ */
+class ComposeExpander {
+
+    private static final Logger logger = LoggerFactory.getLogger(ComposeExpander.class);
+
+    private final FhirContext fhirContext;
+    private final Map<String, IBaseResource> codeSystems = new HashMap<>();
+    private final Map<String, CodeSystemHierarchy> hierarchies = new HashMap<>();
+
+    ComposeExpander(FhirContext fhirContext, List<? extends IBaseResource> codeSystems) {
+        requireNonNull(fhirContext, "fhirContext can not be null.");
+        requireNonNull(codeSystems, "codeSystems can not be null.");
+
+        this.fhirContext = fhirContext;
+        for (IBaseResource codeSystem : codeSystems) {
+            String url = this.getString(codeSystem, "url");
+            if (url == null) {
+                continue;
+            }
+
+            this.codeSystems.put(url, codeSystem);
+            String version = this.getString(codeSystem, "version");
+            if (version != null) {
+                this.codeSystems.put(url + "|" + version, codeSystem);
+            }
+        }
+    }
+
+    /**
+     * Expands the compose element of a ValueSet.
+     * @param valueSet the ValueSet to expand
+     * @return the Codes of the ValueSet, or null if the ValueSet has no compose element or can not be expanded
+     *         exactly
+     */
+    List<Code> expand(IBaseResource valueSet) {
+        requireNonNull(valueSet, "valueSet can not be null.");
+
+        List<IBase> includes = ValueSetUtil.getIncludes(this.fhirContext, valueSet);
+        if (includes == null) {
+            return null;
+        }
+
+        Map<String, Code> codes = new LinkedHashMap<>();
+        for (IBase include : includes) {
+            List<Code> included = this.expand(include);
+            if (included == null) {
+                return null;
+            }
+
+            for (Code code : included) {
+                codes.putIfAbsent(key(code), code);
+            }
+        }
+
+        List<IBase> excludes = ValueSetUtil.getExcludes(this.fhirContext, valueSet);
+        if (excludes != null) {
+            for (IBase exclude : excludes) {
+                List<Code> excluded = this.expand(exclude);
+                if (excluded == null) {
+                    return null;
+                }
+
+                for (Code code : excluded) {
+                    codes.remove(key(code));
+                }
+            }
+        }
+
+        return new ArrayList<>(codes.values());
+    }
+
+    // Expands a single include or exclude
+    private List<Code> expand(IBase conceptSet) {
+        if (!this.get(conceptSet, "valueSet").isEmpty()) {
+            logger.debug("Unable to expand a compose that references other ValueSets.");
+            return null;
+        }
+
+        String system = this.getString(conceptSet, "system");
+        String version = this.getString(conceptSet, "version");
+        if (system == null) {
+            return null;
+        }
+
+        CodeSystemHierarchy hierarchy = this.getHierarchy(system, version);
+
+        List<IBase> concepts = this.get(conceptSet, "concept");
+        if (!concepts.isEmpty()) {
+            List<Code> codes = new ArrayList<>(concepts.size());
+            for (IBase concept : concepts) {
+                String code = this.getString(concept, "code");
+                String display = this.getString(concept, "display");
+                if (display == null && hierarchy != null) {
+                    display = hierarchy.getDisplay(code);
+                }
+
+                codes.add(new Code().withSystem(system).withVersion(version).withCode(code).withDisplay(display));
+            }
+
+            return codes;
+        }
+
+        if (hierarchy == null) {
+            logger.debug("CodeSystem {} is not available for expansion.", system);
+            return null;
+        }
+
+        BitSet result = hierarchy.all();
+        for (IBase filter : this.get(conceptSet, "filter")) {
+            BitSet filtered = this.filter(hierarchy, filter);
+            if (filtered == null) {
+                return null;
+            }
+
+            result.and(filtered);
+        }
+
+        return hierarchy.toCodes(result);
+    }
+
+    private BitSet filter(CodeSystemHierarchy hierarchy, IBase filter) {
+        String property = this.getString(filter, "property");
+        String op = this.getString(filter, "op");
+        String value = this.getString(filter, "value");
+
+        if (!"concept".equals(property) || op == null || value == null) {
+            logger.debug("Unsupported filter on property {} of CodeSystem {}", property, hierarchy.getUrl());
+            return null;
+        }
+
+        switch (op) {
+            case "is-a":
+                return hierarchy.descendantsOrSelf(value);
+            case "descendent-of":
+                return hierarchy.descendants(value);
+            case "is-not-a":
+                BitSet concepts = hierarchy.all();
+                concepts.andNot(hierarchy.descendantsOrSelf(value));
+                return concepts;
+            case "generalizes":
+                return hierarchy.ancestorsOrSelf(value);
+            default:
+                logger.debug("Unsupported filter operator {} on CodeSystem {}", op, hierarchy.getUrl());
+                return null;
+        }
+    }
+
+    private synchronized CodeSystemHierarchy getHierarchy(String system, String version) {
+        String key = version != null ? system + "|" + version : system;
+        if (this.hierarchies.containsKey(key)) {
+            return this.hierarchies.get(key);
+        }
+
+        IBaseResource codeSystem = this.codeSystems.get(key);
+        CodeSystemHierarchy hierarchy = codeSystem != null ? this.createHierarchy(codeSystem) : null;
+        this.hierarchies.put(key, hierarchy);
+        return hierarchy;
+    }
+
+    private CodeSystemHierarchy createHierarchy(IBaseResource codeSystem) {
+        String url = this.getString(codeSystem, "url");
+        String content = this.getString(codeSystem, "content");
+        if ("not-present".equals(content) || "example".equals(content) || "fragment".equals(content)) {
+            logger.debug("CodeSystem {} does not have complete content.", url);
+            return null;
+        }
+
+        // Nested concepts only imply subsumption when the hierarchy is an is-a hierarchy
+        String hierarchyMeaning = this.getString(codeSystem, "hierarchyMeaning");
+        boolean nestingIsA = hierarchyMeaning == null || "is-a".equals(hierarchyMeaning);
+
+        List<String> codes = new ArrayList<>();
+        List<String> displays = new ArrayList<>();
+        Map<String, Integer> indices = new HashMap<>();
+        List<String[]> relationships = new ArrayList<>();
+        this.addConcepts(this.get(codeSystem, "concept"), null, nestingIsA, codes, displays, indices, relationships);
+
+        List<int[]> edges = new ArrayList<>(relationships.size());
+        for (String[] relationship : relationships) {
+            Integer parent = indices.get(relationship[0]);
+            Integer child = indices.get(relationship[1]);
+            if (parent != null && child != null) {
+                edges.add(new int[] { parent, child });
+            }
+        }
+
+        logger.debug("Computing the hierarchy of CodeSystem {} with {} concepts", url, codes.size());
+        return new CodeSystemHierarchy(url, this.getString(codeSystem, "version"), codes, displays, edges);
+    }
+
+    private void addConcepts(List<IBase> concepts, String parent, boolean nestingIsA, List<String> codes,
+            List<String> displays, Map<String, Integer> indices, List<String[]> relationships) {
+        for (IBase concept : concepts) {
+            String code = this.getString(concept, "code");
+            if (code == null) {
+                continue;
+            }
+
+            if (!indices.containsKey(code)) {
+                indices.put(code, codes.size());
+                codes.add(code);
+                displays.add(this.getString(concept, "display"));
+            }
+
+            if (parent != null && nestingIsA) {
+                relationships.add(new String[] { parent, code });
+            }
+
+            for (IBase property : this.get(concept, "property")) {
+                String propertyCode = this.getString(property, "code");
+                String value = this.getString(property, "value");
+                if ("parent".equals(propertyCode) && value != null) {
+                    relationships.add(new String[] { value, code });
+                } else if ("child".equals(propertyCode) && value != null) {
+                    relationships.add(new String[] { code, value });
+                }
+            }
+
+            this.addConcepts(this.get(concept, "concept"), code, nestingIsA, codes, displays, indices, relationships);
+        }
+    }
+
+    private List<IBase> get(IBase element, String path) {
+        return PathAccessorCache.cachedFor(this.fhirContext, null, path).evaluate(element, IBase.class);
+    }
+
+    private String getString(IBase element, String path) {
+        for (IBase value : this.get(element, path)) {
+            if (value instanceof IPrimitiveType) {
+                return ((IPrimitiveType<?>) value).getValueAsString();
+            }
+        }
+
+        return null;
+    }
+
+    private static String key(Code code) {
+        return code.getSystem() + "|" + code.getCode();
+    }
+}
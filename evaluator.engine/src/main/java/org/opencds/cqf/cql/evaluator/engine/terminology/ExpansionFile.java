@@ -0,0 +1,140 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * Reads and writes a ValueSet expansion in a compact binary format. The systems and versions of the Codes are
+ * written once in a table of strings, and each Code refers to them by index. The format is:
+ * <pre>
+ * int magic, int version, long createdMillis, string key
+ * int stringCount, then each string
+ * int codeCount, then for each Code: int systemIndex, int versionIndex, string code, string display
+ * </pre>
+ * Strings are an int length (-1 for null) followed by UTF-8 bytes, and an index of -1 is null.
+ */
+class ExpansionFile {
+
+    static final int MAGIC = 0x43514C56;
+    static final int VERSION = 1;
+
+    final String key;
+    final long createdMillis;
+    final List<Code> codes;
+
+    ExpansionFile(String key, long createdMillis, List<Code> codes) {
+        this.key = key;
+        this.createdMillis = createdMillis;
+        this.codes = codes;
+    }
+
+    void write(Path path) throws IOException {
+        Map<String, Integer> indexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Code code : this.codes) {
+            index(code.getSystem(), indexes, strings);
+            index(code.getVersion(), indexes, strings);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.createdMillis);
+            writeString(out, this.key);
+
+            out.writeInt(strings.size());
+            for (String string : strings) {
+                writeString(out, string);
+            }
+
+            out.writeInt(this.codes.size());
+            for (Code code : this.codes) {
+                out.writeInt(code.getSystem() != null ? indexes.get(code.getSystem()) : -1);
+                out.writeInt(code.getVersion() != null ? indexes.get(code.getVersion()) : -1);
+                writeString(out, code.getCode());
+                writeString(out, code.getDisplay());
+            }
+        }
+    }
+
+    /**
+     * Reads an expansion.
+     * @param path the file to read
+     * @return the expansion
+     * @throws IOException if the file can not be read, or is not an expansion
+     */
+    static ExpansionFile read(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(String.format("%s is not a ValueSet expansion.", path));
+            }
+
+            long createdMillis = buffer.getLong();
+            String key = readString(buffer);
+
+            int stringCount = buffer.getInt();
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = readString(buffer);
+            }
+
+            int codeCount = buffer.getInt();
+            List<Code> codes = new ArrayList<>(codeCount);
+            for (int i = 0; i < codeCount; i++) {
+                int systemIndex = buffer.getInt();
+                int versionIndex = buffer.getInt();
+                codes.add(new Code().withSystem(systemIndex >= 0 ? CodeDictionary.internSystem(strings[systemIndex]) : null)
+                        .withVersion(versionIndex >= 0 ? strings[versionIndex] : null)
+                        .withCode(readString(buffer))
+                        .withDisplay(readString(buffer)));
+            }
+
+            return new ExpansionFile(key, createdMillis, codes);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(String.format("%s is not a valid ValueSet expansion.", path), e);
+        }
+    }
+
+    private static void index(String string, Map<String, Integer> indexes, List<String> strings) {
+        if (string != null && !indexes.containsKey(string)) {
+            indexes.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
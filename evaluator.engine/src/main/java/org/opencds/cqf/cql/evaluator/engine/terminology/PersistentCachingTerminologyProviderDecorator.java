@@ -0,0 +1,143 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.engine.util.FileCacheUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class persists the expansions of a TerminologyProvider to a local directory, so that ValueSets expanded by a
+ * previous process are served from disk rather than expanded again (e.g. by a terminology server). Each expansion is
+ * stored in its own file, named by a hash of the terminology endpoint, ValueSet url, and ValueSet version, in the
+ * compact binary format of ExpansionFile. Expansions older than the expiry are expanded again and rewritten.
+ *
+ * Expansions are not held in memory, so each call reads the file of the ValueSet. Wrap this decorator in a
+ * PrivateCachingTerminologyProviderDecorator or SharedCachingTerminologyProviderDecorator to hold the decoded
+ * expansions in memory. Files are written to a temporary file and moved into place, so the directory may be shared by
+ * concurrent processes. A file that can not be read is treated as missing.
+ */
+public class PersistentCachingTerminologyProviderDecorator implements TerminologyProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentCachingTerminologyProviderDecorator.class);
+
+    static final String EXTENSION = ".expansion";
+
+    private final TerminologyProvider innerProvider;
+    private final Path directory;
+    private final String endpoint;
+    private final Duration expiry;
+    private final Clock clock;
+
+    /**
+     * @param terminologyProvider the TerminologyProvider to cache
+     * @param directory the directory in which expansions are stored
+     * @param endpoint the terminology endpoint of the TerminologyProvider (e.g. the url of a terminology server)
+     * @param expiry how long a stored expansion is used, or null to use it until it is deleted
+     */
+    public PersistentCachingTerminologyProviderDecorator(TerminologyProvider terminologyProvider, Path directory,
+            String endpoint, Duration expiry) {
+        this(terminologyProvider, directory, endpoint, expiry, Clock.systemUTC());
+    }
+
+    PersistentCachingTerminologyProviderDecorator(TerminologyProvider terminologyProvider, Path directory,
+            String endpoint, Duration expiry, Clock clock) {
+        this.innerProvider = requireNonNull(terminologyProvider, "terminologyProvider can not be null.");
+        this.directory = requireNonNull(directory, "directory can not be null.");
+        this.endpoint = requireNonNull(endpoint, "endpoint can not be null.");
+        this.expiry = expiry;
+        this.clock = requireNonNull(clock, "clock can not be null.");
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Unable to create expansion directory %s", directory), e);
+        }
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        requireNonNull(code, "code can not be null.");
+
+        List<Code> codes = this.get(valueSet);
+        return codes != null && CodeSet.of(codes).contains(code);
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return this.get(valueSet);
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return this.innerProvider.lookup(code, codeSystem);
+    }
+
+    private List<Code> get(ValueSetInfo valueSet) {
+        requireNonNull(valueSet, "valueSet can not be null.");
+
+        String key = this.getKey(valueSet);
+        Path path = this.directory.resolve(FileCacheUtil.hash(key) + EXTENSION);
+        List<Code> codes = this.read(path, key);
+        if (codes != null) {
+            return codes;
+        }
+
+        Iterable<Code> expansion = this.innerProvider.expand(valueSet);
+        if (expansion == null) {
+            return null;
+        }
+
+        List<Code> list = new ArrayList<>();
+        expansion.forEach(list::add);
+        codes = Collections.unmodifiableList(list);
+        ExpansionFile file = new ExpansionFile(key, this.clock.millis(), codes);
+        try {
+            FileCacheUtil.writeAtomically(path, file::write);
+        } catch (IOException e) {
+            // The expansion is still returned
+            logger.warn("Unable to write ValueSet expansion {}: {}", path, e.getMessage());
+        }
+
+        return codes;
+    }
+
+    private List<Code> read(Path path, String key) {
+        try {
+            ExpansionFile file = ExpansionFile.read(path);
+            if (!key.equals(file.key) || this.isExpired(file.createdMillis)) {
+                return null;
+            }
+
+            return Collections.unmodifiableList(file.codes);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Unable to read ValueSet expansion {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isExpired(long createdMillis) {
+        return this.expiry != null && this.clock.millis() - createdMillis >= this.expiry.toMillis();
+    }
+
+    private String getKey(ValueSetInfo valueSet) {
+        return this.endpoint + "|" + valueSet.getId() + "|" + (valueSet.getVersion() != null ? valueSet.getVersion() : "");
+    }
+}
@@ -2,7 +2,12 @@ package org.opencds.cqf.cql.evaluator.engine.terminology;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
@@ -11,27 +16,52 @@ import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * This class uses a list of TerminologyProviders in priority order. A Code is in a ValueSet if any of the
+ * TerminologyProviders says it is. Expansions and lookups are answered by the first TerminologyProvider that returns
+ * a result, which owns the ValueSet (or CodeSystem), and the owner is remembered in a routing table so that
+ * subsequent calls go straight to it. ValueSets and CodeSystems that no TerminologyProvider has a result for are also
+ * remembered.
+ *
+ * A TerminologyProvider that throws a ValueSetNotFoundException for a ValueSet is remembered as not having it, and is
+ * not asked about the ValueSet again. Other exceptions may be transient (e.g. a terminology server that is
+ * unavailable), so owners found after a TerminologyProvider throws one are not remembered.
+ */
 public class PriorityTerminologyProvider implements TerminologyProvider {
 
-    Logger logger = LoggerFactory.getLogger(PriorityTerminologyProvider.class);
+    private static final Logger logger = LoggerFactory.getLogger(PriorityTerminologyProvider.class);
+
+    private static final int NO_PROVIDER = -1;
 
     List<TerminologyProvider> terminologyProviders;
 
+    private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+    // The TerminologyProviders that do not have each ValueSet
+    private final Map<String, Set<Integer>> missing = new ConcurrentHashMap<>();
+
     public PriorityTerminologyProvider(List<TerminologyProvider> terminologyProviders) {
         this.terminologyProviders = requireNonNull(terminologyProviders, "terminologyProviders can not be null");
     }
 
     @Override
     public boolean in(Code code, ValueSetInfo valueSet) {
-        for (TerminologyProvider terminologyProvider : terminologyProviders) {
+        requireNonNull(valueSet, "valueSet can not be null");
+
+        String key = key("ValueSet", valueSet.getId(), valueSet.getVersion());
+        Set<Integer> missing = this.missing.getOrDefault(key, Collections.emptySet());
+        for (int i = 0; i < this.terminologyProviders.size(); i++) {
+            if (missing.contains(i)) {
+                continue;
+            }
+
             try {
-                boolean in = terminologyProvider.in(code, valueSet);
-                if (in) {
+                if (this.terminologyProviders.get(i).in(code, valueSet)) {
                     return true;
                 }
-            }
-            catch (Exception e) {
-                logger.warn("inner provider threw an Exception, continuing: %s", e.getMessage());
+            } catch (ValueSetNotFoundException e) {
+                this.setMissing(key, i);
+            } catch (Exception e) {
+                logger.debug("inner provider is unable to check membership, continuing: {}", e.getMessage());
             }
         }
 
@@ -40,11 +70,75 @@ public class PriorityTerminologyProvider implements TerminologyProvider {
 
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) {
-        return this.terminologyProviders.stream().map(x -> x.expand(valueSet)).findFirst().orElseGet(null);
+        requireNonNull(valueSet, "valueSet can not be null");
+
+        return this.route(key("ValueSet", valueSet.getId(), valueSet.getVersion()), x -> x.expand(valueSet));
     }
 
     @Override
     public Code lookup(Code code, CodeSystemInfo codeSystem) {
-        return this.terminologyProviders.stream().map(x -> x.lookup(code, codeSystem)).findFirst().orElseGet(null);
+        requireNonNull(codeSystem, "codeSystem can not be null");
+
+        return this.route(key("CodeSystem", codeSystem.getId(), codeSystem.getVersion()),
+                x -> x.lookup(code, codeSystem));
+    }
+
+    /**
+     * Calls the TerminologyProvider that owns a ValueSet or CodeSystem, finding the owner if it is not known.
+     * @param key the routing key of the ValueSet or CodeSystem
+     * @param call the call to make
+     * @return the result of the owner, or null if there is no owner
+     */
+    private <T> T route(String key, Function<TerminologyProvider, T> call) {
+        Integer route = this.routes.get(key);
+        if (route != null) {
+            return route == NO_PROVIDER ? null : call.apply(this.terminologyProviders.get(route));
+        }
+
+        boolean failed = false;
+        Set<Integer> missing = this.missing.getOrDefault(key, Collections.emptySet());
+        for (int i = 0; i < this.terminologyProviders.size(); i++) {
+            if (missing.contains(i)) {
+                continue;
+            }
+
+            T result;
+            try {
+                result = call.apply(this.terminologyProviders.get(i));
+            } catch (ValueSetNotFoundException e) {
+                this.setMissing(key, i);
+                continue;
+            } catch (Exception e) {
+                logger.debug("inner provider {} is unable to answer for {}, continuing: {}", i, key, e.getMessage());
+                failed = true;
+                continue;
+            }
+
+            if (result == null) {
+                continue;
+            }
+
+            if (!failed) {
+                this.routes.put(key, i);
+            }
+
+            return result;
+        }
+
+        logger.debug("no inner provider is able to answer for {}", key);
+        if (!failed) {
+            this.routes.put(key, NO_PROVIDER);
+        }
+
+        return null;
+    }
+
+    private void setMissing(String key, int provider) {
+        logger.debug("inner provider {} does not have {}", provider, key);
+        this.missing.computeIfAbsent(key, x -> ConcurrentHashMap.newKeySet()).add(provider);
+    }
+
+    private static String key(String type, String id, String version) {
+        return type + "|" + id + "|" + (version != null ? version : "");
     }
 }
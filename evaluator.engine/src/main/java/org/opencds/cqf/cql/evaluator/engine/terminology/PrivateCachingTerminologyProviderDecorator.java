@@ -1,16 +1,23 @@
 package org.opencds.cqf.cql.evaluator.engine.terminology;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 
+/**
+ * This class caches the expansions of the inner TerminologyProvider for the lifetime of the decorator (e.g. a single
+ * evaluation). It is thread-safe, so it may be shared by RetrieveProviders that retrieve concurrently.
+ */
 public class PrivateCachingTerminologyProviderDecorator implements TerminologyProvider {
 
-    private Map<String, Iterable<Code>> valueSetIndexById = new HashMap<>();
+    // Values are Optional since an expansion may be null
+    private ConcurrentMap<String, Optional<Iterable<Code>>> valueSetIndexById = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Optional<CodeSet>> codeSetIndexById = new ConcurrentHashMap<>();
 
     private TerminologyProvider innerProvider;
 
@@ -20,34 +27,25 @@ public class PrivateCachingTerminologyProviderDecorator implements TerminologyPr
 
     @Override
     public boolean in(Code code, ValueSetInfo valueSet) {
-        if (!valueSetIndexById.containsKey(valueSet.getId())) {
-            // This will cache the ValueSet;
-            this.expand(valueSet);
-        }
-
-        Iterable<Code> codes = valueSetIndexById.get(valueSet.getId());
+        // This will cache the ValueSet
+        Optional<CodeSet> codes = codeSetIndexById.computeIfAbsent(valueSet.getId(), id -> {
+            Iterable<Code> expansion = this.expand(valueSet);
+            return Optional.ofNullable(expansion != null ? CodeSet.of(expansion) : null);
+        });
 
-        if (codes == null) {
+        if (!codes.isPresent()) {
             return false;
         }
 
         // TODO: Handle Versions
-        for (Code c : codes) {
-            if (c.getCode().equals(code.getCode()) && c.getSystem().equals(code.getSystem())) {
-                return true;
-            }
-        }
-
-        return false;
+        return codes.get().contains(code);
     }
 
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) {
-        if (!valueSetIndexById.containsKey(valueSet.getId())) {
-            valueSetIndexById.put(valueSet.getId(), this.innerProvider.expand(valueSet));
-        }
-
-        return valueSetIndexById.get(valueSet.getId());
+        return valueSetIndexById
+                .computeIfAbsent(valueSet.getId(), id -> Optional.ofNullable(this.innerProvider.expand(valueSet)))
+                .orElse(null);
     }
 
     @Override
@@ -56,4 +54,3 @@ public class PrivateCachingTerminologyProviderDecorator implements TerminologyPr
     }
 
 }
-
@@ -0,0 +1,47 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * This class caches the expansions of a TerminologyProvider in a TerminologyCache that may be shared with other
+ * TerminologyProviders for the same terminology endpoint, so that ValueSets are not expanded again for every
+ * evaluation.
+ */
+public class SharedCachingTerminologyProviderDecorator implements TerminologyProvider {
+
+    private final TerminologyProvider innerProvider;
+    private final TerminologyCache terminologyCache;
+    private final String endpoint;
+
+    /**
+     * @param terminologyProvider the TerminologyProvider to cache
+     * @param terminologyCache the cache
+     * @param endpoint the terminology endpoint of the TerminologyProvider (e.g. the url of a terminology server)
+     */
+    public SharedCachingTerminologyProviderDecorator(TerminologyProvider terminologyProvider,
+            TerminologyCache terminologyCache, String endpoint) {
+        this.innerProvider = requireNonNull(terminologyProvider, "terminologyProvider can not be null.");
+        this.terminologyCache = requireNonNull(terminologyCache, "terminologyCache can not be null.");
+        this.endpoint = requireNonNull(endpoint, "endpoint can not be null.");
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        return this.terminologyCache.in(this.endpoint, code, valueSet, this.innerProvider);
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return this.terminologyCache.expand(this.endpoint, valueSet, this.innerProvider);
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return this.innerProvider.lookup(code, codeSystem);
+    }
+}
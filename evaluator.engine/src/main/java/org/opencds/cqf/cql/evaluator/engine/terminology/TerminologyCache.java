@@ -0,0 +1,195 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * A thread-safe cache of ValueSet expansions that may be shared by every evaluation in a process. Expansions are
+ * keyed by the terminology endpoint, ValueSet url, and ValueSet version, so evaluations that use different
+ * terminology sources do not share expansions. Evaluations that use the same endpoint do share expansions, so the
+ * endpoint should distinguish the credentials used to access a terminology server as well as its url.
+ *
+ * The cache is bounded by the total number of codes in the cached expansions, and expansions may expire a fixed
+ * time after they are loaded. Concurrent requests for an expansion that is not cached are coalesced so the ValueSet
+ * is expanded only once, with the TerminologyProvider of the request that loads it. The cache holds a future for each
+ * expansion, and a ValueSet is expanded on the thread that first requests it without holding any lock of the cache,
+ * so slow expansions (e.g. by a remote terminology server) do not block requests for other ValueSets. The cache does
+ * not hold on to TerminologyProviders (e.g. the clients and credentials of a request) after an expansion is loaded.
+ */
+public class TerminologyCache {
+
+    public static final long DEFAULT_MAXIMUM_CODES = 1_000_000;
+    public static final Duration DEFAULT_EXPIRE_AFTER_WRITE = Duration.ofHours(24);
+
+    private final AsyncCache<Key, Expansion> cache;
+
+    /**
+     * Creates a cache with the default bounds.
+     */
+    public TerminologyCache() {
+        this(DEFAULT_MAXIMUM_CODES, DEFAULT_EXPIRE_AFTER_WRITE);
+    }
+
+    /**
+     * Creates a cache.
+     * @param maximumCodes the maximum total number of codes in the cached expansions
+     * @param expireAfterWrite how long an expansion is cached, or null to cache it until it is evicted by size
+     */
+    public TerminologyCache(long maximumCodes, Duration expireAfterWrite) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumWeight(maximumCodes).recordStats();
+        if (expireAfterWrite != null) {
+            builder.expireAfterWrite(expireAfterWrite.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        this.cache = builder.<Key, Expansion>weigher((k, v) -> Math.max(1, v.codes.size()))
+                .buildAsync();
+    }
+
+    /**
+     * Expands a ValueSet, using the cached expansion if there is one.
+     * @param endpoint the terminology endpoint of the TerminologyProvider (e.g. the url of a terminology server)
+     * @param valueSet the ValueSet to expand
+     * @param terminologyProvider the TerminologyProvider used to expand the ValueSet if it is not cached
+     * @return the Codes in the ValueSet, or null if the TerminologyProvider returned null
+     */
+    public Iterable<Code> expand(String endpoint, ValueSetInfo valueSet, TerminologyProvider terminologyProvider) {
+        Expansion expansion = this.get(endpoint, valueSet, terminologyProvider);
+        return expansion != null ? expansion.codes : null;
+    }
+
+    /**
+     * Checks for membership of a Code in a ValueSet, using the cached expansion if there is one.
+     * @param endpoint the terminology endpoint of the TerminologyProvider
+     * @param code the Code to check
+     * @param valueSet the ValueSet to check membership of
+     * @param terminologyProvider the TerminologyProvider used to expand the ValueSet if it is not cached
+     * @return true if the Code is in the ValueSet
+     */
+    public boolean in(String endpoint, Code code, ValueSetInfo valueSet, TerminologyProvider terminologyProvider) {
+        requireNonNull(code, "code can not be null.");
+
+        Expansion expansion = this.get(endpoint, valueSet, terminologyProvider);
+        return expansion != null && expansion.getCodeSet().contains(code);
+    }
+
+    public void invalidateAll() {
+        this.cache.synchronous().invalidateAll();
+    }
+
+    public long estimatedSize() {
+        return this.cache.synchronous().estimatedSize();
+    }
+
+    public CacheStats stats() {
+        return this.cache.synchronous().stats();
+    }
+
+    private Expansion get(String endpoint, ValueSetInfo valueSet, TerminologyProvider terminologyProvider) {
+        requireNonNull(valueSet, "valueSet can not be null.");
+        requireNonNull(terminologyProvider, "terminologyProvider can not be null.");
+
+        Key key = new Key(endpoint, valueSet);
+        CompletableFuture<Expansion> expansion = this.cache.getIfPresent(key);
+        if (expansion == null) {
+            CompletableFuture<Expansion> load = new CompletableFuture<>();
+            expansion = this.cache.asMap().putIfAbsent(key, load);
+            if (expansion == null) {
+                // An expansion that is null or fails to load is removed from the cache when its future completes
+                try {
+                    Expansion loaded = Expansion.of(terminologyProvider.expand(valueSet));
+                    load.complete(loaded);
+                    return loaded;
+                } catch (Throwable e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            return expansion.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    private static class Key {
+        final String endpoint;
+        final String url;
+        final String version;
+
+        Key(String endpoint, ValueSetInfo valueSet) {
+            this.endpoint = endpoint;
+            this.url = valueSet.getId();
+            this.version = valueSet.getVersion();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return Objects.equals(this.endpoint, other.endpoint) && Objects.equals(this.url, other.url)
+                    && Objects.equals(this.version, other.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.endpoint, this.url, this.version);
+        }
+    }
+
+    private static class Expansion {
+        final List<Code> codes;
+        private volatile CodeSet codeSet;
+
+        private Expansion(List<Code> codes) {
+            this.codes = codes;
+        }
+
+        static Expansion of(Iterable<Code> codes) {
+            if (codes == null) {
+                return null;
+            }
+
+            List<Code> list = new ArrayList<>();
+            codes.forEach(list::add);
+            return new Expansion(Collections.unmodifiableList(list));
+        }
+
+        CodeSet getCodeSet() {
+            // Racing threads may each build the set, which is harmless
+            if (this.codeSet == null) {
+                this.codeSet = CodeSet.of(this.codes);
+            }
+
+            return this.codeSet;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+/**
+ * Thrown by a TerminologyProvider that does not have a ValueSet. Unlike other exceptions (e.g. a terminology server
+ * that is unavailable), the TerminologyProvider will never have the ValueSet, so callers may remember that it does
+ * not.
+ */
+public class ValueSetNotFoundException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ValueSetNotFoundException(String valueSetId) {
+        super(String.format("Unable to locate ValueSet %s", valueSetId));
+    }
+}
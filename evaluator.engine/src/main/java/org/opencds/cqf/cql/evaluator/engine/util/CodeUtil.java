@@ -9,6 +9,7 @@ import org.hl7.fhir.instance.model.api.IBaseEnumFactory;
 import org.hl7.fhir.instance.model.api.IBaseEnumeration;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.evaluator.engine.terminology.CodeDictionary;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition.IAccessor;
@@ -104,7 +105,7 @@ public class CodeUtil {
         if (system != null && !system.isEmpty() && codeAsString != null && !codeAsString.isEmpty()) {
             Code code = new Code();
             code.setCode(codeAsString);
-            code.setSystem(system);
+            code.setSystem(CodeDictionary.internSystem(system));
             codes.add(code);
         }
 
@@ -125,7 +126,8 @@ public class CodeUtil {
         for (IBase coding : codingObjects) {
             String code = getStringValueFromPrimitiveDefinition(this.codeDefinition, coding);
             String display = getStringValueFromPrimitiveDefinition(this.displayDefinition, coding);
-            String system = getStringValueFromPrimitiveDefinition(this.systemDefinition, coding);
+            // Share a single copy of each system across all the codes
+            String system = CodeDictionary.internSystem(getStringValueFromPrimitiveDefinition(this.systemDefinition, coding));
             String version = getStringValueFromPrimitiveDefinition(this.versionDefinition, coding);
             codes.add(new Code().withSystem(system).withCode(code).withDisplay(display).withVersion(version));
         }
@@ -0,0 +1,75 @@
+package org.opencds.cqf.cql.evaluator.engine.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for caches that store their entries as files in a local directory that may be shared by concurrent
+ * processes.
+ */
+public class FileCacheUtil {
+
+    private FileCacheUtil() {
+    }
+
+    /**
+     * Writes the content of a file.
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+        void write(Path path) throws IOException;
+    }
+
+    /**
+     * @param value the value to hash
+     * @return the SHA-256 hash of the value, as lower case hex
+     */
+    public static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a file to a temporary file in the same directory and moves it into place, so concurrent readers never
+     * see a partially written file. Processes that write the same file at the same time each move a complete file,
+     * and the last move wins. The temporary file is deleted if the write fails.
+     * @param path the file to write
+     * @param writer writes the content to the temporary file
+     * @throws IOException if the file can not be written
+     */
+    public static void writeAtomically(Path path, ContentWriter writer) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "cache", ".tmp");
+        try {
+            writer.write(temp);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Best effort
+            }
+
+            throw e;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import static java.util.Objects.requireNonNull;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.elm.execution.Library;
 
 /**
@@ -75,4 +76,19 @@ public class TranslatorOptionsUtil {
 
         return optionSet;
     }
+
+    /**
+     * Creates a string that identifies the translator options that affect the ELM generated by translation, for use
+     * in cache keys.
+     * @param translatorOptions the translator options
+     * @return the key of the options
+     */
+    public static String getOptionsKey(CqlTranslatorOptions translatorOptions) {
+        requireNonNull(translatorOptions, "translatorOptions can not be null");
+
+        return String.join("|", translatorOptions.getOptions().toString(),
+                String.valueOf(translatorOptions.getCompatibilityLevel()),
+                String.valueOf(translatorOptions.getSignatureLevel()),
+                String.valueOf(translatorOptions.getValidateUnits()));
+    }
 }
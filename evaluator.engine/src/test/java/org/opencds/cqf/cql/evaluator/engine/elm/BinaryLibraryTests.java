@@ -0,0 +1,59 @@
+package org.opencds.cqf.cql.evaluator.engine.elm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.engine.elm.execution.LiteralEvaluator;
+import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
+import org.opencds.cqf.cql.evaluator.engine.util.TranslatorOptionsUtil;
+import org.testng.annotations.Test;
+
+public class BinaryLibraryTests {
+
+    private Library getLibrary(String libraryName) throws IOException {
+        InputStream libraryStream = TranslatorOptionsUtil.class.getResourceAsStream(libraryName + ".json");
+        return JsonCqlLibraryReader.read(new InputStreamReader(libraryStream, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_roundTrip() throws IOException {
+        Library library = this.getLibrary("LibraryDefaultOptions");
+
+        Library actual = BinaryLibraryReader.read(BinaryLibraryWriter.write(library));
+
+        assertEquals(actual.getIdentifier(), library.getIdentifier());
+        assertEquals(actual.getUsings(), library.getUsings());
+        assertEquals(actual.getStatements(), library.getStatements());
+        assertTrue(actual.getStatements().getDef().get(0).getExpression() instanceof LiteralEvaluator);
+    }
+
+    @Test
+    public void test_translatorOptionsArePreserved() throws IOException {
+        Library library = this.getLibrary("LibraryDefaultOptions");
+
+        Library actual = BinaryLibraryReader.read(BinaryLibraryWriter.write(library));
+
+        assertEquals(TranslatorOptionsUtil.getTranslatorOptions(actual),
+                CqlTranslatorOptions.defaultOptions().getOptions());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void test_nonBinaryContentIsRejected() throws IOException {
+        BinaryLibraryReader.read("{ \"library\": {} }".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void test_truncatedContentIsRejected() throws IOException {
+        byte[] content = BinaryLibraryWriter.write(this.getLibrary("LibraryDefaultOptions"));
+
+        BinaryLibraryReader.read(Arrays.copyOf(content, content.length / 2));
+    }
+}
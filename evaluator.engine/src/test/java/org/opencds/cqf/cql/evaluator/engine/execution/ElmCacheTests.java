@@ -0,0 +1,51 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.testng.annotations.Test;
+
+public class ElmCacheTests {
+
+    private static final String CQL = "library Test version '1.0.0'\n\ndefine X: 1";
+
+    @Test
+    public void test_putAndGet() throws IOException {
+        Path directory = Files.createTempDirectory("elm");
+        ElmCache cache = new ElmCache(directory);
+
+        String key = ElmCache.key(CQL, CqlTranslatorOptions.defaultOptions());
+        assertNull(cache.get(key));
+
+        cache.put(key, "{\"library\":{}}");
+        assertEquals(cache.get(key), "{\"library\":{}}");
+
+        // A new cache on the same directory sees the ELM
+        assertEquals(new ElmCache(directory).get(key), "{\"library\":{}}");
+
+        // Only the ELM file remains
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(files.count(), 1);
+        }
+    }
+
+    @Test
+    public void test_keyedByCqlAndOptions() {
+        String key = ElmCache.key(CQL, CqlTranslatorOptions.defaultOptions());
+
+        assertEquals(ElmCache.key(CQL, CqlTranslatorOptions.defaultOptions()), key);
+        assertNotEquals(ElmCache.key(CQL + " + 1", CqlTranslatorOptions.defaultOptions()), key);
+        assertNotEquals(ElmCache.key(CQL,
+                CqlTranslatorOptions.defaultOptions().withOptions(CqlTranslator.Options.RequireFromKeyword)), key);
+        assertTrue(key.matches("[0-9a-f]{64}"));
+    }
+}
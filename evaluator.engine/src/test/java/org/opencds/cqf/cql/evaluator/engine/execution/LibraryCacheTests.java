@@ -0,0 +1,161 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.testng.annotations.Test;
+
+public class LibraryCacheTests {
+
+    private static class CountingLibraryLoader implements TranslatorOptionAwareLibraryLoader {
+        AtomicInteger loadCount = new AtomicInteger();
+        final CqlTranslatorOptions translatorOptions;
+
+        CountingLibraryLoader(CqlTranslatorOptions translatorOptions) {
+            this.translatorOptions = translatorOptions;
+        }
+
+        @Override
+        public Library load(VersionedIdentifier libraryIdentifier) {
+            this.loadCount.incrementAndGet();
+            if (libraryIdentifier.getId().equals("Missing")) {
+                return null;
+            }
+
+            try {
+                // Simulates translation, so that concurrent loads overlap
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return new Library().withIdentifier(libraryIdentifier);
+        }
+
+        @Override
+        public CqlTranslatorOptions getCqlTranslatorOptions() {
+            return this.translatorOptions;
+        }
+    }
+
+    @Test
+    public void test_libraryIsSharedAcrossLoaders() {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader first = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+        CountingLibraryLoader second = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+
+        VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("Test").withVersion("1.0.0");
+        Library library = new SharedCachingLibraryLoaderDecorator(first, cache, "http://content").load(libraryIdentifier);
+        assertSame(new SharedCachingLibraryLoaderDecorator(second, cache, "http://content").load(libraryIdentifier),
+                library);
+
+        assertEquals(first.loadCount.get(), 1);
+        assertEquals(second.loadCount.get(), 0);
+    }
+
+    @Test
+    public void test_keyedByContentSourceAndOptions() {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader loader = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+        CqlTranslatorOptions otherOptions = CqlTranslatorOptions.defaultOptions()
+                .withOptions(CqlTranslator.Options.RequireFromKeyword);
+
+        cache.load("http://content", new VersionedIdentifier().withId("Test"), loader.getCqlTranslatorOptions(), loader);
+        cache.load("http://other-content", new VersionedIdentifier().withId("Test"), loader.getCqlTranslatorOptions(), loader);
+        cache.load("http://content", new VersionedIdentifier().withId("Test"), otherOptions, loader);
+        cache.load("http://content", new VersionedIdentifier().withId("Test").withVersion("2.0.0"), loader.getCqlTranslatorOptions(), loader);
+        cache.load("http://content", new VersionedIdentifier().withId("Test"), loader.getCqlTranslatorOptions(), loader);
+
+        assertEquals(loader.loadCount.get(), 4);
+    }
+
+    @Test
+    public void test_missingLibraryIsNotCached() {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader loader = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+
+        assertNull(cache.load("http://content", new VersionedIdentifier().withId("Missing"), loader.getCqlTranslatorOptions(), loader));
+        assertNull(cache.load("http://content", new VersionedIdentifier().withId("Missing"), loader.getCqlTranslatorOptions(), loader));
+
+        assertEquals(loader.loadCount.get(), 2);
+    }
+
+    @Test
+    public void test_loadsMayLoadOtherLibraries() {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader loader = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+
+        // Loads an included Library through the cache while the including Library is loading
+        LibraryLoader includingLoader = libraryIdentifier -> {
+            cache.load("http://content", new VersionedIdentifier().withId("Included"),
+                    loader.getCqlTranslatorOptions(), loader);
+            return loader.load(libraryIdentifier);
+        };
+
+        for (int i = 0; i < 20; i++) {
+            cache.load("http://content", new VersionedIdentifier().withId("Test" + i), loader.getCqlTranslatorOptions(),
+                    includingLoader);
+        }
+
+        assertEquals(cache.estimatedSize(), 21);
+        assertEquals(loader.loadCount.get(), 21);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_failedLoadIsNotCached() {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader loader = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+        VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("Test");
+
+        try {
+            cache.load("http://content", libraryIdentifier, loader.getCqlTranslatorOptions(), x -> {
+                throw new IllegalStateException("translation failed");
+            });
+        }
+        finally {
+            assertSame(cache.load("http://content", libraryIdentifier, loader.getCqlTranslatorOptions(), loader)
+                    .getIdentifier(), libraryIdentifier);
+        }
+    }
+
+    @Test
+    public void test_concurrentLoadsAreCoalesced() throws Exception {
+        LibraryCache cache = new LibraryCache();
+        CountingLibraryLoader loader = new CountingLibraryLoader(CqlTranslatorOptions.defaultOptions());
+        TranslatorOptionAwareLibraryLoader cachedLoader = new SharedCachingLibraryLoaderDecorator(loader, cache,
+                "http://content");
+
+        List<Callable<Library>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            tasks.add(() -> cachedLoader.load(new VersionedIdentifier().withId("Test").withVersion("1.0.0")));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Library>> results = executor.invokeAll(tasks);
+            for (Future<Library> result : results) {
+                assertSame(result.get(), results.get(0).get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertEquals(loader.loadCount.get(), 1);
+    }
+}
@@ -0,0 +1,181 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.exception.CqlException;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.InMemoryLibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class LibraryTranslationServiceTests {
+
+    private static final List<String> LIBRARIES = Lists.newArrayList(
+            "library First version '1'\n\ndefine X: 1\n",
+            "library Second version '1'\n\ndefine Y: 2\n",
+            "library Common version '1'\n\ndefine Z: 1\n",
+            "library Common version '2'\n\ndefine Z: 2\n",
+            "library UsesCommon1 version '1'\n\ninclude Common version '1'\n\ndefine A: Common.Z\n",
+            "library UsesCommon2 version '1'\n\ninclude Common version '2'\n\ndefine B: Common.Z\n");
+
+    private static final CqlTranslatorOptions OPTIONS = CqlTranslatorOptions.defaultOptions();
+
+    private ExecutorService executorService;
+
+    // Waits for a latch before providing CQL, so that tests control when translations complete
+    private static class LatchedLibraryContentProvider extends InMemoryLibraryContentProvider {
+        final CountDownLatch latch;
+        final AtomicInteger sourceCount = new AtomicInteger();
+
+        LatchedLibraryContentProvider(CountDownLatch latch) {
+            super(LIBRARIES);
+            this.latch = latch;
+        }
+
+        @Override
+        public InputStream getLibrarySource(VersionedIdentifier libraryIdentifier) {
+            this.sourceCount.incrementAndGet();
+            this.latch.countDown();
+            try {
+                if (!this.latch.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for the latch");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return super.getLibrarySource(libraryIdentifier);
+        }
+    }
+
+    @BeforeClass
+    public void setup() {
+        this.executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void shutdown() {
+        this.executorService.shutdown();
+    }
+
+    @Test
+    public void test_translate() {
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 1, null);
+
+        TranslatedLibrary library = translationService.translateAndWait("test", providers(), OPTIONS,
+                new VersionedIdentifier().withId("First").withVersion("1"));
+
+        assertEquals(library.getIdentifier().getId(), "First");
+    }
+
+    @Test
+    public void test_concurrentRequestsShareTranslation() {
+        CountDownLatch latch = new CountDownLatch(2);
+        LatchedLibraryContentProvider provider = new LatchedLibraryContentProvider(latch);
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 4,
+                this.executorService);
+
+        CompletableFuture<TranslatedLibrary> first = translationService.translate("test",
+                Collections.singletonList(provider), OPTIONS, new VersionedIdentifier().withId("First").withVersion("1"));
+        CompletableFuture<TranslatedLibrary> second = translationService.translate("test",
+                Collections.singletonList(provider), OPTIONS, new VersionedIdentifier().withId("First").withVersion("1"));
+
+        assertSame(second, first);
+
+        latch.countDown();
+        assertEquals(first.join().getIdentifier().getId(), "First");
+        assertEquals(provider.sourceCount.get(), 1);
+    }
+
+    @Test
+    public void test_differentLibrariesTranslateInParallel() {
+        // Each translation waits until both have started, so this only completes if they run in parallel
+        CountDownLatch latch = new CountDownLatch(2);
+        List<LibraryContentProvider> providers = Collections.singletonList(new LatchedLibraryContentProvider(latch));
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 2,
+                this.executorService);
+
+        CompletableFuture<TranslatedLibrary> first = translationService.translate("test", providers, OPTIONS,
+                new VersionedIdentifier().withId("First").withVersion("1"));
+        CompletableFuture<TranslatedLibrary> second = translationService.translate("test", providers, OPTIONS,
+                new VersionedIdentifier().withId("Second").withVersion("1"));
+
+        assertEquals(first.join().getIdentifier().getId(), "First");
+        assertEquals(second.join().getIdentifier().getId(), "Second");
+    }
+
+    @Test
+    public void test_translatedLibrariesAreReusedByContentSource() {
+        LatchedLibraryContentProvider provider = new LatchedLibraryContentProvider(new CountDownLatch(0));
+        List<LibraryContentProvider> providers = Collections.singletonList(provider);
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 1, null);
+        VersionedIdentifier identifier = new VersionedIdentifier().withId("First").withVersion("1");
+
+        translationService.translateAndWait("test", providers, OPTIONS, identifier);
+        translationService.translateAndWait("test", providers, OPTIONS, identifier);
+        assertEquals(provider.sourceCount.get(), 1);
+
+        translationService.translateAndWait("other", providers, OPTIONS, identifier);
+        assertEquals(provider.sourceCount.get(), 2);
+    }
+
+    @Test
+    public void test_expiredTranslatorsAreReplaced() {
+        LatchedLibraryContentProvider provider = new LatchedLibraryContentProvider(new CountDownLatch(0));
+        List<LibraryContentProvider> providers = Collections.singletonList(provider);
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 1,
+                Duration.ZERO, null);
+        VersionedIdentifier identifier = new VersionedIdentifier().withId("First").withVersion("1");
+
+        translationService.translateAndWait("test", providers, OPTIONS, identifier);
+        translationService.translateAndWait("test", providers, OPTIONS, identifier);
+
+        assertEquals(provider.sourceCount.get(), 2);
+    }
+
+    @Test
+    public void test_librariesIncludingDifferentVersionsShareTranslator() {
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 1, null);
+
+        TranslatedLibrary first = translationService.translateAndWait("test", providers(), OPTIONS,
+                new VersionedIdentifier().withId("UsesCommon1").withVersion("1"));
+        TranslatedLibrary second = translationService.translateAndWait("test", providers(), OPTIONS,
+                new VersionedIdentifier().withId("UsesCommon2").withVersion("1"));
+        TranslatedLibrary third = translationService.translateAndWait("test", providers(), OPTIONS,
+                new VersionedIdentifier().withId("UsesCommon1").withVersion("1"));
+
+        assertEquals(first.getIdentifier().getId(), "UsesCommon1");
+        assertEquals(second.getIdentifier().getId(), "UsesCommon2");
+        assertEquals(third.getIdentifier().getId(), "UsesCommon1");
+    }
+
+    @Test(expectedExceptions = CqlException.class)
+    public void test_missingLibraryThrows() {
+        LibraryTranslationService translationService = new LibraryTranslationService(ModelManager::new, 1, null);
+
+        translationService.translateAndWait("test", providers(), OPTIONS, new VersionedIdentifier().withId("Missing"));
+    }
+
+    private static List<LibraryContentProvider> providers() {
+        return Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+    }
+}
@@ -0,0 +1,140 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.collect.Lists;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.InMemoryLibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class LibraryWarmerTests {
+
+    private static final List<String> LIBRARIES = Lists.newArrayList(
+            "library Common version '1'\n\ndefine X: 1\n",
+            "library Main version '1'\n\ninclude Common version '1'\n\ndefine Y: Common.X + 1\n",
+            "library Other version '1'\n\n// include Commented version '1'\ninclude \"Common\" version '1' called C\n\ndefine Z: C.X + 2\n",
+            "library Broken version '1'\n\ninclude Missing version '1'\n\ndefine W: 1\n",
+            "library First version '1'\n\ninclude Second version '1'\n\ndefine A: 1\n",
+            "library Second version '1'\n\ninclude First version '1'\n\ndefine B: 2\n");
+
+    private ExecutorService executorService;
+
+    // Records the order Libraries are loaded in, without translating them
+    private static class RecordingLibraryLoader implements TranslatorOptionAwareLibraryLoader {
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Library load(VersionedIdentifier libraryIdentifier) {
+            if (libraryIdentifier.getId().equals("Missing")) {
+                return null;
+            }
+
+            this.loaded.add(libraryIdentifier.getId());
+            return new Library().withIdentifier(libraryIdentifier);
+        }
+
+        @Override
+        public CqlTranslatorOptions getCqlTranslatorOptions() {
+            return CqlTranslatorOptions.defaultOptions();
+        }
+    }
+
+    private static VersionedIdentifier id(String id) {
+        return new VersionedIdentifier().withId(id).withVersion("1");
+    }
+
+    @BeforeClass
+    public void setup() {
+        this.executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void shutdown() {
+        this.executorService.shutdown();
+    }
+
+    @Test
+    public void test_warmUpTranslatesLibrariesAndIncludes() {
+        List<LibraryContentProvider> providers = Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+        TranslatingLibraryLoader libraryLoader = new TranslatingLibraryLoader(
+                new LibraryTranslationService(ModelManager::new, 2, null), "test", providers, null, null);
+        LibraryCache libraryCache = new LibraryCache();
+
+        LibraryWarmUpReport report = new LibraryWarmer(libraryLoader, providers, libraryCache, "test")
+                .warmUp(Lists.newArrayList(id("Main"), id("Other")), this.executorService);
+
+        assertTrue(report.isSuccessful(), report.toString());
+        assertEquals(report.getLoadTimes().size(), 3);
+        assertTrue(report.getLoadTimes().containsKey(id("Common")));
+        assertEquals(libraryCache.estimatedSize(), 3);
+    }
+
+    @Test
+    public void test_includesAreLoadedFirst() {
+        List<LibraryContentProvider> providers = Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+        RecordingLibraryLoader libraryLoader = new RecordingLibraryLoader();
+
+        LibraryWarmUpReport report = new LibraryWarmer(libraryLoader, providers, new LibraryCache(), "test")
+                .warmUp(Lists.newArrayList(id("Main"), id("Other")), this.executorService);
+
+        assertTrue(report.isSuccessful(), report.toString());
+        assertEquals(libraryLoader.loaded.size(), 3);
+        assertEquals(libraryLoader.loaded.get(0), "Common");
+        assertFalse(libraryLoader.loaded.contains("Commented"));
+    }
+
+    @Test
+    public void test_includesHaveNoSystem() {
+        List<LibraryContentProvider> providers = Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+        RecordingLibraryLoader libraryLoader = new RecordingLibraryLoader();
+
+        LibraryWarmUpReport report = new LibraryWarmer(libraryLoader, providers, new LibraryCache(), "test")
+                .warmUp(Lists.newArrayList(id("Main").withSystem("http://example.org")), null);
+
+        assertTrue(report.isSuccessful(), report.toString());
+        assertTrue(report.getLoadTimes().containsKey(id("Common")));
+    }
+
+    @Test
+    public void test_failedIncludeIsReported() {
+        List<LibraryContentProvider> providers = Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+        RecordingLibraryLoader libraryLoader = new RecordingLibraryLoader();
+
+        LibraryWarmUpReport report = new LibraryWarmer(libraryLoader, providers, new LibraryCache(), "test")
+                .warmUp(Lists.newArrayList(id("Broken"), id("Common")), null);
+
+        Map<VersionedIdentifier, String> failures = report.getFailures();
+        assertEquals(failures.size(), 2);
+        assertTrue(failures.containsKey(id("Missing")));
+        assertTrue(failures.containsKey(id("Broken")));
+        assertEquals(libraryLoader.loaded, Lists.newArrayList("Common"));
+    }
+
+    @Test
+    public void test_includeCycleIsReported() {
+        List<LibraryContentProvider> providers = Collections.singletonList(new InMemoryLibraryContentProvider(LIBRARIES));
+        RecordingLibraryLoader libraryLoader = new RecordingLibraryLoader();
+
+        LibraryWarmUpReport report = new LibraryWarmer(libraryLoader, providers, new LibraryCache(), "test")
+                .warmUp(Lists.newArrayList(id("First")), this.executorService);
+
+        assertEquals(report.getFailures().size(), 2);
+        assertTrue(libraryLoader.loaded.isEmpty());
+    }
+}
@@ -2,6 +2,8 @@
 package org.opencds.cqf.cql.evaluator.engine.execution;
 
 import static org.testng.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 
 import static org.opencds.cqf.cql.evaluator.converter.VersionedIdentifierConverter.toElmIdentifier;
@@ -20,7 +22,6 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import org.mockito.Mockito;
 import org.opencds.cqf.cql.engine.exception.CqlException;
-import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.fhir.BaseFhirLibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentType;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.r4.AdapterFactory;
@@ -35,7 +36,7 @@ public class TranslatingLibraryLoaderTests {
     private static IParser parser;
     private static ModelManager modelManger;
     private BaseFhirLibraryContentProvider testFhirLibraryContentProvider;
-    private LibraryLoader libraryLoader;
+    private TranslatingLibraryLoader libraryLoader;
 
     @BeforeClass
     public void setup() {
@@ -57,8 +58,8 @@ public class TranslatingLibraryLoaderTests {
             }
         });
 
-        this.libraryLoader = new TranslatingLibraryLoader(modelManger,
-                Collections.singletonList(testFhirLibraryContentProvider), CqlTranslatorOptions.defaultOptions());
+        this.libraryLoader = Mockito.spy(new TranslatingLibraryLoader(modelManger,
+                Collections.singletonList(testFhirLibraryContentProvider), CqlTranslatorOptions.defaultOptions()));
     }
 
     // Disabled due to engine issue https://github.com/DBCG/cql_engine/issues/436
@@ -77,44 +78,66 @@ public class TranslatingLibraryLoaderTests {
     }
 
     @Test
-    public void usesJsonIfBothPresent() {
+    public void usesJsonIfBothPresent() throws Exception {
         VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryBoth");
         Library library = this.libraryLoader.load(libraryIdentifier);
         assertNotNull(library);
 
-        Mockito.verify(this.testFhirLibraryContentProvider, times(1))
-                .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.JXSON);
+        Mockito.verify(this.libraryLoader, times(1)).readJxson(any(InputStream.class));
+
+        Mockito.verify(this.libraryLoader, times(0)).readXml(any(InputStream.class));
+    }
+
+    @Test
+    public void usesBinaryIfPresent() throws Exception {
+        VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryBinary");
+        Library library = this.libraryLoader.load(libraryIdentifier);
+        assertNotNull(library);
+
+        Mockito.verify(this.libraryLoader, times(1)).readBinary(any(InputStream.class));
+
+        Mockito.verify(this.libraryLoader, times(0)).readJxson(any(InputStream.class));
 
         Mockito.verify(this.testFhirLibraryContentProvider, times(0))
-                .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.XML);
+                .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.CQL);
     }
 
     @Test
-    public void doesNotTranslateIfOptionsMatch() {
+    public void doesNotTranslateIfOptionsMatch() throws Exception {
         VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryDefaultOptions");
         Library library = this.libraryLoader.load(libraryIdentifier);
         assertNotNull(library);
 
-        Mockito.verify(this.testFhirLibraryContentProvider, times(1))
-                .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.JXSON);
+        Mockito.verify(this.libraryLoader, times(1)).readJxson(any(InputStream.class));
 
         Mockito.verify(this.testFhirLibraryContentProvider, times(0))
                 .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.CQL);
     }
 
     @Test
-    public void translateIfOptionsDontMatch() {
+    public void translateIfOptionsDontMatch() throws Exception {
         VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryNoOptions");
         Library library = this.libraryLoader.load(libraryIdentifier);
         assertNotNull(library);
 
-        Mockito.verify(this.testFhirLibraryContentProvider, times(1))
-                .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.JXSON);
+        Mockito.verify(this.libraryLoader, times(1)).readJxson(any(InputStream.class));
 
         Mockito.verify(this.testFhirLibraryContentProvider, times(1))
                 .getLibraryContent(toElmIdentifier(libraryIdentifier), LibraryContentType.CQL);
     }
 
+    @Test
+    public void fetchesLibraryOnceForAllContentTypes() {
+        VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryDefaultOptions");
+        this.libraryLoader.load(libraryIdentifier);
+
+        Mockito.verify(this.testFhirLibraryContentProvider, times(1))
+                .getLibraryContents(eq(toElmIdentifier(libraryIdentifier)), any());
+
+        Mockito.verify(this.testFhirLibraryContentProvider, times(0))
+                .getLibraryContent(eq(toElmIdentifier(libraryIdentifier)), any());
+    }
+
     @Test(expectedExceptions = CqlException.class)
     public void throwsExceptionIfNoContent() {
         VersionedIdentifier libraryIdentifier = new VersionedIdentifier().withId("LibraryNoContent");
@@ -0,0 +1,131 @@
+package org.opencds.cqf.cql.evaluator.engine.execution;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.cqframework.cql.elm.execution.CodeSystemDef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+public class ValueSetPrefetchingLibraryLoaderDecoratorTests {
+
+    private ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    private static class RecordingTerminologyProvider implements TerminologyProvider {
+        Set<String> expanded = ConcurrentHashMap.newKeySet();
+        Map<String, ValueSetInfo> valueSets = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            if (valueSet.getId().equals("http://error")) {
+                throw new IllegalStateException("Unable to expand");
+            }
+
+            this.expanded.add(valueSet.getId());
+            this.valueSets.put(valueSet.getId(), valueSet);
+            return Lists.newArrayList();
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            return null;
+        }
+    }
+
+    private static class MapLibraryLoader implements LibraryLoader {
+        Map<String, Library> libraries = new HashMap<>();
+        AtomicInteger loadCount = new AtomicInteger();
+
+        MapLibraryLoader add(Library library) {
+            this.libraries.put(library.getIdentifier().getId(), library);
+            return this;
+        }
+
+        @Override
+        public Library load(VersionedIdentifier libraryIdentifier) {
+            this.loadCount.incrementAndGet();
+            return this.libraries.get(libraryIdentifier.getId());
+        }
+    }
+
+    private static Library library(String id, String include, ValueSetDef... valueSets) {
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId(id).withVersion("1.0.0"))
+                .withValueSets(new Library.ValueSets().withDef(valueSets));
+        if (include != null) {
+            library.withIncludes(new Library.Includes().withDef(new IncludeDef().withPath(include).withVersion("1.0.0")));
+        }
+
+        return library;
+    }
+
+    @AfterClass
+    public void shutdown() {
+        this.executorService.shutdownNow();
+    }
+
+    @Test
+    public void test_load_prefetchesValueSetsOfIncludedLibraries() {
+        MapLibraryLoader libraryLoader = new MapLibraryLoader()
+                .add(library("Main", "Common", new ValueSetDef().withId("http://1"), new ValueSetDef().withId("http://2")))
+                .add(library("Common", null, new ValueSetDef().withId("http://2"), new ValueSetDef().withId("http://3")));
+        RecordingTerminologyProvider terminologyProvider = new RecordingTerminologyProvider();
+
+        LibraryLoader prefetching = new ValueSetPrefetchingLibraryLoaderDecorator(libraryLoader, terminologyProvider,
+                this.executorService);
+        Library main = prefetching.load(new VersionedIdentifier().withId("Main").withVersion("1.0.0"));
+
+        assertSame(main, libraryLoader.libraries.get("Main"));
+        assertEquals(terminologyProvider.expanded, Sets.newHashSet("http://1", "http://2", "http://3"));
+
+        // The included Library was loaded with the primary Library
+        Library common = prefetching.load(new VersionedIdentifier().withId("Common").withVersion("1.0.0"));
+        assertSame(common, libraryLoader.libraries.get("Common"));
+        assertEquals(libraryLoader.loadCount.get(), 2);
+    }
+
+    @Test
+    public void test_load_resolvesCodeSystemsAndIgnoresErrors() {
+        MapLibraryLoader libraryLoader = new MapLibraryLoader().add(library("Main", null,
+                new ValueSetDef().withId("http://error"),
+                new ValueSetDef().withId("http://1").withVersion("2")
+                        .withCodeSystem(new CodeSystemRef().withName("SNOMED"))));
+        libraryLoader.libraries.get("Main").withCodeSystems(new Library.CodeSystems()
+                .withDef(new CodeSystemDef().withName("SNOMED").withId("http://snomed.info/sct")));
+        RecordingTerminologyProvider terminologyProvider = new RecordingTerminologyProvider();
+
+        new ValueSetPrefetchingLibraryLoaderDecorator(libraryLoader, terminologyProvider, this.executorService)
+                .load(new VersionedIdentifier().withId("Main").withVersion("1.0.0"));
+
+        assertEquals(terminologyProvider.expanded, Sets.newHashSet("http://1"));
+        ValueSetInfo valueSet = terminologyProvider.valueSets.get("http://1");
+        assertEquals(valueSet.getVersion(), "2");
+        assertEquals(valueSet.getCodeSystems().size(), 1);
+        assertEquals(valueSet.getCodeSystems().get(0).getId(), "http://snomed.info/sct");
+    }
+}
@@ -15,12 +15,16 @@ import com.google.common.collect.Lists;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Medication;
 import org.hl7.fhir.r4.model.Patient;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.evaluator.engine.terminology.BundleTerminologyProvider;
+import org.opencds.cqf.cql.evaluator.engine.terminology.CodeDictionary;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -112,6 +116,24 @@ public class BundleRetrieveProviderTests {
         assertEquals("test-one-r4", ((Condition)resultList.get(0)).getSubject().getReferenceElement().getIdPart());
     }
 
+    @Test
+    public void test_filterToContext_multipleContextValues() {
+        RetrieveProvider retrieve = this.getBundleRetrieveProvider();
+
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "test-one-r4", "Condition", null, null, null, null, null, null, null, null);
+        List<Object> resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 2);
+
+        results = retrieve.retrieve("Patient", "subject", "test-two-r4", "Condition", null, null, null, null, null, null, null, null);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 1);
+        assertEquals("test-two-r4", ((Condition)resultList.get(0)).getSubject().getReferenceElement().getIdPart());
+
+        results = retrieve.retrieve("Patient", "subject", "not-a-patient", "Condition", null, null, null, null, null, null, null, null);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 0);
+    }
+
     @Test
     public void test_filterToContext_noContextRelation() {
         RetrieveProvider retrieve = this.getBundleRetrieveProvider();
@@ -165,6 +187,75 @@ public class BundleRetrieveProviderTests {
         assertEquals("test-one-r4", ((Condition)resultList.get(0)).getSubject().getReferenceElement().getIdPart());
     }
 
+    @Test
+    public void test_filterToCodes_doesNotInternDataCodes() {
+        RetrieveProvider retrieve = this.getBundleRetrieveProvider();
+        int codeCount = CodeDictionary.codeCount();
+
+        Code code = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+        Iterable<Object> results = retrieve.retrieve(null, null, null, "Condition", null, "code", Collections.singleton(code), null, null, null, null, null);
+        assertEquals(Lists.newArrayList(results).size(), 1);
+
+        assertEquals(CodeDictionary.codeCount(), codeCount);
+    }
+
+
+    @Test
+    public void test_filterToCodes_noContext() {
+        RetrieveProvider retrieve = this.getBundleRetrieveProvider();
+
+        Code code = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+        Code otherCode = new Code().withCode("213213007").withSystem("http://snomed.info/sct");
+        Iterable<Object> results = retrieve.retrieve(null, null, null, "Condition", null, "code", Lists.newArrayList(code, otherCode), null, null, null, null, null);
+        List<Object> resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 2);
+
+        results = retrieve.retrieve(null, null, null, "Condition", null, "code", Collections.singleton(code), null, null, null, null, null);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 1);
+        assertEquals("test-one-r4", ((Condition)resultList.get(0)).getSubject().getReferenceElement().getIdPart());
+    }
+
+    @Test
+    public void test_filteredResults_areReiterable() {
+        RetrieveProvider retrieve = this.getBundleRetrieveProvider();
+
+        Code code = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "test-one-r4", "Condition", null, "code", Collections.singleton(code), null, null, null, null, null);
+
+        // Stopping early must not affect later iterations
+        assertNotNull(results.iterator().next());
+
+        List<Object> resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 1);
+        assertEquals(Lists.newArrayList(results), resultList);
+    }
+
+    @Test
+    public void test_filterToDates() {
+        RetrieveProvider retrieve = this.getBundleRetrieveProvider();
+
+        // Overlaps the Encounter period
+        Interval dateRange = new Interval(new Date("2019-01-01"), true, new Date("2019-01-17"), true);
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "test-one-r4", "Encounter", null, null, null, null, "period", null, null, dateRange);
+        List<Object> resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 1);
+        assertThat(resultList.get(0), instanceOf(Encounter.class));
+
+        results = retrieve.retrieve(null, null, null, "Encounter", null, null, null, null, "period", null, null, dateRange);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 2);
+
+        // After the Encounter period
+        dateRange = new Interval(new Date("2020-01-01"), true, new Date("2020-12-31"), true);
+        results = retrieve.retrieve("Patient", "subject", "test-one-r4", "Encounter", null, null, null, null, "period", null, null, dateRange);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 0);
+
+        results = retrieve.retrieve(null, null, null, "Encounter", null, null, null, null, "period", null, null, dateRange);
+        resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 0);
+    }
 
     @Test(expectedExceptions = IllegalStateException.class)
     public void test_filterToValueSet_noTerminologyProvider() {
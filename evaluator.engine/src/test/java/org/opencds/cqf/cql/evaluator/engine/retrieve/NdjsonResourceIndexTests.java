@@ -0,0 +1,128 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+public class NdjsonResourceIndexTests {
+
+    private static final FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+
+    private Path directory;
+    private NdjsonResourceIndex index;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("NdjsonResourceIndexTests");
+
+        write("Patient.ndjson", "\n",
+            new Patient().setId("p1"),
+            new Patient().setId("p2"));
+
+        // Windows line endings and blank lines are allowed
+        write("Condition.ndjson", "\r\n\r\n",
+            condition("c1", "Patient/p1", null),
+            condition("c2", "Patient/p2", "Patient/p1"));
+
+        write("Medication.ndjson", "\n", new Medication().setId("m1"));
+
+        // References of contained resources and extensions do not place a resource in a compartment
+        Files.write(this.directory.resolve("Observation.ndjson"), ("{\"resourceType\":\"Observation\",\"id\":\"o1\","
+                + "\"contained\":[{\"resourceType\":\"Observation\",\"id\":\"o2\",\"subject\":{\"reference\":\"Patient/p2\"}}],"
+                + "\"extension\":[{\"url\":\"http://example.org\",\"valueReference\":{\"reference\":\"Patient/p2\"}}],"
+                + "\"status\":\"final\",\"code\":{\"text\":\"Test\"},\"subject\":{\"reference\":\"Patient/p1\"}}")
+                .getBytes(StandardCharsets.UTF_8));
+
+        this.index = NdjsonResourceIndex.forDirectory(fhirContext, this.directory);
+    }
+
+    @AfterClass
+    public void cleanup() throws IOException {
+        this.index.close();
+        for (String file : Lists.newArrayList("Patient.ndjson", "Condition.ndjson", "Medication.ndjson",
+                "Observation.ndjson")) {
+            Files.deleteIfExists(this.directory.resolve(file));
+        }
+
+        Files.deleteIfExists(this.directory);
+    }
+
+    private void write(String fileName, String separator, IBaseResource... resources) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        StringBuilder builder = new StringBuilder();
+        for (IBaseResource resource : resources) {
+            builder.append(parser.encodeResourceToString(resource)).append(separator);
+        }
+
+        Files.write(this.directory.resolve(fileName), builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Condition condition(String id, String subject, String asserter) {
+        Condition condition = new Condition().setSubject(new Reference(subject));
+        if (asserter != null) {
+            condition.setAsserter(new Reference(asserter));
+        }
+
+        condition.setId(id);
+        return condition;
+    }
+
+    @Test
+    public void test_index_partitionsByPatient() {
+        assertEquals(this.index.getPatientIds(), Sets.newHashSet("p1", "p2"));
+        assertEquals(this.index.getResources("p1", "Patient").size(), 1);
+        assertEquals(this.index.getResources("p1", "Condition").size(), 2);
+        assertEquals(this.index.getResources("p2", "Condition").size(), 1);
+        assertTrue(this.index.getResources("p3", "Condition").isEmpty());
+        assertEquals(this.index.getResources(NdjsonResourceIndex.SHARED_PARTITION, "Medication").size(), 1);
+    }
+
+    @Test
+    public void test_index_readsCompartmentReferencesOnly() {
+        assertEquals(this.index.getResources("p1", "Observation").size(), 1);
+        assertTrue(this.index.getResources("p2", "Observation").isEmpty());
+    }
+
+    @Test
+    public void test_retrieve_patientContext() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.index);
+
+        List<Object> conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p1", "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 1);
+        assertEquals(((Condition) conditions.get(0)).getIdElement().getIdPart(), "c1");
+
+        conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p2", "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 1);
+        assertEquals(((Condition) conditions.get(0)).getIdElement().getIdPart(), "c2");
+    }
+
+    @Test
+    public void test_retrieve_noContext_returnsEachResourceOnce() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.index);
+
+        List<Object> conditions = Lists.newArrayList(retrieve.retrieve(null, null, null, "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 2);
+    }
+}
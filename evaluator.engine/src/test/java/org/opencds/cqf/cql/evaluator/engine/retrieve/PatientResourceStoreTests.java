@@ -0,0 +1,137 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class PatientResourceStoreTests {
+
+    private static final FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+
+    private Path storePath;
+    private PatientResourceStore store;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        List<IBaseResource> resources = Lists.<IBaseResource>newArrayList(
+            patient("p1", "Practitioner/pr1"),
+            patient("p2", "Practitioner/pr2"),
+            condition("c1", "Patient/p1", "1"),
+            condition("c2", "Patient/p1", "2"),
+            condition("c3", "urn:uuid:p2", "1"),
+            new Medication().setId("m1"));
+
+        this.storePath = Files.createTempFile("PatientResourceStoreTests", ".fhirstore");
+        new PatientResourceStoreImporter(fhirContext).importResources(resources, this.storePath);
+        this.store = new PatientResourceStore(fhirContext, this.storePath);
+    }
+
+    @AfterClass
+    public void cleanup() throws IOException {
+        this.store.close();
+        Files.deleteIfExists(this.storePath);
+    }
+
+    private static Patient patient(String id, String generalPractitioner) {
+        Patient patient = new Patient().addGeneralPractitioner(new Reference(generalPractitioner));
+        patient.setId(id);
+        return patient;
+    }
+
+    private static Condition condition(String id, String subject, String code) {
+        Condition condition = new Condition().setSubject(new Reference(subject))
+                .setCode(new CodeableConcept().addCoding(new Coding().setSystem("http://example.org").setCode(code)));
+        condition.setId(id);
+        return condition;
+    }
+
+    @Test
+    public void test_store_partitionsByPatient() {
+        assertEquals(this.store.getPatientIds(), Sets.newHashSet("p1", "p2"));
+        assertEquals(this.store.getResources("p1", "Condition").size(), 2);
+        assertEquals(this.store.getResources("p2", "Condition").size(), 1);
+        assertTrue(this.store.getResources("p3", "Condition").isEmpty());
+        assertEquals(this.store.getResources(PatientResourceStore.SHARED_PARTITION, "Medication").size(), 1);
+    }
+
+    @Test
+    public void test_retrieve_patientContext() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.store);
+
+        List<Object> conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p1", "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 2);
+
+        conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p1", "Condition", null, "code",
+                Lists.newArrayList(new Code().withSystem("http://example.org").withCode("2")), null, null, null, null, null));
+        assertEquals(conditions.size(), 1);
+        assertEquals(((Condition) conditions.get(0)).getIdElement().getIdPart(), "c2");
+
+        conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p2", "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 1);
+        assertEquals(((Condition) conditions.get(0)).getIdElement().getIdPart(), "c3");
+    }
+
+    @Test
+    public void test_retrieve_noContext_readsAllPartitions() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.store);
+
+        List<Object> patients = Lists.newArrayList(retrieve.retrieve(null, null, null, "Patient", null, null, null, null, null, null, null, null));
+        assertEquals(patients.size(), 2);
+
+        List<Object> medications = Lists.newArrayList(retrieve.retrieve("Patient", null, "p1", "Medication", null, null, null, null, null, null, null, null));
+        assertEquals(medications.size(), 1);
+    }
+
+    @Test
+    public void test_retrieve_practitionerContext_filtersByContextPath() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.store);
+
+        List<Object> patients = Lists.newArrayList(retrieve.retrieve("Practitioner", "generalPractitioner",
+                "pr1", "Patient", null, null, null, null, null, null, null, null));
+        assertEquals(patients.size(), 1);
+        assertEquals(((Patient) patients.get(0)).getIdElement().getIdPart(), "p1");
+
+        patients = Lists.newArrayList(retrieve.retrieve("Practitioner", "generalPractitioner", "pr3",
+                "Patient", null, null, null, null, null, null, null, null));
+        assertTrue(patients.isEmpty());
+    }
+
+    @Test
+    public void test_retrieve_noContext_filtersInBatches() {
+        RetrieveProvider retrieve = new PatientPartitionedRetrieveProvider(fhirContext, this.store, 1);
+
+        Iterable<Object> results = retrieve.retrieve(null, null, null, "Condition", null, "code",
+                Lists.newArrayList(new Code().withSystem("http://example.org").withCode("1")), null, null, null, null, null);
+
+        List<Object> conditions = Lists.newArrayList(results);
+        assertEquals(conditions.size(), 2);
+        assertEquals(Sets.newHashSet(((Condition) conditions.get(0)).getIdElement().getIdPart(),
+                ((Condition) conditions.get(1)).getIdElement().getIdPart()), Sets.newHashSet("c1", "c3"));
+
+        // Each iteration reads the store again
+        assertEquals(Lists.newArrayList(results).size(), 2);
+    }
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+
+public class PrefetchingRetrieveProviderTests {
+
+    private static final FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+
+    private static class PopulationRetrieveProvider implements RetrieveProvider {
+        int retrieveCount = 0;
+
+        @Override
+        public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                String dateLowPath, String dateHighPath, Interval dateRange) {
+            this.retrieveCount++;
+            return Lists.<Object>newArrayList(new Patient().setId("p1"), new Patient().setId("p2"), new Patient().setId("p3"));
+        }
+    }
+
+    private static class RecordingSubjectDataFetcher implements SubjectDataFetcher {
+        List<List<String>> fetches = new ArrayList<>();
+
+        @Override
+        public List<Condition> fetch(String dataType, String contextPath, List<String> subjectIds) {
+            this.fetches.add(new ArrayList<>(subjectIds));
+
+            List<Condition> conditions = new ArrayList<>();
+            for (String id : subjectIds) {
+                Condition condition = new Condition().setSubject(new Reference("Patient/" + id));
+                condition.setId("condition-" + id);
+                conditions.add(condition);
+            }
+
+            return conditions;
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_invalidChunkSize_throwsException() {
+        new PrefetchingRetrieveProvider(fhirContext, new PopulationRetrieveProvider(), new RecordingSubjectDataFetcher(), 0);
+    }
+
+    @Test
+    public void test_retrieve_fetchesByChunk() {
+        PopulationRetrieveProvider inner = new PopulationRetrieveProvider();
+        RecordingSubjectDataFetcher fetcher = new RecordingSubjectDataFetcher();
+        RetrieveProvider retrieve = new PrefetchingRetrieveProvider(fhirContext, inner, fetcher, 2);
+
+        List<Object> patients = Lists.newArrayList(retrieve.retrieve(null, null, null, "Patient", null, null, null, null, null, null, null, null));
+        assertEquals(patients.size(), 3);
+
+        for (String id : Lists.newArrayList("p1", "p2", "p3")) {
+            List<Object> conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", id, "Condition", null, null, null, null, null, null, null, null));
+            assertEquals(conditions.size(), 1);
+            assertEquals(((Condition) conditions.get(0)).getSubject().getReferenceElement().getIdPart(), id);
+        }
+
+        assertEquals(inner.retrieveCount, 1);
+        assertEquals(fetcher.fetches.size(), 2);
+        assertEquals(fetcher.fetches.get(0), Lists.newArrayList("p1", "p2"));
+        assertEquals(fetcher.fetches.get(1), Lists.newArrayList("p3"));
+    }
+
+    @Test
+    public void test_retrieve_unknownSubject_fetchesAlone() {
+        RecordingSubjectDataFetcher fetcher = new RecordingSubjectDataFetcher();
+        RetrieveProvider retrieve = new PrefetchingRetrieveProvider(fhirContext, new PopulationRetrieveProvider(), fetcher, 2);
+
+        List<Object> conditions = Lists.newArrayList(retrieve.retrieve("Patient", "subject", "p4", "Condition", null, null, null, null, null, null, null, null));
+        assertEquals(conditions.size(), 1);
+        assertEquals(fetcher.fetches.get(0), Lists.newArrayList("p4"));
+    }
+
+    @Test
+    public void test_retrieve_fetchFailure_usesInnerProvider() {
+        PopulationRetrieveProvider inner = new PopulationRetrieveProvider();
+        SubjectDataFetcher failingFetcher = (dataType, contextPath, subjectIds) -> {
+            throw new UnsupportedOperationException("search not supported");
+        };
+        RetrieveProvider retrieve = new PrefetchingRetrieveProvider(fhirContext, inner, failingFetcher, 2);
+
+        retrieve.retrieve("Patient", "subject", "p1", "Condition", null, null, null, null, null, null, null, null);
+        retrieve.retrieve("Patient", "subject", "p2", "Condition", null, null, null, null, null, null, null, null);
+
+        assertEquals(inner.retrieveCount, 2);
+    }
+
+    @Test
+    public void test_retrieve_valueSetWithoutTerminologyProvider_usesInnerProvider() {
+        PopulationRetrieveProvider inner = new PopulationRetrieveProvider();
+        RecordingSubjectDataFetcher fetcher = new RecordingSubjectDataFetcher();
+        RetrieveProvider retrieve = new PrefetchingRetrieveProvider(fhirContext, inner, fetcher, 2);
+
+        retrieve.retrieve("Patient", "subject", "p1", "Condition", null, "code", null, "http://example.org/ValueSet/1",
+                null, null, null, null);
+
+        assertEquals(inner.retrieveCount, 1);
+        assertEquals(fetcher.fetches.size(), 0);
+    }
+}
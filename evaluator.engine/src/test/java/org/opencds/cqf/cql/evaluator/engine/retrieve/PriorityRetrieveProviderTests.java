@@ -4,16 +4,34 @@ package org.opencds.cqf.cql.evaluator.engine.retrieve;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.engine.terminology.PrivateCachingTerminologyProviderDecorator;
 import org.testng.annotations.Test;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
 
 public class PriorityRetrieveProviderTests {
 
@@ -83,4 +101,147 @@ public class PriorityRetrieveProviderTests {
         List<Object> resultList = Lists.newArrayList(results);
         assertEquals(3, resultList.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test_concurrentRetrieve_returnsHighestPriorityNonEmpty() {
+        RetrieveProvider slowProvider = new RetrieveProvider(){
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Lists.newArrayList(1, 2, 3);
+            }
+        };
+
+        RetrieveProvider fastProvider = new RetrieveProvider(){
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                return Lists.newArrayList(5, 4, 3, 2, 1);
+            }
+        };
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            RetrieveProvider retrieve = new PriorityRetrieveProvider(Lists.newArrayList(slowProvider, fastProvider), executorService);
+            Iterable<Object> results = retrieve.retrieve(null, null, null, null, null, null, null, null, null, null, null, null);
+            assertNotNull(results);
+            List<Object> resultList = Lists.newArrayList(results);
+            assertEquals(3, resultList.size());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_concurrentRetrieve_badProvider_throwsException() {
+        RetrieveProvider emptyProvider = new RetrieveProvider(){
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                return Collections.emptySet();
+            }
+        };
+
+        RetrieveProvider badProvider = new RetrieveProvider(){
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                return null;
+            }
+        };
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            RetrieveProvider retrieve = new PriorityRetrieveProvider(Lists.newArrayList(emptyProvider, badProvider), executorService);
+            retrieve.retrieve(null, null, null, null, null, null, null, null, null, null, null, null);
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_concurrentRetrieve_valueSetFilter_sharesTerminologyCache() throws Exception {
+        FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+        List<IBaseResource> conditions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Condition condition = new Condition().setCode(new CodeableConcept()
+                    .addCoding(new Coding().setSystem("http://example.org").setCode(Integer.toString(i))));
+            condition.setId("c" + i);
+            conditions.add(condition);
+        }
+
+        // Each ValueSet "vs<i>" contains only the code i. Expansions are slow to widen the window for races.
+        Map<String, AtomicInteger> expansions = new ConcurrentHashMap<>();
+        TerminologyProvider innerProvider = new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expansions.computeIfAbsent(valueSet.getId(), k -> new AtomicInteger()).incrementAndGet();
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return Collections.singletonList(
+                        new Code().withSystem("http://example.org").withCode(valueSet.getId().substring(2)));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        };
+
+        TerminologyProvider terminologyProvider = new PrivateCachingTerminologyProviderDecorator(innerProvider);
+        List<RetrieveProvider> providers = new ArrayList<>();
+        for (Iterable<IBaseResource> resources : Lists.<Iterable<IBaseResource>>newArrayList(
+                Collections.emptyList(), conditions, conditions)) {
+            BundleRetrieveProvider provider = new BundleRetrieveProvider(fhirContext, resources);
+            provider.setTerminologyProvider(terminologyProvider);
+            providers.add(provider);
+        }
+
+        ExecutorService retrieveExecutor = Executors.newFixedThreadPool(3);
+        ExecutorService callerExecutor = Executors.newFixedThreadPool(8);
+        try {
+            RetrieveProvider retrieve = new PriorityRetrieveProvider(providers, retrieveExecutor);
+            List<Future<List<Object>>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                String valueSet = "vs" + (i % 10);
+                futures.add(callerExecutor.submit(() -> Lists.newArrayList(retrieve.retrieve(null, null, null,
+                        "Condition", null, "code", null, valueSet, null, null, null, null))));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                List<Object> result = futures.get(i).get();
+                assertEquals(result.size(), 1);
+                assertEquals(((Condition) result.get(0)).getIdElement().getIdPart(), "c" + (i % 10));
+            }
+
+            assertEquals(expansions.size(), 10);
+            for (AtomicInteger count : expansions.values()) {
+                assertEquals(count.get(), 1);
+            }
+        }
+        finally {
+            retrieveExecutor.shutdownNow();
+            callerExecutor.shutdownNow();
+        }
+    }
+}
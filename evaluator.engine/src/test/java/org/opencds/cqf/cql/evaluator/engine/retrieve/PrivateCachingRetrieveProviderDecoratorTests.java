@@ -0,0 +1,125 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.testng.annotations.Test;
+
+
+public class PrivateCachingRetrieveProviderDecoratorTests {
+
+    private static class CountingRetrieveProvider implements RetrieveProvider {
+        int retrieveCount = 0;
+        int iterationCount = 0;
+
+        @Override
+        public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                String dateLowPath, String dateHighPath, Interval dateRange) {
+            this.retrieveCount++;
+            List<Object> results = Collections.singletonList(dataType + "-" + contextValue);
+            return () -> {
+                this.iterationCount++;
+                return results.iterator();
+            };
+        }
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void test_nullConstructorParameterThrowsException() {
+        new PrivateCachingRetrieveProviderDecorator(null);
+    }
+
+    @Test
+    public void test_sameRetrieve_isCached() {
+        CountingRetrieveProvider inner = new CountingRetrieveProvider();
+        PrivateCachingRetrieveProviderDecorator retrieve = new PrivateCachingRetrieveProviderDecorator(inner);
+
+        Code code = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+        Code sameCode = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "123", "Condition", null, "code", Collections.singleton(code), null, null, null, null, null);
+        List<Object> resultList = Lists.newArrayList(results);
+        assertEquals(resultList.size(), 1);
+
+        results = retrieve.retrieve("Patient", "subject", "123", "Condition", null, "code", Collections.singleton(sameCode), null, null, null, null, null);
+        assertEquals(Lists.newArrayList(results), resultList);
+
+        assertEquals(inner.retrieveCount, 1);
+        assertEquals(retrieve.getHitCount(), 1);
+        assertEquals(retrieve.getMissCount(), 1);
+    }
+
+    @Test
+    public void test_differentRetrieve_isNotCached() {
+        CountingRetrieveProvider inner = new CountingRetrieveProvider();
+        PrivateCachingRetrieveProviderDecorator retrieve = new PrivateCachingRetrieveProviderDecorator(inner);
+
+        Code code = new Code().withCode("10327003").withSystem("http://snomed.info/sct");
+        Code otherCode = new Code().withCode("213213007").withSystem("http://snomed.info/sct");
+
+        retrieve.retrieve("Patient", "subject", "123", "Condition", null, "code", Collections.singleton(code), null, null, null, null, null);
+        retrieve.retrieve("Patient", "subject", "123", "Condition", null, "code", Collections.singleton(otherCode), null, null, null, null, null);
+        retrieve.retrieve("Patient", "subject", "123", "Encounter", null, null, null, null, null, null, null, null);
+
+        assertEquals(inner.retrieveCount, 3);
+        assertEquals(retrieve.getHitCount(), 0);
+        assertEquals(retrieve.getMissCount(), 3);
+    }
+
+    @Test
+    public void test_contextChange_clearsCache() {
+        CountingRetrieveProvider inner = new CountingRetrieveProvider();
+        PrivateCachingRetrieveProviderDecorator retrieve = new PrivateCachingRetrieveProviderDecorator(inner);
+
+        retrieve.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        retrieve.retrieve("Patient", "subject", "456", "Condition", null, null, null, null, null, null, null, null);
+
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        assertEquals(Lists.newArrayList(results), Collections.singletonList("Condition-123"));
+
+        assertEquals(inner.retrieveCount, 3);
+        assertEquals(retrieve.getHitCount(), 0);
+    }
+
+    @Test
+    public void test_nullContextValue_isNotCached() {
+        CountingRetrieveProvider inner = new CountingRetrieveProvider();
+        PrivateCachingRetrieveProviderDecorator retrieve = new PrivateCachingRetrieveProviderDecorator(inner);
+
+        retrieve.retrieve(null, null, null, "Medication", null, null, null, null, null, null, null, null);
+        retrieve.retrieve(null, null, null, "Medication", null, null, null, null, null, null, null, null);
+
+        assertEquals(inner.retrieveCount, 2);
+        assertEquals(retrieve.getHitCount(), 0);
+        assertEquals(retrieve.getMissCount(), 0);
+    }
+
+    @Test
+    public void test_results_areMaterializedOnSecondIteration() {
+        CountingRetrieveProvider inner = new CountingRetrieveProvider();
+        PrivateCachingRetrieveProviderDecorator retrieve = new PrivateCachingRetrieveProviderDecorator(inner);
+
+        Iterable<Object> results = retrieve.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        assertEquals(inner.iterationCount, 0);
+
+        // The first iteration reads the inner results directly
+        assertTrue(results.iterator().hasNext());
+        assertEquals(inner.iterationCount, 1);
+
+        // The second iteration copies them, and later iterations use the copy
+        results = retrieve.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        assertEquals(Lists.newArrayList(results), Collections.singletonList("Condition-123"));
+        assertEquals(Lists.newArrayList(results), Collections.singletonList("Condition-123"));
+        assertEquals(inner.iterationCount, 2);
+        assertEquals(inner.retrieveCount, 1);
+    }
+}
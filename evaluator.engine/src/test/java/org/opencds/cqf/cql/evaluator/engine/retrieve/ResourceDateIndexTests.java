@@ -0,0 +1,54 @@
+package org.opencds.cqf.cql.evaluator.engine.retrieve;
+
+import static org.testng.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.testng.annotations.Test;
+
+public class ResourceDateIndexTests {
+
+    @Test
+    public void test_toBounds_dateWithTimePrecisionCoversDay() {
+        Date date = new Date(LocalDate.of(2019, 1, 1), Precision.MILLISECOND);
+        long[] bounds = ResourceDateIndex.toBounds(new Interval(date, true, date, true), ZoneOffset.UTC);
+
+        assertEquals(bounds[0], LocalDate.of(2019, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+        assertEquals(bounds[1] - bounds[0], 86_399_999L);
+    }
+
+    @Test
+    public void test_toBounds_dateUsesZone() {
+        Date date = new Date("2019-01-01");
+        ZoneId zone = ZoneOffset.ofHours(5);
+        long[] bounds = ResourceDateIndex.toBounds(new Interval(date, true, date, true), zone);
+
+        assertEquals(bounds[0], LocalDate.of(2019, 1, 1).atStartOfDay(zone).toInstant().toEpochMilli());
+    }
+
+    @Test
+    public void test_getEvaluationZone_usesContext() throws InterruptedException {
+        ZonedDateTime evaluationDateTime = ZonedDateTime.of(2019, 1, 1, 0, 0, 0, 0, ZoneOffset.ofHours(5));
+        AtomicReference<ZoneId> zone = new AtomicReference<>();
+
+        // The Context is thread local, so use a separate thread to keep it from other tests
+        Thread thread = new Thread(() -> {
+            new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")), evaluationDateTime);
+            zone.set(ResourceDateIndex.getEvaluationZone());
+        });
+        thread.start();
+        thread.join();
+
+        assertEquals(zone.get(), evaluationDateTime.getZone());
+    }
+}
@@ -0,0 +1,133 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+
+public class BatchingTerminologyProviderDecoratorTests {
+
+    private static class UnusedTerminologyProvider implements TerminologyProvider {
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Answers each $validate-code request with true if the code is "1", and records the requested urls
+    @SuppressWarnings("unchecked")
+    private static IGenericClient mockClient(List<List<String>> batches) {
+        IGenericClient client = mock(IGenericClient.class);
+        ITransaction transaction = mock(ITransaction.class);
+        when(client.getFhirContext()).thenReturn(FhirContext.forCached(FhirVersionEnum.R4));
+        when(client.transaction()).thenReturn(transaction);
+        when(transaction.withBundle(any(Bundle.class))).thenAnswer(invocation -> {
+            Bundle request = invocation.getArgument(0);
+            assertEquals(request.getType(), Bundle.BundleType.BATCH);
+
+            List<String> urls = new ArrayList<>();
+            Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+            for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+                urls.add(entry.getRequest().getUrl());
+                Parameters parameters = new Parameters();
+                parameters.addParameter().setName("result")
+                        .setValue(new BooleanType(entry.getRequest().getUrl().contains("code=1&")));
+                response.addEntry().setResource(parameters);
+            }
+
+            batches.add(urls);
+            ITransactionTyped<Bundle> typed = mock(ITransactionTyped.class);
+            when(typed.execute()).thenReturn(response);
+            return typed;
+        });
+
+        return client;
+    }
+
+    @Test
+    public void test_in_cachesResults() {
+        List<List<String>> batches = new ArrayList<>();
+        TerminologyProvider terminologyProvider = new BatchingTerminologyProviderDecorator(
+                new UnusedTerminologyProvider(), mockClient(batches));
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("http://example.org/ValueSet/1");
+        assertTrue(terminologyProvider.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), valueSet));
+        assertTrue(terminologyProvider.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), valueSet));
+        assertFalse(terminologyProvider.in(new Code().withSystem("http://snomed.info/sct").withCode("2"), valueSet));
+
+        assertEquals(batches.size(), 2);
+        assertEquals(batches.get(0).get(0),
+                "ValueSet/$validate-code?url=http%3A%2F%2Fexample.org%2FValueSet%2F1&code=1&system=http%3A%2F%2Fsnomed.info%2Fsct");
+    }
+
+    @Test
+    public void test_prefetch_sendsOneBatch() {
+        List<List<String>> batches = new ArrayList<>();
+        BatchingTerminologyProviderDecorator terminologyProvider = new BatchingTerminologyProviderDecorator(
+                new UnusedTerminologyProvider(), mockClient(batches));
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("http://example.org/ValueSet/1");
+        terminologyProvider.prefetch(Lists.newArrayList(
+            new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withSystem("http://snomed.info/sct").withCode("2"),
+            new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withSystem("http://loinc.org").withCode("3")), valueSet);
+
+        assertEquals(batches.size(), 1);
+        assertEquals(batches.get(0).size(), 3);
+
+        assertTrue(terminologyProvider.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), valueSet));
+        assertFalse(terminologyProvider.in(new Code().withSystem("http://loinc.org").withCode("3"), valueSet));
+        assertEquals(batches.size(), 1);
+    }
+
+    @Test
+    public void test_prefetch_splitsLargeBatches() {
+        List<List<String>> batches = new ArrayList<>();
+        BatchingTerminologyProviderDecorator terminologyProvider = new BatchingTerminologyProviderDecorator(
+                new UnusedTerminologyProvider(), mockClient(batches), Duration.ZERO, 2);
+
+        List<Code> codes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            codes.add(new Code().withSystem("http://snomed.info/sct").withCode(Integer.toString(i)));
+        }
+
+        terminologyProvider.prefetch(codes, new ValueSetInfo().withId("http://example.org/ValueSet/1"));
+
+        assertEquals(batches.size(), 3);
+        assertEquals(batches.get(2).size(), 1);
+    }
+}
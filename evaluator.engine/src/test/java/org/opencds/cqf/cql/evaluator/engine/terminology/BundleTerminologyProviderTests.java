@@ -8,12 +8,19 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Lists;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ValueSet;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
@@ -116,6 +123,46 @@ public class BundleTerminologyProviderTests {
         assertFalse(inValueSet);
     }
 
+    @Test
+    public void test_inValueSet_largeExpansion() {
+        FhirContext context = FhirContext.forCached(FhirVersionEnum.R4);
+        ValueSet valueSet = new ValueSet().setUrl("http://localhost/fhir/ValueSet/large");
+        for (int i = 0; i <= BundleTerminologyProvider.COMPACT_EXPANSION_THRESHOLD; i++) {
+            valueSet.getExpansion().addContains().setSystem("http://localhost/unit-test").setCode(Integer.toString(i));
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(valueSet);
+        TerminologyProvider terminology = new BundleTerminologyProvider(context, bundle);
+        ValueSetInfo valueSetInfo = new ValueSetInfo().withId("http://localhost/fhir/ValueSet/large");
+
+        assertTrue(terminology.in(new Code().withSystem("http://localhost/unit-test").withCode("42"), valueSetInfo));
+        assertFalse(terminology.in(new Code().withSystem("http://localhost/unit-test").withCode("-1"), valueSetInfo));
+        assertEquals(Lists.newArrayList(terminology.expand(valueSetInfo)).size(),
+                BundleTerminologyProvider.COMPACT_EXPANSION_THRESHOLD + 1);
+    }
+
+    @Test
+    public void test_inValueSet_concurrentFirstUse() throws Exception {
+        TerminologyProvider terminology = this.getTerminologyProvider();
+        ValueSetInfo valueSet = new ValueSetInfo().withId("http://localhost/fhir/ValueSet/value-set-three");
+
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            tasks.add(() -> terminology.in(new Code().withSystem("http://localhost/unit-test").withCode("777"), valueSet));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertTrue(result.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
     @Test(expectedExceptions = NullPointerException.class)
     public void test_inValueSet_nullValueSet() {
         TerminologyProvider terminology = this.getTerminologyProvider();
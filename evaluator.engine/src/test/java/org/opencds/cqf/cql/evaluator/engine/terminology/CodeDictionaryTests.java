@@ -0,0 +1,40 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import org.testng.annotations.Test;
+
+public class CodeDictionaryTests {
+
+    @Test
+    public void test_key_isStableAndDistinct() {
+        long key = CodeDictionary.key("http://snomed.info/sct", "dictionary-1");
+
+        assertEquals(CodeDictionary.key("http://snomed.info/sct", "dictionary-1"), key);
+        assertEquals(CodeDictionary.findKey("http://snomed.info/sct", "dictionary-1"), key);
+        assertNotEquals(CodeDictionary.key("http://loinc.org", "dictionary-1"), key);
+        assertNotEquals(CodeDictionary.key("http://snomed.info/sct", "dictionary-2"), key);
+        assertNotEquals(key, 0L);
+    }
+
+    @Test
+    public void test_findKey_doesNotIntern() {
+        int codeCount = CodeDictionary.codeCount();
+
+        assertEquals(CodeDictionary.findKey("http://snomed.info/sct", "dictionary-never-interned"), CodeDictionary.NO_KEY);
+        assertEquals(CodeDictionary.findKey(null, "dictionary-1"), CodeDictionary.NO_KEY);
+        assertEquals(CodeDictionary.key("http://snomed.info/sct", null), CodeDictionary.NO_KEY);
+        assertEquals(CodeDictionary.codeCount(), codeCount);
+    }
+
+    @Test
+    public void test_internSystem_returnsCanonicalInstance() {
+        String system = CodeDictionary.internSystem(new String("http://hl7.org/fhir/sid/icd-10-cm"));
+
+        assertSame(CodeDictionary.internSystem(new String("http://hl7.org/fhir/sid/icd-10-cm")), system);
+        assertNull(CodeDictionary.internSystem(null));
+    }
+}
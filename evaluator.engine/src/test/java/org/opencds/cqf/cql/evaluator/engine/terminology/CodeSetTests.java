@@ -0,0 +1,55 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.Test;
+
+public class CodeSetTests {
+
+    @Test
+    public void test_contains_matchesSystemAndCode() {
+        CodeSet codes = CodeSet.of(Lists.newArrayList(
+            new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withSystem("http://loinc.org").withCode("2")));
+
+        assertTrue(codes.contains(new Code().withSystem("http://snomed.info/sct").withCode("1")));
+        assertTrue(codes.contains(new Code().withSystem("http://loinc.org").withCode("2").withVersion("2.68")));
+        assertFalse(codes.contains(new Code().withSystem("http://loinc.org").withCode("1")));
+        assertFalse(codes.contains(new Code().withCode("1")));
+    }
+
+    @Test
+    public void test_of_ignoresDuplicatesAndIncompleteCodes() {
+        CodeSet codes = CodeSet.of(Lists.newArrayList(
+            new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withCode("2"),
+            new Code().withSystem("http://snomed.info/sct")));
+
+        assertEquals(codes.size(), 1);
+    }
+
+    @Test
+    public void test_largeExpansion() {
+        List<Code> expansion = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            expansion.add(new Code().withSystem(i % 2 == 0 ? "http://snomed.info/sct" : "http://loinc.org").withCode(Integer.toString(i)));
+        }
+
+        // Not a Collection, so the set grows as it is built
+        CodeSet codes = CodeSet.of(() -> expansion.iterator());
+        assertEquals(codes.size(), 100000);
+        assertTrue(codes.contains("http://snomed.info/sct", "99998"));
+        assertTrue(codes.contains("http://loinc.org", "99999"));
+        assertFalse(codes.contains("http://loinc.org", "99998"));
+        assertFalse(codes.contains("http://loinc.org", "100001"));
+    }
+}
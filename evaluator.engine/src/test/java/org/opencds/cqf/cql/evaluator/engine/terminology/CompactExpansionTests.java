@@ -0,0 +1,61 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.Test;
+
+public class CompactExpansionTests {
+
+    @Test
+    public void test_contains() {
+        CompactExpansion expansion = CompactExpansion.of(Lists.newArrayList(
+            new Code().withSystem("http://snomed.info/sct").withCode("123"),
+            new Code().withSystem("http://snomed.info/sct").withCode("456"),
+            new Code().withSystem("http://loinc.org").withVersion("2.70").withCode("1234-5")));
+
+        assertTrue(expansion.contains(new Code().withSystem("http://snomed.info/sct").withCode("456")));
+        assertTrue(expansion.contains(new Code().withSystem("http://loinc.org").withCode("1234-5")));
+        assertFalse(expansion.contains(new Code().withSystem("http://snomed.info/sct").withCode("1234-5")));
+        assertFalse(expansion.contains(new Code().withSystem("http://snomed.info/sct").withCode("45")));
+        assertFalse(expansion.contains(new Code().withCode("123")));
+    }
+
+    @Test
+    public void test_iterator_sortsAndDeduplicatesCodes() {
+        CompactExpansion expansion = CompactExpansion.of(Lists.newArrayList(
+            new Code().withSystem("http://snomed.info/sct").withCode("b").withDisplay("B"),
+            new Code().withSystem("http://snomed.info/sct").withCode("a"),
+            new Code().withSystem("http://loinc.org").withVersion("2.70").withCode("c").withDisplay(""),
+            new Code().withSystem("http://snomed.info/sct").withCode("b").withDisplay("Duplicate")));
+
+        List<Code> codes = Lists.newArrayList(expansion);
+        assertEquals(expansion.size(), 3);
+        assertEquals(codes.size(), 3);
+
+        assertEquals(codes.get(0).getCode(), "a");
+        assertNull(codes.get(0).getDisplay());
+        assertEquals(codes.get(1).getCode(), "b");
+        assertEquals(codes.get(1).getDisplay(), "B");
+        assertEquals(codes.get(2).getSystem(), "http://loinc.org");
+        assertEquals(codes.get(2).getVersion(), "2.70");
+        assertEquals(codes.get(2).getDisplay(), "");
+    }
+
+    @Test
+    public void test_empty() {
+        CompactExpansion expansion = CompactExpansion.of(Collections.emptyList());
+
+        assertEquals(expansion.size(), 0);
+        assertFalse(expansion.iterator().hasNext());
+        assertFalse(expansion.contains("http://snomed.info/sct", "123"));
+    }
+}
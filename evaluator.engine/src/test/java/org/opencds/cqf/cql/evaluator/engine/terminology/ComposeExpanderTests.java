@@ -0,0 +1,106 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.Lists;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class ComposeExpanderTests {
+
+    private static final String SYSTEM = "http://example.org/CodeSystem/animals";
+
+    // animal
+    //   mammal
+    //     dog
+    //     bat (also a flier)
+    //   flier
+    //     bird
+    private ComposeExpander getComposeExpander() {
+        CodeSystem codeSystem = new CodeSystem().setUrl(SYSTEM).setVersion("1")
+                .setContent(CodeSystem.CodeSystemContentMode.COMPLETE);
+        ConceptDefinitionComponent animal = codeSystem.addConcept().setCode("animal").setDisplay("Animal");
+        ConceptDefinitionComponent mammal = animal.addConcept().setCode("mammal");
+        mammal.addConcept().setCode("dog").setDisplay("Dog");
+        mammal.addConcept().setCode("bat").addProperty().setCode("parent").setValue(new CodeType("flier"));
+        animal.addConcept().setCode("flier").addConcept().setCode("bird");
+
+        return new ComposeExpander(FhirContext.forCached(FhirVersionEnum.R4), Lists.newArrayList(codeSystem));
+    }
+
+    private static List<String> codes(List<Code> codes) {
+        return codes.stream().map(Code::getCode).collect(Collectors.toList());
+    }
+
+    @Test
+    public void test_expand_isA() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.getCompose().addInclude().setSystem(SYSTEM).addFilter().setProperty("concept")
+                .setOp(ValueSet.FilterOperator.ISA).setValue("mammal");
+
+        List<Code> codes = this.getComposeExpander().expand(valueSet);
+        assertEquals(codes(codes), Lists.newArrayList("mammal", "dog", "bat"));
+        assertEquals(codes.get(1).getSystem(), SYSTEM);
+        assertEquals(codes.get(1).getVersion(), "1");
+        assertEquals(codes.get(1).getDisplay(), "Dog");
+    }
+
+    @Test
+    public void test_expand_descendentOf_followsParentProperty() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.getCompose().addInclude().setSystem(SYSTEM).addFilter().setProperty("concept")
+                .setOp(ValueSet.FilterOperator.DESCENDENTOF).setValue("flier");
+
+        assertEquals(codes(this.getComposeExpander().expand(valueSet)), Lists.newArrayList("bat", "bird"));
+    }
+
+    @Test
+    public void test_expand_excludes() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.getCompose().addInclude().setSystem(SYSTEM).addFilter().setProperty("concept")
+                .setOp(ValueSet.FilterOperator.ISA).setValue("animal");
+        valueSet.getCompose().addExclude().setSystem(SYSTEM).addFilter().setProperty("concept")
+                .setOp(ValueSet.FilterOperator.ISA).setValue("flier");
+        valueSet.getCompose().addExclude().setSystem(SYSTEM).addConcept().setCode("dog");
+
+        assertEquals(codes(this.getComposeExpander().expand(valueSet)), Lists.newArrayList("animal", "mammal"));
+    }
+
+    @Test
+    public void test_expand_concepts_withoutCodeSystem() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.getCompose().addInclude().setSystem("http://example.org/CodeSystem/other").addConcept()
+                .setCode("1");
+
+        assertEquals(codes(this.getComposeExpander().expand(valueSet)), Lists.newArrayList("1"));
+    }
+
+    @Test
+    public void test_expand_unavailable_returnsNull() {
+        ValueSet missingCodeSystem = new ValueSet();
+        missingCodeSystem.getCompose().addInclude().setSystem("http://example.org/CodeSystem/other").addFilter()
+                .setProperty("concept").setOp(ValueSet.FilterOperator.ISA).setValue("1");
+        assertNull(this.getComposeExpander().expand(missingCodeSystem));
+
+        ValueSet unsupportedFilter = new ValueSet();
+        unsupportedFilter.getCompose().addInclude().setSystem(SYSTEM).addFilter().setProperty("concept")
+                .setOp(ValueSet.FilterOperator.REGEX).setValue("d.*");
+        assertNull(this.getComposeExpander().expand(unsupportedFilter));
+
+        ValueSet valueSetReference = new ValueSet();
+        valueSetReference.getCompose().addInclude().addValueSet("http://example.org/ValueSet/other");
+        assertNull(this.getComposeExpander().expand(valueSetReference));
+    }
+}
@@ -0,0 +1,123 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.engine.util.FileCacheUtil;
+import org.testng.annotations.Test;
+
+public class PersistentCachingTerminologyProviderDecoratorTests {
+
+    private static class CountingTerminologyProvider implements TerminologyProvider {
+        AtomicInteger expandCount = new AtomicInteger();
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            this.expandCount.incrementAndGet();
+            return Lists.newArrayList(
+                new Code().withSystem("http://snomed.info/sct").withCode(valueSet.getId()).withDisplay("Display"),
+                new Code().withSystem("http://loinc.org").withVersion("2.68").withCode("1234-5"));
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            return null;
+        }
+    }
+
+    @Test
+    public void test_expansionIsServedFromDiskOnRestart() throws IOException {
+        Path directory = Files.createTempDirectory("expansions");
+        CountingTerminologyProvider first = new CountingTerminologyProvider();
+        new PersistentCachingTerminologyProviderDecorator(first, directory, "http://tx", null)
+                .expand(new ValueSetInfo().withId("1"));
+
+        CountingTerminologyProvider second = new CountingTerminologyProvider();
+        TerminologyProvider restarted = new PersistentCachingTerminologyProviderDecorator(second, directory,
+                "http://tx", null);
+
+        List<Code> codes = Lists.newArrayList(restarted.expand(new ValueSetInfo().withId("1")));
+        assertEquals(codes.size(), 2);
+        assertEquals(codes.get(0).getDisplay(), "Display");
+        assertNull(codes.get(0).getVersion());
+        assertEquals(codes.get(1).getVersion(), "2.68");
+        assertTrue(restarted.in(new Code().withSystem("http://loinc.org").withCode("1234-5"), new ValueSetInfo().withId("1")));
+        assertFalse(restarted.in(new Code().withSystem("http://loinc.org").withCode("1"), new ValueSetInfo().withId("1")));
+
+        assertEquals(second.expandCount.get(), 0);
+    }
+
+    @Test
+    public void test_keyedByEndpointAndVersion() throws IOException {
+        Path directory = Files.createTempDirectory("expansions");
+        CountingTerminologyProvider provider = new CountingTerminologyProvider();
+
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", null)
+                .expand(new ValueSetInfo().withId("1"));
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://other-tx", null)
+                .expand(new ValueSetInfo().withId("1"));
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", null)
+                .expand(new ValueSetInfo().withId("1").withVersion("2"));
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", null)
+                .expand(new ValueSetInfo().withId("1"));
+
+        assertEquals(provider.expandCount.get(), 3);
+    }
+
+    @Test
+    public void test_expiredExpansionIsRefreshed() throws IOException {
+        Path directory = Files.createTempDirectory("expansions");
+        CountingTerminologyProvider provider = new CountingTerminologyProvider();
+        Instant now = Instant.now();
+
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", Duration.ofHours(1),
+                Clock.fixed(now, ZoneOffset.UTC)).expand(new ValueSetInfo().withId("1"));
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", Duration.ofHours(1),
+                Clock.fixed(now.plusSeconds(60), ZoneOffset.UTC)).expand(new ValueSetInfo().withId("1"));
+        assertEquals(provider.expandCount.get(), 1);
+
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", Duration.ofHours(1),
+                Clock.fixed(now.plus(Duration.ofHours(2)), ZoneOffset.UTC)).expand(new ValueSetInfo().withId("1"));
+        assertEquals(provider.expandCount.get(), 2);
+    }
+
+    @Test
+    public void test_unreadableFileIsReplaced() throws IOException {
+        Path directory = Files.createTempDirectory("expansions");
+        CountingTerminologyProvider provider = new CountingTerminologyProvider();
+
+        String hash = FileCacheUtil.hash("http://tx|1|");
+        Files.write(directory.resolve(hash + PersistentCachingTerminologyProviderDecorator.EXTENSION), new byte[] { 1, 2, 3 });
+
+        TerminologyProvider cached = new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", null);
+        assertTrue(cached.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), new ValueSetInfo().withId("1")));
+        assertEquals(provider.expandCount.get(), 1);
+
+        new PersistentCachingTerminologyProviderDecorator(provider, directory, "http://tx", null)
+                .expand(new ValueSetInfo().withId("1"));
+        assertEquals(provider.expandCount.get(), 1);
+    }
+}
@@ -0,0 +1,186 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.Test;
+
+public class PriorityTerminologyProviderTests {
+
+    // Knows a fixed set of ValueSets, and throws for any other, like the BundleTerminologyProvider
+    private static class KnownTerminologyProvider implements TerminologyProvider {
+        Set<String> valueSets;
+        AtomicInteger callCount = new AtomicInteger();
+
+        KnownTerminologyProvider(String... valueSets) {
+            this.valueSets = Sets.newHashSet(valueSets);
+        }
+
+        private void check(ValueSetInfo valueSet) {
+            this.callCount.incrementAndGet();
+            if (!this.valueSets.contains(valueSet.getId())) {
+                throw new ValueSetNotFoundException(valueSet.getId());
+            }
+        }
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            this.check(valueSet);
+            return code.getCode().equals(valueSet.getId());
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            this.check(valueSet);
+            return Lists.newArrayList(new Code().withSystem("http://snomed.info/sct").withCode(valueSet.getId()));
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            this.callCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    // Has no ValueSets, and returns null rather than throwing
+    private static class NullTerminologyProvider implements TerminologyProvider {
+        AtomicInteger callCount = new AtomicInteger();
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            this.callCount.incrementAndGet();
+            return false;
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            this.callCount.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            this.callCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    // Throws for every call, like a terminology server that is unavailable
+    private static class FailingTerminologyProvider extends NullTerminologyProvider {
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            super.in(code, valueSet);
+            throw new IllegalStateException("Unavailable");
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            super.expand(valueSet);
+            throw new IllegalStateException("Unavailable");
+        }
+    }
+
+    @Test
+    public void test_in_isTrueIfAnyProviderContainsCode() {
+        KnownTerminologyProvider first = new KnownTerminologyProvider("1", "2");
+        KnownTerminologyProvider second = new KnownTerminologyProvider("2");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        assertTrue(terminologyProvider.in(new Code().withCode("1"), new ValueSetInfo().withId("1")));
+        assertTrue(terminologyProvider.in(new Code().withCode("2"), new ValueSetInfo().withId("2")));
+        assertFalse(terminologyProvider.in(new Code().withCode("3"), new ValueSetInfo().withId("2")));
+        assertEquals(first.callCount.get(), 3);
+        assertEquals(second.callCount.get(), 1);
+    }
+
+    @Test
+    public void test_in_skipsProvidersWithoutValueSet() {
+        KnownTerminologyProvider first = new KnownTerminologyProvider("1");
+        KnownTerminologyProvider second = new KnownTerminologyProvider("2");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        assertTrue(terminologyProvider.in(new Code().withCode("2"), new ValueSetInfo().withId("2")));
+        assertFalse(terminologyProvider.in(new Code().withCode("3"), new ValueSetInfo().withId("3")));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 2);
+
+        assertTrue(terminologyProvider.in(new Code().withCode("2"), new ValueSetInfo().withId("2")));
+        assertFalse(terminologyProvider.in(new Code().withCode("3"), new ValueSetInfo().withId("3")));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 3);
+    }
+
+    @Test
+    public void test_in_retriesProvidersThatFail() {
+        FailingTerminologyProvider first = new FailingTerminologyProvider();
+        KnownTerminologyProvider second = new KnownTerminologyProvider("1");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        assertTrue(terminologyProvider.in(new Code().withCode("1"), new ValueSetInfo().withId("1")));
+        assertTrue(terminologyProvider.in(new Code().withCode("1"), new ValueSetInfo().withId("1")));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 2);
+    }
+
+    @Test
+    public void test_expand_remembersMissingValueSets() {
+        NullTerminologyProvider first = new NullTerminologyProvider();
+        NullTerminologyProvider second = new NullTerminologyProvider();
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        assertNull(terminologyProvider.expand(new ValueSetInfo().withId("1")));
+        assertNull(terminologyProvider.expand(new ValueSetInfo().withId("1")));
+        assertEquals(first.callCount.get(), 1);
+        assertEquals(second.callCount.get(), 1);
+    }
+
+    @Test
+    public void test_expand_remembersProvidersWithoutValueSet() {
+        KnownTerminologyProvider first = new KnownTerminologyProvider("1");
+        KnownTerminologyProvider second = new KnownTerminologyProvider("2");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        terminologyProvider.expand(new ValueSetInfo().withId("2"));
+        assertNull(terminologyProvider.expand(new ValueSetInfo().withId("3")));
+        terminologyProvider.expand(new ValueSetInfo().withId("2"));
+        assertNull(terminologyProvider.expand(new ValueSetInfo().withId("3")));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 3);
+    }
+
+    @Test
+    public void test_expand_doesNotRememberOwnersFoundAfterAFailure() {
+        FailingTerminologyProvider first = new FailingTerminologyProvider();
+        KnownTerminologyProvider second = new KnownTerminologyProvider("1");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        terminologyProvider.expand(new ValueSetInfo().withId("1"));
+        terminologyProvider.expand(new ValueSetInfo().withId("1"));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 2);
+    }
+
+    @Test
+    public void test_expand_usesFirstProviderWithResult() {
+        KnownTerminologyProvider first = new KnownTerminologyProvider("1");
+        KnownTerminologyProvider second = new KnownTerminologyProvider("1", "2");
+        TerminologyProvider terminologyProvider = new PriorityTerminologyProvider(Lists.newArrayList(first, second));
+
+        terminologyProvider.expand(new ValueSetInfo().withId("1"));
+        terminologyProvider.expand(new ValueSetInfo().withId("1"));
+        assertEquals(first.callCount.get(), 2);
+        assertEquals(second.callCount.get(), 0);
+    }
+}
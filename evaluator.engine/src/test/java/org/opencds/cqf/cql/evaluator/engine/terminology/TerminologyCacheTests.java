@@ -0,0 +1,127 @@
+package org.opencds.cqf.cql.evaluator.engine.terminology;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.Test;
+
+public class TerminologyCacheTests {
+
+    private static class CountingTerminologyProvider implements TerminologyProvider {
+        AtomicInteger expandCount = new AtomicInteger();
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            this.expandCount.incrementAndGet();
+            return Lists.newArrayList(new Code().withSystem("http://snomed.info/sct").withCode(valueSet.getId()));
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            return null;
+        }
+    }
+
+    @Test
+    public void test_expansionIsSharedAcrossProviders() {
+        TerminologyCache cache = new TerminologyCache();
+        CountingTerminologyProvider first = new CountingTerminologyProvider();
+        CountingTerminologyProvider second = new CountingTerminologyProvider();
+
+        TerminologyProvider firstCached = new SharedCachingTerminologyProviderDecorator(first, cache, "http://tx");
+        TerminologyProvider secondCached = new SharedCachingTerminologyProviderDecorator(second, cache, "http://tx");
+
+        assertTrue(firstCached.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), new ValueSetInfo().withId("1")));
+        assertTrue(secondCached.in(new Code().withSystem("http://snomed.info/sct").withCode("1"), new ValueSetInfo().withId("1")));
+        assertFalse(secondCached.in(new Code().withSystem("http://snomed.info/sct").withCode("2"), new ValueSetInfo().withId("1")));
+
+        assertEquals(first.expandCount.get(), 1);
+        assertEquals(second.expandCount.get(), 0);
+    }
+
+    @Test
+    public void test_keyedByEndpointAndVersion() {
+        TerminologyCache cache = new TerminologyCache();
+        CountingTerminologyProvider provider = new CountingTerminologyProvider();
+
+        cache.expand("http://tx", new ValueSetInfo().withId("1"), provider);
+        cache.expand("http://other-tx", new ValueSetInfo().withId("1"), provider);
+        cache.expand("http://tx", new ValueSetInfo().withId("1").withVersion("2"), provider);
+        cache.expand("http://tx", new ValueSetInfo().withId("1"), provider);
+
+        assertEquals(provider.expandCount.get(), 3);
+    }
+
+    @Test
+    public void test_expiredExpansionIsLoadedWithCurrentProvider() {
+        TerminologyCache cache = new TerminologyCache(TerminologyCache.DEFAULT_MAXIMUM_CODES, Duration.ZERO);
+        CountingTerminologyProvider first = new CountingTerminologyProvider();
+        CountingTerminologyProvider second = new CountingTerminologyProvider();
+
+        cache.expand("http://tx", new ValueSetInfo().withId("1"), first);
+        cache.expand("http://tx", new ValueSetInfo().withId("1"), second);
+
+        assertEquals(first.expandCount.get(), 1);
+        assertEquals(second.expandCount.get(), 1);
+    }
+
+    @Test
+    public void test_slowExpansionDoesNotBlockOtherValueSets() throws Exception {
+        TerminologyCache cache = new TerminologyCache();
+        CountingTerminologyProvider provider = new CountingTerminologyProvider();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        TerminologyProvider slowProvider = new CountingTerminologyProvider() {
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+
+                return provider.expand(valueSet);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Iterable<Code>> slow = executor.submit(() -> cache.expand("http://tx", new ValueSetInfo().withId("1"), slowProvider));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<Iterable<Code>> waiting = executor.submit(() -> cache.expand("http://tx", new ValueSetInfo().withId("1"), provider));
+
+            // Another ValueSet is expanded while the first is still loading
+            cache.expand("http://tx", new ValueSetInfo().withId("2"), provider);
+            assertEquals(provider.expandCount.get(), 1);
+
+            release.countDown();
+            assertEquals(slow.get(10, TimeUnit.SECONDS), waiting.get(10, TimeUnit.SECONDS));
+            assertEquals(provider.expandCount.get(), 2);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -63,6 +64,37 @@ public class DirectoryBundler {
     public IBaseBundle bundle(String path) {
         requireNonNull(path, "path must not be null.");
 
+        return this.bundleFiles(path, this.listFiles(path));
+    }
+
+    /**
+     * Recursively searches all files and sub-directory and parses all xml and json
+     * FHIR resources, passing each resource to the consumer (recursively
+     * flattening Bundle resources). Unlike bundle, only the resources of one file
+     * are held in memory at a time.
+     * @param path The root directory to search.
+     * @param consumer The consumer of the resources
+     */
+    public void forEachResource(String path, Consumer<IBaseResource> consumer) {
+        requireNonNull(path, "path must not be null.");
+        requireNonNull(consumer, "consumer must not be null.");
+
+        for (File f : this.listFiles(path)) {
+            IBaseResource resource = parseFile(f);
+
+            if (resource == null) {
+                continue;
+            }
+
+            if (resource instanceof IBaseBundle) {
+                flatten(this.fhirContext, (IBaseBundle) resource).forEach(consumer);
+            } else {
+                consumer.accept(resource);
+            }
+        }
+    }
+
+    private Collection<File> listFiles(String path) {
         URI uri;
         try{
             // TODO: Should use builder.UriUtil.isUri
@@ -87,7 +119,7 @@ public class DirectoryBundler {
             files = this.listDirectory(uri.getPath());
         }
 
-        return this.bundleFiles(path, files);
+        return files;
     }
 
     private Collection<File> listJar(URI uri, String path) {
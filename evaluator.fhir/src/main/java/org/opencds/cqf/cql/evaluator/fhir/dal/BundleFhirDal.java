@@ -9,21 +9,20 @@ import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.UriType;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessor;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessorCache;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.util.BundleUtil;
 
 public class BundleFhirDal implements FhirDal {
 
     protected FhirContext context;
     protected IBaseBundle bundle;
-    protected IFhirPath fhirPath;
 
     public BundleFhirDal(FhirContext context, IBaseBundle bundle) {
         this.context = context;
         this.bundle = bundle;
-        this.fhirPath = this.context.newFhirPath();
     }
 
     @Override
@@ -70,9 +69,10 @@ public class BundleFhirDal implements FhirDal {
         this.context.getResourceDefinition(resourceType).getImplementingClass());
 
 
+        PathAccessor urlPath = PathAccessorCache.cachedFor(this.context, resourceType, "url");
         List<IBaseResource> returnList = new ArrayList<>();
         for (IBaseResource resource : resources) {
-            Optional<UriType> urlString = this.fhirPath.evaluateFirst(resource, "url", UriType.class);
+            Optional<UriType> urlString = urlPath.evaluateFirst(resource, UriType.class);
             if (urlString.isPresent() && urlString.get().getValue().equals(url)) {
                 returnList.add(resource);
             }
@@ -0,0 +1,35 @@
+package org.opencds.cqf.cql.evaluator.fhir.util;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBase;
+
+/**
+ * A PathAccessor evaluates a single, pre-resolved path against FHIR elements. Instances are obtained from the
+ * {@link PathAccessorCache} so that the work of resolving the path is done once rather than on every evaluation.
+ */
+public interface PathAccessor {
+
+    /**
+     * Evaluates the path against the input.
+     * @param <T> the expected type of the results
+     * @param input the element to evaluate the path against
+     * @param returnType the expected type of the results
+     * @return the results of the evaluation. Never null.
+     * @throws IllegalArgumentException if a result is not of the expected type
+     */
+    <T extends IBase> List<T> evaluate(IBase input, Class<T> returnType);
+
+    /**
+     * Evaluates the path against the input and returns the first result, if any.
+     * @param <T> the expected type of the result
+     * @param input the element to evaluate the path against
+     * @param returnType the expected type of the result
+     * @return the first result of the evaluation
+     * @throws IllegalArgumentException if a result is not of the expected type
+     */
+    default <T extends IBase> Optional<T> evaluateFirst(IBase input, Class<T> returnType) {
+        return this.evaluate(input, returnType).stream().findFirst();
+    }
+}
@@ -0,0 +1,200 @@
+package org.opencds.cqf.cql.evaluator.fhir.util;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+
+/**
+ * This class caches PathAccessors by FhirContext, type, and path. Simple dotted paths (e.g. "subject" or
+ * "code.coding") are resolved to chains of HAPI child accessors, which avoids parsing the path as a FHIRPath
+ * expression on every evaluation. Any other path falls back to evaluation with a FHIRPath engine of the FhirContext.
+ *
+ * PathAccessors are cached for each FhirContext instance, since contexts of the same FHIR version may define
+ * different structures (e.g. custom resource types). The cache holds on to every FhirContext it is used with, so
+ * it is intended for the long-lived contexts of a process.
+ */
+public class PathAccessorCache {
+
+    private static final Pattern SIMPLE_PATH = Pattern.compile("[a-z][A-Za-z0-9_]*(\\.[a-z][A-Za-z0-9_]*)*");
+
+    private static final Map<FhirContext, ContextCache> contextCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Gets a PathAccessor for a path, creating it if needed.
+     * @param fhirContext the FhirContext of the elements the path will be evaluated against
+     * @param type the FHIR type of the elements the path will be evaluated against (e.g. "Condition")
+     * @param path the path to evaluate
+     * @return the PathAccessor
+     */
+    public static PathAccessor cachedFor(FhirContext fhirContext, String type, String path) {
+        requireNonNull(fhirContext, "fhirContext can not be null");
+        requireNonNull(path, "path can not be null");
+
+        ContextCache contextCache = contextCaches.computeIfAbsent(fhirContext, ContextCache::new);
+        return contextCache.pathAccessors.computeIfAbsent(type + "|" + path, k -> create(contextCache, type, path));
+    }
+
+    private static PathAccessor create(ContextCache contextCache, String type, String path) {
+        String simplePath = path;
+
+        // A FHIRPath expression may be qualified with the type name (e.g. "Condition.code")
+        if (type != null && simplePath.startsWith(type + ".")) {
+            simplePath = simplePath.substring(type.length() + 1);
+        }
+
+        FhirPathAccessor fhirPathAccessor = new FhirPathAccessor(contextCache.fhirPath, path);
+        if (SIMPLE_PATH.matcher(simplePath).matches()) {
+            return new ChildPathAccessor(contextCache.fhirContext, simplePath.split("\\."), fhirPathAccessor);
+        }
+
+        return fhirPathAccessor;
+    }
+
+    private static <T extends IBase> List<T> cast(List<IBase> values, Class<T> returnType, String path) {
+        List<T> results = new ArrayList<>(values.size());
+        for (IBase value : values) {
+            if (!returnType.isInstance(value)) {
+                throw new IllegalArgumentException(String.format("Path %s returned unexpected type %s, expected %s",
+                        path, value.getClass().getSimpleName(), returnType.getSimpleName()));
+            }
+
+            results.add(returnType.cast(value));
+        }
+
+        return results;
+    }
+
+    /**
+     * Evaluates a dotted path by walking the child definitions of each element. The child definition for each
+     * segment is resolved once per element class, which supports choice types and elements of differing types.
+     * Segments that are not the name of a child (e.g. "valueQuantity") are delegated to the FHIRPath engine.
+     */
+    private static class ChildPathAccessor implements PathAccessor {
+
+        private final FhirContext fhirContext;
+        private final String[] segments;
+        private final String path;
+        private final FhirPathAccessor fallback;
+        private final List<Map<Class<?>, ChildStep>> childSteps;
+
+        ChildPathAccessor(FhirContext fhirContext, String[] segments, FhirPathAccessor fallback) {
+            this.fhirContext = fhirContext;
+            this.segments = segments;
+            this.fallback = fallback;
+            this.path = String.join(".", segments);
+            this.childSteps = new ArrayList<>(segments.length);
+            for (int i = 0; i < segments.length; i++) {
+                this.childSteps.add(new ConcurrentHashMap<>());
+            }
+        }
+
+        @Override
+        public <T extends IBase> List<T> evaluate(IBase input, Class<T> returnType) {
+            if (input == null) {
+                return Collections.emptyList();
+            }
+
+            List<IBase> values = Collections.singletonList(input);
+            for (int i = 0; i < this.segments.length && !values.isEmpty(); i++) {
+                List<IBase> children = new ArrayList<>();
+                for (IBase value : values) {
+                    final int segment = i;
+                    ChildStep step = this.childSteps.get(i).computeIfAbsent(value.getClass(),
+                            k -> this.resolveChildStep(this.segments[segment], value));
+                    if (!step.resolved) {
+                        return this.fallback.evaluate(input, returnType);
+                    }
+
+                    if (step.child != null) {
+                        children.addAll(step.child.getAccessor().getValues(value));
+                    }
+                }
+
+                values = children;
+            }
+
+            return cast(values, returnType, this.path);
+        }
+
+        private ChildStep resolveChildStep(String name, IBase value) {
+            BaseRuntimeElementDefinition<?> definition = value instanceof IBaseResource
+                    ? this.fhirContext.getResourceDefinition((IBaseResource) value)
+                    : this.fhirContext.getElementDefinition(value.getClass());
+
+            // Elements without a composite definition (e.g. primitives, or types unknown to the context) are left
+            // to the FHIRPath engine
+            if (!(definition instanceof BaseRuntimeElementCompositeDefinition)) {
+                return new ChildStep(null, false);
+            }
+
+            // Match on the element name so that choice types (e.g. "onset") resolve to their value, while
+            // type-specific choice names (e.g. "onsetDateTime") are left to the FHIRPath engine
+            for (BaseRuntimeChildDefinition child : ((BaseRuntimeElementCompositeDefinition<?>) definition)
+                    .getChildren()) {
+                if (name.equals(child.getElementName())) {
+                    return new ChildStep(child, true);
+                }
+            }
+
+            return new ChildStep(null, false);
+        }
+    }
+
+    private static class ContextCache {
+        final FhirContext fhirContext;
+        final IFhirPath fhirPath;
+        final Map<String, PathAccessor> pathAccessors = new ConcurrentHashMap<>();
+
+        ContextCache(FhirContext fhirContext) {
+            this.fhirContext = fhirContext;
+            this.fhirPath = fhirContext.newFhirPath();
+        }
+    }
+
+    private static class ChildStep {
+        final BaseRuntimeChildDefinition child;
+        final boolean resolved;
+
+        ChildStep(BaseRuntimeChildDefinition child, boolean resolved) {
+            this.child = child;
+            this.resolved = resolved;
+        }
+    }
+
+    /**
+     * Evaluates a path with the FHIRPath engine.
+     */
+    private static class FhirPathAccessor implements PathAccessor {
+
+        private final IFhirPath fhirPath;
+        private final String path;
+
+        FhirPathAccessor(IFhirPath fhirPath, String path) {
+            this.fhirPath = fhirPath;
+            this.path = path;
+        }
+
+        @Override
+        public <T extends IBase> List<T> evaluate(IBase input, Class<T> returnType) {
+            if (input == null) {
+                return Collections.emptyList();
+            }
+
+            return cast(this.fhirPath.evaluate(input, this.path, IBase.class), returnType, this.path);
+        }
+    }
+}
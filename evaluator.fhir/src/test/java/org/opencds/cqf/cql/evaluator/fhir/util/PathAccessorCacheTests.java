@@ -0,0 +1,119 @@
+package org.opencds.cqf.cql.evaluator.fhir.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class PathAccessorCacheTests {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void TestCachedAccessorIsReused() {
+        PathAccessor first = PathAccessorCache.cachedFor(fhirContext, "Condition", "code");
+        PathAccessor second = PathAccessorCache.cachedFor(fhirContext, "Condition", "code");
+
+        assertSame(first, second);
+    }
+
+    @Test
+    public void TestCachedByContext() {
+        FhirContext otherContext = FhirContext.forR4();
+        PathAccessor first = PathAccessorCache.cachedFor(fhirContext, "Condition", "code");
+        PathAccessor second = PathAccessorCache.cachedFor(otherContext, "Condition", "code");
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void TestSimplePath() {
+        Condition condition = new Condition();
+        condition.setSubject(new Reference("Patient/123"));
+
+        Optional<IBaseReference> subject = PathAccessorCache.cachedFor(fhirContext, "Condition", "subject")
+                .evaluateFirst(condition, IBaseReference.class);
+
+        assertTrue(subject.isPresent());
+        assertEquals(subject.get().getReferenceElement().getValue(), "Patient/123");
+    }
+
+    @Test
+    public void TestDottedAndQualifiedPaths() {
+        Condition condition = new Condition();
+        condition.setCode(new CodeableConcept().addCoding(new Coding("http://snomed.info/sct", "1", null))
+                .addCoding(new Coding("http://snomed.info/sct", "2", null)));
+
+        List<Coding> codings = PathAccessorCache.cachedFor(fhirContext, "Condition", "Condition.code.coding")
+                .evaluate(condition, Coding.class);
+
+        assertEquals(codings.size(), 2);
+        assertEquals(codings.get(1).getCode(), "2");
+    }
+
+    @Test
+    public void TestChoicePath() {
+        Condition condition = new Condition();
+        condition.setOnset(new DateTimeType("2019-01-01"));
+
+        Optional<IBase> onset = PathAccessorCache.cachedFor(fhirContext, "Condition", "onset")
+                .evaluateFirst(condition, IBase.class);
+
+        assertTrue(onset.isPresent());
+        assertTrue(onset.get() instanceof DateTimeType);
+    }
+
+    @Test
+    public void TestMissingChild() {
+        Condition condition = new Condition();
+
+        List<IBase> results = PathAccessorCache.cachedFor(fhirContext, "Condition", "reference")
+                .evaluate(condition, IBase.class);
+
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void TestComplexPathFallsBackToFhirPath() {
+        Observation observation = new Observation();
+        observation.setValue(new StringType("test"));
+
+        Optional<StringType> value = PathAccessorCache
+                .cachedFor(fhirContext, "Observation", "value.ofType(string)")
+                .evaluateFirst(observation, StringType.class);
+
+        assertTrue(value.isPresent());
+        assertEquals(value.get().getValue(), "test");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void TestUnexpectedType() {
+        Condition condition = new Condition();
+        condition.setSubject(new Reference("Patient/123"));
+
+        PathAccessorCache.cachedFor(fhirContext, "Condition", "subject").evaluate(condition, Coding.class);
+    }
+
+    @Test
+    public void TestNullInput() {
+        assertFalse(PathAccessorCache.cachedFor(fhirContext, "Condition", "subject")
+                .evaluateFirst(null, IBase.class).isPresent());
+    }
+}
@@ -11,6 +11,7 @@ import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBackboneElement;
 import org.hl7.fhir.instance.model.api.IBaseDatatype;
 import org.hl7.fhir.instance.model.api.IBaseExtension;
@@ -23,11 +24,10 @@ import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverter;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.AdapterFactory;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.ParametersAdapter;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.ParametersParameterComponentAdapter;
-import org.opencds.cqf.cql.evaluator.fhir.util.FhirPathCache;
+import org.opencds.cqf.cql.evaluator.fhir.util.PathAccessorCache;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 
 @Named
 public class CqlFhirParametersConverter {
@@ -37,7 +37,6 @@ public class CqlFhirParametersConverter {
     protected AdapterFactory adapterFactory;
     protected FhirTypeConverter fhirTypeConverter;
     protected FhirContext fhirContext;
-    private IFhirPath fhirPath;
 
     @Inject
     public CqlFhirParametersConverter(FhirContext fhirContext, AdapterFactory adapterFactory,
@@ -45,8 +44,6 @@ public class CqlFhirParametersConverter {
         this.fhirContext = requireNonNull(fhirContext);
         this.adapterFactory = requireNonNull(adapterFactory);
         this.fhirTypeConverter = requireNonNull(fhirTypeConverter);
-
-        this.fhirPath = FhirPathCache.cachedForContext(fhirContext);
     }
 
     public IBaseParameters toFhirParameters(EvaluationResult evaluationResult) {
@@ -213,9 +210,12 @@ public class CqlFhirParametersConverter {
     }
 
     private Boolean isListType(IBaseExtension<?, ?> parameterDefinitionExtension) {
+        IBase parameterDefinition = parameterDefinitionExtension.getValue();
+        String type = parameterDefinition != null ? parameterDefinition.fhirType() : null;
+
         @SuppressWarnings("rawtypes")
-        Optional<IPrimitiveType> max = this.fhirPath.evaluateFirst(parameterDefinitionExtension.getValue(), "max",
-                IPrimitiveType.class);
+        Optional<IPrimitiveType> max = PathAccessorCache.cachedFor(this.fhirContext, type, "max")
+                .evaluateFirst(parameterDefinition, IPrimitiveType.class);
         if (max.isPresent()) {
             String maxString = max.get().getValueAsString();
             if (maxString.equals("1")) {
@@ -225,8 +225,8 @@ public class CqlFhirParametersConverter {
             return true;
         }
 
-        Optional<IBaseIntegerDatatype> min = this.fhirPath.evaluateFirst(parameterDefinitionExtension.getValue(), "min",
-                IBaseIntegerDatatype.class);
+        Optional<IBaseIntegerDatatype> min = PathAccessorCache.cachedFor(this.fhirContext, type, "min")
+                .evaluateFirst(parameterDefinition, IBaseIntegerDatatype.class);
         if (min.isPresent()) {
             return min.get().getValue() > 1;
         }
@@ -21,9 +21,12 @@ import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.evaluator.builder.CqlEvaluatorBuilder;
 import org.opencds.cqf.cql.evaluator.builder.DataProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.EndpointConverter;
+import org.opencds.cqf.cql.evaluator.builder.EndpointInfo;
 import org.opencds.cqf.cql.evaluator.builder.LibraryContentProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.TerminologyProviderFactory;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.terminology.TerminologyCache;
 
 import ca.uhn.fhir.context.FhirContext;
 
@@ -41,12 +44,41 @@ public class LibraryProcessor {
     protected EndpointConverter endpointConverter;
     protected CqlEvaluatorBuilder cqlEvaluatorBuilder;
     protected Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier;
+    protected TerminologyCache terminologyCache;
+    protected LibraryCache libraryCache;
 
-    @Inject
     public LibraryProcessor(FhirContext fhirContext, CqlFhirParametersConverter cqlFhirParametersConverter,
             LibraryContentProviderFactory libraryLoaderFactory, DataProviderFactory dataProviderFactory,
             TerminologyProviderFactory terminologyProviderFactory, EndpointConverter endpointConverter,
             Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier) {
+        this(fhirContext, cqlFhirParametersConverter, libraryLoaderFactory, dataProviderFactory,
+                terminologyProviderFactory, endpointConverter, cqlEvaluatorBuilderSupplier, null);
+    }
+
+    /**
+     * @param terminologyCache a TerminologyCache shared by every evaluation, or
+     *                         null to expand ValueSets for each evaluation
+     */
+    public LibraryProcessor(FhirContext fhirContext, CqlFhirParametersConverter cqlFhirParametersConverter,
+            LibraryContentProviderFactory libraryLoaderFactory, DataProviderFactory dataProviderFactory,
+            TerminologyProviderFactory terminologyProviderFactory, EndpointConverter endpointConverter,
+            Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier, TerminologyCache terminologyCache) {
+        this(fhirContext, cqlFhirParametersConverter, libraryLoaderFactory, dataProviderFactory,
+                terminologyProviderFactory, endpointConverter, cqlEvaluatorBuilderSupplier, terminologyCache, null);
+    }
+
+    /**
+     * @param terminologyCache a TerminologyCache shared by every evaluation, or
+     *                         null to expand ValueSets for each evaluation
+     * @param libraryCache     a LibraryCache shared by every evaluation, or null
+     *                         to translate Libraries for each evaluation
+     */
+    @Inject
+    public LibraryProcessor(FhirContext fhirContext, CqlFhirParametersConverter cqlFhirParametersConverter,
+            LibraryContentProviderFactory libraryLoaderFactory, DataProviderFactory dataProviderFactory,
+            TerminologyProviderFactory terminologyProviderFactory, EndpointConverter endpointConverter,
+            Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier, TerminologyCache terminologyCache,
+            LibraryCache libraryCache) {
 
         this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null");
         this.cqlFhirParametersConverter = requireNonNull(cqlFhirParametersConverter, "cqlFhirParametersConverter");
@@ -57,6 +89,8 @@ public class LibraryProcessor {
 
         this.endpointConverter = requireNonNull(endpointConverter, "endpointConverter can not be null");
         this.cqlEvaluatorBuilderSupplier = requireNonNull(cqlEvaluatorBuilderSupplier, "cqlEvaluatorBuilder can not be null");
+        this.terminologyCache = terminologyCache;
+        this.libraryCache = libraryCache;
     }
 
     /**
@@ -133,7 +167,8 @@ public class LibraryProcessor {
             IBaseResource libraryEndpoint, IBaseResource terminologyEndpoint, IBaseResource dataEndpoint,
             IBaseBundle additionalData, Set<String> expressions) {
 
-        this.cqlEvaluatorBuilder = this.cqlEvaluatorBuilderSupplier.get();
+        this.cqlEvaluatorBuilder = this.cqlEvaluatorBuilderSupplier.get().withTerminologyCache(this.terminologyCache)
+                .withSharedLibraryCache(this.libraryCache);
 
         this.addLibraryContentProviders(libraryEndpoint, additionalData);
         this.addTerminologyProviders(terminologyEndpoint, additionalData);
@@ -152,9 +187,13 @@ public class LibraryProcessor {
 
     protected void addLibraryContentProviders(IBaseResource libraryEndpoint, IBaseBundle additionalData) {
         if (libraryEndpoint != null) {
-            LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory
-                    .create(endpointConverter.getEndpointInfo(libraryEndpoint));
-            this.cqlEvaluatorBuilder.withLibraryContentProvider(libraryContentProvider);
+            EndpointInfo endpointInfo = endpointConverter.getEndpointInfo(libraryEndpoint);
+            LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory.create(endpointInfo);
+            if (endpointInfo.getAddress() != null) {
+                this.cqlEvaluatorBuilder.withLibraryContentProvider(libraryContentProvider, endpointInfo.getCacheKey());
+            } else {
+                this.cqlEvaluatorBuilder.withLibraryContentProvider(libraryContentProvider);
+            }
         }
 
         if (additionalData != null) {
@@ -165,8 +204,13 @@ public class LibraryProcessor {
 
     protected void addTerminologyProviders(IBaseResource terminologyEndpoint, IBaseBundle additionalData) {
         if (terminologyEndpoint != null) {
-            this.cqlEvaluatorBuilder.withTerminologyProvider(
-                    this.terminologyProviderFactory.create(endpointConverter.getEndpointInfo(terminologyEndpoint)));
+            EndpointInfo endpointInfo = endpointConverter.getEndpointInfo(terminologyEndpoint);
+            if (endpointInfo.getAddress() != null) {
+                this.cqlEvaluatorBuilder.withTerminologyProvider(this.terminologyProviderFactory.create(endpointInfo),
+                        endpointInfo.getCacheKey());
+            } else {
+                this.cqlEvaluatorBuilder.withTerminologyProvider(this.terminologyProviderFactory.create(endpointInfo));
+            }
         }
 
         if (additionalData != null) {
@@ -1,10 +1,12 @@
 package org.opencds.cqf.cql.evaluator.measure.r4;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -25,21 +27,33 @@ import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.evaluator.builder.Constants;
+import org.opencds.cqf.cql.evaluator.builder.CqlEvaluatorBuilder;
 import org.opencds.cqf.cql.evaluator.builder.DataProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.EndpointConverter;
+import org.opencds.cqf.cql.evaluator.builder.EndpointInfo;
 import org.opencds.cqf.cql.evaluator.builder.FhirDalFactory;
 import org.opencds.cqf.cql.evaluator.builder.LibraryContentProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.RetrieveProviderConfig;
 import org.opencds.cqf.cql.evaluator.builder.TerminologyProviderFactory;
 import org.opencds.cqf.cql.evaluator.builder.data.RetrieveProviderConfigurer;
+import org.opencds.cqf.cql.evaluator.engine.execution.CacheAwareLibraryLoaderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.SharedCachingLibraryLoaderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.execution.TranslatorOptionAwareLibraryLoader;
+import org.opencds.cqf.cql.evaluator.engine.execution.ValueSetPrefetchingLibraryLoaderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.PrefetchingRetrieveProvider;
+import org.opencds.cqf.cql.evaluator.engine.retrieve.RestSubjectDataFetcher;
 import org.opencds.cqf.cql.evaluator.engine.terminology.PrivateCachingTerminologyProviderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.terminology.SharedCachingTerminologyProviderDecorator;
+import org.opencds.cqf.cql.evaluator.engine.terminology.TerminologyCache;
+import org.opencds.cqf.cql.evaluator.fhir.ClientFactory;
 import org.opencds.cqf.cql.evaluator.fhir.dal.FhirDal;
 import org.opencds.cqf.cql.evaluator.measure.common.MeasureEvalType;
 import org.opencds.cqf.cql.evaluator.measure.helper.DateHelper;
@@ -51,6 +65,10 @@ import org.opencds.cqf.cql.evaluator.engine.execution.TranslatingLibraryLoader;
 
 import org.opencds.cqf.cql.evaluator.cql2elm.model.CacheAwareModelManager;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
 // TODO: This class needs a bit of refactoring to match the patterns that
 // have been defined in other parts of the cql-evaluator project. The main issue
 // is the direct use of engine Context.
@@ -64,22 +82,89 @@ public class MeasureProcessor {
     protected EndpointConverter endpointConverter;
     protected LibraryContentProviderFactory libraryContentProviderFactory;
     protected FhirDalFactory fhirDalFactory;
+    protected TerminologyCache terminologyCache;
+    protected LibraryCache libraryCache;
+
+    private static Map<org.hl7.elm.r1.VersionedIdentifier, Model> globalModelCache = new ConcurrentHashMap<>();
+
+    /**
+     * The name of the ExecutorService used to prefetch ValueSets.
+     */
+    public static final String VALUESET_PREFETCH_EXECUTOR = "valueSetPrefetchExecutorService";
 
-    private static Map<org.hl7.elm.r1.VersionedIdentifier, Model> globalModelCache = new HashMap<>();
+    protected ExecutorService valueSetPrefetchExecutorService;
 
     private CqlTranslatorOptions cqlTranslatorOptions = CqlTranslatorOptions.defaultOptions();
     private RetrieveProviderConfig retrieveProviderConfig = RetrieveProviderConfig.defaultConfig();
 
-    @Inject
     public MeasureProcessor(TerminologyProviderFactory terminologyProviderFactory,
             DataProviderFactory dataProviderFactory, LibraryContentProviderFactory libraryContentProviderFactory, FhirDalFactory fhirDalFactory,
             EndpointConverter endpointConverter) {
+        this(terminologyProviderFactory, dataProviderFactory, libraryContentProviderFactory, fhirDalFactory,
+                endpointConverter, null);
+    }
+
+    /**
+     * @param terminologyCache a TerminologyCache shared by every evaluation, or null to expand ValueSets for each
+     *                         evaluation
+     */
+    public MeasureProcessor(TerminologyProviderFactory terminologyProviderFactory,
+            DataProviderFactory dataProviderFactory, LibraryContentProviderFactory libraryContentProviderFactory, FhirDalFactory fhirDalFactory,
+            EndpointConverter endpointConverter, TerminologyCache terminologyCache) {
+        this(terminologyProviderFactory, dataProviderFactory, libraryContentProviderFactory, fhirDalFactory,
+                endpointConverter, terminologyCache, null);
+    }
+
+    /**
+     * @param terminologyCache a TerminologyCache shared by every evaluation, or null to expand ValueSets for each
+     *                         evaluation
+     * @param libraryCache     a LibraryCache shared by every evaluation, or null to translate Libraries for each
+     *                         evaluation
+     */
+    public MeasureProcessor(TerminologyProviderFactory terminologyProviderFactory,
+            DataProviderFactory dataProviderFactory, LibraryContentProviderFactory libraryContentProviderFactory, FhirDalFactory fhirDalFactory,
+            EndpointConverter endpointConverter, TerminologyCache terminologyCache, LibraryCache libraryCache) {
+        this(terminologyProviderFactory, dataProviderFactory, libraryContentProviderFactory, fhirDalFactory,
+                endpointConverter, terminologyCache, libraryCache, null);
+    }
+
+    /**
+     * @param terminologyCache                a TerminologyCache shared by every evaluation, or null to expand
+     *                                        ValueSets for each evaluation
+     * @param libraryCache                    a LibraryCache shared by every evaluation, or null to translate
+     *                                        Libraries for each evaluation
+     * @param valueSetPrefetchExecutorService the ExecutorService used to expand the ValueSets of a Measure into the
+     *                                        TerminologyCache before it is evaluated, or null to expand ValueSets
+     *                                        as they are used. The ExecutorService is not shut down.
+     */
+    @Inject
+    public MeasureProcessor(TerminologyProviderFactory terminologyProviderFactory,
+            DataProviderFactory dataProviderFactory, LibraryContentProviderFactory libraryContentProviderFactory, FhirDalFactory fhirDalFactory,
+            EndpointConverter endpointConverter, TerminologyCache terminologyCache, LibraryCache libraryCache,
+            @Named(VALUESET_PREFETCH_EXECUTOR) ExecutorService valueSetPrefetchExecutorService) {
         this.terminologyProviderFactory = terminologyProviderFactory;
         this.dataProviderFactory = dataProviderFactory;
         this.libraryContentProviderFactory = libraryContentProviderFactory;
         this.endpointConverter = endpointConverter;
         this.fhirDalFactory = fhirDalFactory;
+        this.terminologyCache = terminologyCache;
+        this.libraryCache = libraryCache;
+        this.valueSetPrefetchExecutorService = valueSetPrefetchExecutorService;
+    }
 
+    /**
+     * Creates an ExecutorService for ValueSet prefetch that bounds the concurrent ValueSet expansions across all
+     * evaluations. Its threads are daemon threads, so it does not prevent the JVM from exiting.
+     * 
+     * @param threads the number of threads
+     * @return the ExecutorService
+     */
+    public static ExecutorService createValueSetPrefetchExecutorService(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "valueset-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
@@ -135,14 +220,22 @@ public class MeasureProcessor {
 
         org.hl7.fhir.r4.model.Library primaryLibrary = ( org.hl7.fhir.r4.model.Library)libraryIter.next();
 
-        LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory.create(this.endpointConverter.getEndpointInfo(contentEndpoint));
-        LibraryLoader libraryLoader = this.buildLibraryLoader(libraryContentProvider);
+        TerminologyProvider terminologyProvider = this.buildTerminologyProvider(terminologyEndpoint);
+
+        EndpointInfo contentEndpointInfo = this.endpointConverter.getEndpointInfo(contentEndpoint);
+        LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory.create(contentEndpointInfo);
+        LibraryLoader libraryLoader = this.buildLibraryLoader(libraryContentProvider, contentEndpointInfo.getCacheKey());
+
+        // Expand the ValueSets into the shared cache before any subject is evaluated
+        if (this.valueSetPrefetchExecutorService != null
+                && terminologyProvider instanceof SharedCachingTerminologyProviderDecorator) {
+            libraryLoader = new ValueSetPrefetchingLibraryLoaderDecorator(libraryLoader, terminologyProvider,
+                    this.valueSetPrefetchExecutorService);
+        }
 
         Library library = libraryLoader.load(new VersionedIdentifier().withId(primaryLibrary.getName()).withVersion(primaryLibrary.getVersion()));
         Context context = new Context(library);
         context.registerLibraryLoader(libraryLoader);
-
-        TerminologyProvider terminologyProvider = this.buildTerminologyProvider(terminologyEndpoint);
         context.registerTerminologyProvider(terminologyProvider);
 
         DataProvider dataProvider = this.buildDataProvider(dataEndpoint, additionalData, terminologyProvider);
@@ -158,7 +251,7 @@ public class MeasureProcessor {
     }
 
     // TODO: This is duplicate logic from the evaluator builder
-    private LibraryLoader buildLibraryLoader(LibraryContentProvider libraryContentProvider) {
+    private LibraryLoader buildLibraryLoader(LibraryContentProvider libraryContentProvider, String contentAddress) {
         List<LibraryContentProvider> libraryContentProviders = new ArrayList<>();
         libraryContentProviders.add(libraryContentProvider);
         libraryContentProviders.add(new EmbeddedFhirLibraryContentProvider());
@@ -166,7 +259,12 @@ public class MeasureProcessor {
         TranslatorOptionAwareLibraryLoader libraryLoader = new TranslatingLibraryLoader(
                 new CacheAwareModelManager(globalModelCache), libraryContentProviders, this.cqlTranslatorOptions);
 
-        return libraryLoader;
+        if (this.libraryCache != null && contentAddress != null) {
+            return new SharedCachingLibraryLoaderDecorator(libraryLoader, this.libraryCache,
+                    contentAddress + "," + CqlEvaluatorBuilder.EMBEDDED_CONTENT_SOURCE);
+        }
+
+        return new CacheAwareLibraryLoaderDecorator(libraryLoader);
     }
 
     private Interval buildMeasurementPeriod(String periodStart, String periodEnd) {
@@ -196,16 +294,33 @@ public class MeasureProcessor {
         RetrieveProviderConfigurer retrieveProviderConfigurer = new RetrieveProviderConfigurer(
             retrieveProviderConfig);
 
-        retrieveProviderConfigurer.configure(dataProvider.getRight(), terminologyProvider);
+        RetrieveProvider retrieveProvider = dataProvider.getRight();
+        retrieveProviderConfigurer.configure(retrieveProvider, terminologyProvider);
+
+        // Fetch data for chunks of subjects rather than searching for each retrieve of each subject
+        if (retrieveProvider instanceof RestFhirRetrieveProvider && retrieveProviderConfig.getSubjectPrefetchChunkSize() > 0) {
+            EndpointInfo endpointInfo = this.endpointConverter.getEndpointInfo(dataEndpoint);
+            FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+            IGenericClient fhirClient = new ClientFactory(fhirContext).create(endpointInfo.getAddress(), endpointInfo.getHeaders());
+            retrieveProvider = new PrefetchingRetrieveProvider(fhirContext, retrieveProvider,
+                    new RestSubjectDataFetcher(fhirClient), retrieveProviderConfig.getSubjectPrefetchChunkSize());
+            retrieveProviderConfigurer.configure(retrieveProvider, terminologyProvider);
+        }
 
-        return new CompositeDataProvider(dataProvider.getMiddle(), dataProvider.getRight());
+        return new CompositeDataProvider(dataProvider.getMiddle(), retrieveProvider);
     }
 
     // TODO: This is duplicate logic from the evaluator builder
     private TerminologyProvider buildTerminologyProvider(Endpoint terminologyEndpoint) {
         if (terminologyEndpoint != null) {
-            return new PrivateCachingTerminologyProviderDecorator(this.terminologyProviderFactory
-                    .create(this.endpointConverter.getEndpointInfo(terminologyEndpoint)));
+            EndpointInfo endpointInfo = this.endpointConverter.getEndpointInfo(terminologyEndpoint);
+            TerminologyProvider terminologyProvider = this.terminologyProviderFactory.create(endpointInfo);
+            if (this.terminologyCache != null && endpointInfo.getAddress() != null) {
+                return new SharedCachingTerminologyProviderDecorator(terminologyProvider, this.terminologyCache,
+                        endpointInfo.getCacheKey());
+            }
+
+            return new PrivateCachingTerminologyProviderDecorator(terminologyProvider);
         }
 
         return null;
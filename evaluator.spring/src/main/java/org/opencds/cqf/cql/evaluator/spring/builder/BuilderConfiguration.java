@@ -4,6 +4,9 @@ import java.util.function.Supplier;
 
 import org.opencds.cqf.cql.evaluator.builder.CqlEvaluatorBuilder;
 import org.opencds.cqf.cql.evaluator.builder.RetrieveProviderConfig;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryCache;
+import org.opencds.cqf.cql.evaluator.engine.execution.LibraryTranslationService;
+import org.opencds.cqf.cql.evaluator.engine.terminology.TerminologyCache;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -18,7 +21,22 @@ public class BuilderConfiguration {
     }
 
     @Bean
-    Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier() {
-        return () -> new CqlEvaluatorBuilder();
+    TerminologyCache terminologyCache() {
+        return new TerminologyCache();
+    }
+
+    @Bean
+    LibraryCache libraryCache() {
+        return new LibraryCache();
+    }
+
+    @Bean
+    LibraryTranslationService libraryTranslationService() {
+        return CqlEvaluatorBuilder.createLibraryTranslationService(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Bean
+    Supplier<CqlEvaluatorBuilder> cqlEvaluatorBuilderSupplier(LibraryTranslationService libraryTranslationService) {
+        return () -> new CqlEvaluatorBuilder().withLibraryTranslationService(libraryTranslationService);
     }
 }
@@ -1,5 +1,9 @@
 package org.opencds.cqf.cql.evaluator.spring.measure;
 
+import java.util.concurrent.ExecutorService;
+
+import org.opencds.cqf.cql.evaluator.measure.r4.MeasureProcessor;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 
@@ -7,4 +11,10 @@ import org.springframework.context.annotation.Configuration;
 @ComponentScan("org.opencds.cqf.cql.evaluator.measure")
 public class MeasureConfiguration {
 
+    private static final int VALUESET_PREFETCH_THREADS = 8;
+
+    @Bean(name = MeasureProcessor.VALUESET_PREFETCH_EXECUTOR, destroyMethod = "shutdown")
+    ExecutorService valueSetPrefetchExecutorService() {
+        return MeasureProcessor.createValueSetPrefetchExecutorService(VALUESET_PREFETCH_THREADS);
+    }
 }